@@ -1,10 +1,13 @@
 package com.github.davidmoten.viem;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -42,7 +45,11 @@ final class Algorithm {
 
 	// descending order of identifier confidence
 	static <K, V, M> int compare(ViemSystem<K, V, M> system, K a, K b) {
-		return system.keyGreaterThan(a, b) ? -1 : 1;
+		if (a.equals(b)) {
+			return 0;
+		} else {
+			return system.keyGreaterThan(a, b) ? -1 : 1;
+		}
 	}
 
 	static <K, V, M> Map<K, V> common(EntityState<K, V, M> a, EntityState<K, V, M> b) {
@@ -101,42 +108,411 @@ final class Algorithm {
 	}
 
 	static <K, V, M> MergeResult<K, V, M> merge(ViemSystem<K, V, M> system, EntityState<K, V, M> e) {
-		Set<EntityState<K, V, M>> set = new HashSet<>();
-		List<EntityState<K, V, M>> matches = new ArrayList<>(system.matches(e.identifiers()));
-		Collections.sort(matches, //
-				(a, b) -> {
-					K x = Collections.max(a.identifiers().keySet(), comparator(system));
-					K y = Collections.max(b.identifiers().keySet(), comparator(system));
-					return compare(system, x, y);
-				});
-		EntityState<K, V, M> p = e;
-		for (EntityState<K, V, M> f : matches) {
-			Map<K, V> i1 = common(p, f);
-			Map<K, Pair<V>> i2 = conflicting(p, f);
-			Map<K, V> i3 = exclusive(p, f);
-			EntityState<K, V, M> min = min(system, p, f);
-			EntityState<K, V, M> max = max(system, p, f);
-			if (greaterThan(system, i1.keySet(), i2.keySet()) && mergeable(system, p, f)) {
-				Map<K, V> ids = new HashMap<>(max.identifiers());
-				ids.putAll(i3);
-				M metadata = system.merge(p.metadata(), f.metadata());
-				EntityState<K, V, M> next = system.createEntityState(ids, metadata);
-				p = next;
+		return merge(system, e, system.matches(e.identifiers()));
+	}
+	// matches must be the result of system.matches(e.identifiers()). Equivalent to
+	// the algorithm in the README but computes the common, conflicting and
+	// exclusive identifiers of p and f in single passes without building maps,
+	// compares keys by integer rank (see ViemSystem.keyRank) and sorts the matches
+	// on a cached rank per match using per-thread scratch space
+	static <K, V, M> MergeResult<K, V, M> merge(ViemSystem<K, V, M> system, EntityState<K, V, M> e,
+			Set<EntityState<K, V, M>> systemMatches) {
+		if (systemMatches.isEmpty()) {
+			return new MergeResult<K, V, M>(Collections.emptyList(), Collections.singleton(e),
+					Collections.emptyMap());
+		}
+		if (systemMatches.size() == 1) {
+			EntityState<K, V, M> f = systemMatches.iterator().next();
+			if (f.identifiers().equals(e.identifiers())) {
+				EntityState<K, V, M> merged = mergeSameIdentifiers(system, e, f);
+				return new MergeResult<K, V, M>(Collections.singletonList(f), Collections.singleton(merged),
+						Collections.singletonMap(merged, f));
+			}
+		}
+		Scratch scratch = Scratch.acquire();
+		try {
+			Ranks ranks = scratch.ranks(system, e, systemMatches);
+			List<EntityState<K, V, M>> matches = sort(scratch, ranks, systemMatches);
+			Set<EntityState<K, V, M>> set = null;
+			Map<EntityState<K, V, M>, EntityState<K, V, M>> origins = null;
+			EntityState<K, V, M> p = e;
+			// the match p descends from, null while p only carries identifiers of e
+			EntityState<K, V, M> pOrigin = null;
+			for (EntityState<K, V, M> f : matches) {
+				EntityState<K, V, M> min;
+				EntityState<K, V, M> max;
+				if (system.metadataGreaterThan(p.metadata(), f.metadata())) {
+					min = f;
+					max = p;
+				} else {
+					min = p;
+					max = f;
+				}
+				if (commonGreaterThanConflicting(ranks, p.identifiers(), f.identifiers())
+						&& mergeable(system, p, f)) {
+					// add the exclusive identifiers of min to max
+					Map<K, V> ids = union(max.identifiers(), min.identifiers());
+					M metadata = system.merge(p.metadata(), f.metadata());
+					p = system.createEntityState(ids, metadata);
+					// descend from whichever brings more identifiers
+					if (pOrigin == null || f.identifiers().size() > pOrigin.identifiers().size()) {
+						pOrigin = f;
+					}
+				} else {
+					// drop the common identifiers from min
+					EntityState<K, V, M> minOrigin = min == f ? f : pOrigin;
+					Map<K, V> ids = withoutCommon(min.identifiers(), max.identifiers());
+					if (!ids.isEmpty()) {
+						if (set == null) {
+							set = new HashSet<>();
+							origins = new IdentityHashMap<>();
+						}
+						EntityState<K, V, M> split = system.createEntityState(ids, min.metadata());
+						set.add(split);
+						if (minOrigin != null) {
+							origins.put(split, minOrigin);
+						}
+					}
+					if (max == f) {
+						pOrigin = f;
+					}
+					p = max;
+				}
+			}
+			if (set == null) {
+				return new MergeResult<K, V, M>(matches, Collections.singleton(p),
+						pOrigin == null ? Collections.emptyMap() : Collections.singletonMap(p, pOrigin));
 			} else {
-				Map<K, V> ids = new HashMap<>();
-				ids.putAll(min.identifiers());
-				for (K k : i1.keySet()) {
-					ids.remove(k);
+				set.add(p);
+				if (pOrigin != null) {
+					origins.put(p, pOrigin);
 				}
-				if (!ids.isEmpty()) {
-					EntityState<K, V, M> next = system.createEntityState(ids, min.metadata());
-					set.add(next);
+				return new MergeResult<K, V, M>(matches, set, origins);
+			}
+		} finally {
+			scratch.release();
+		}
+	}
+
+	// the result of merging e into its only match f where f has the same
+	// identifiers as e. There are no conflicting identifiers so this is the same
+	// as the general case but without ranking keys or building identifier maps
+	static <K, V, M> EntityState<K, V, M> mergeSameIdentifiers(ViemSystem<K, V, M> system,
+			EntityState<K, V, M> e, EntityState<K, V, M> f) {
+		if (mergeable(system, e, f)) {
+			return system.createEntityState(e.identifiers(), system.merge(e.metadata(), f.metadata()));
+		} else {
+			return max(system, e, f);
+		}
+	}
+
+	// same as greaterThan(system, common(a, b).keySet(), conflicting(a, b).keySet())
+	private static <K, V> boolean commonGreaterThanConflicting(Ranks ranks, Map<K, V> a, Map<K, V> b) {
+		if (a instanceof LongIdentifiers && b instanceof LongIdentifiers) {
+			return commonGreaterThanConflicting(ranks, (LongIdentifiers) a, (LongIdentifiers) b);
+		}
+		int common = Integer.MIN_VALUE;
+		int conflicting = Integer.MIN_VALUE;
+		boolean hasConflicting = false;
+		for (Entry<K, V> entry : a.entrySet()) {
+			V bValue = b.get(entry.getKey());
+			if (bValue != null) {
+				int rank = ranks.rank(entry.getKey());
+				if (entry.getValue().equals(bValue)) {
+					common = Math.max(common, rank);
+				} else {
+					conflicting = Math.max(conflicting, rank);
+					hasConflicting = true;
 				}
-				p = max;
 			}
 		}
-		set.add(p);
-		return new MergeResult<K, V, M>(matches, set);
+		return !hasConflicting || common > conflicting;
+	}
+
+	// primitive version of the above that visits only the keys present in both
+	private static boolean commonGreaterThanConflicting(Ranks ranks, LongIdentifiers a, LongIdentifiers b) {
+		int common = Integer.MIN_VALUE;
+		int conflicting = Integer.MIN_VALUE;
+		boolean hasConflicting = false;
+		for (long m = a.mask() & b.mask(); m != 0; m &= m - 1) {
+			int key = Long.numberOfTrailingZeros(m);
+			int rank = ranks.rank(key);
+			if (a.common(b, key)) {
+				common = Math.max(common, rank);
+			} else {
+				conflicting = Math.max(conflicting, rank);
+				hasConflicting = true;
+			}
+		}
+		return !hasConflicting || common > conflicting;
+	}
+
+	// the identifiers of max plus the identifiers of min whose keys are not in max
+	@SuppressWarnings("unchecked")
+	private static <K, V> Map<K, V> union(Map<K, V> max, Map<K, V> min) {
+		if (max instanceof LongIdentifiers && min instanceof LongIdentifiers) {
+			return (Map<K, V>) LongIdentifiers.union((LongIdentifiers) max, (LongIdentifiers) min);
+		}
+		Map<K, V> ids = new HashMap<>(max);
+		for (Entry<K, V> entry : min.entrySet()) {
+			if (!max.containsKey(entry.getKey())) {
+				ids.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return ids;
+	}
+
+	// the identifiers of min that are not common with max
+	@SuppressWarnings("unchecked")
+	private static <K, V> Map<K, V> withoutCommon(Map<K, V> min, Map<K, V> max) {
+		if (min instanceof LongIdentifiers && max instanceof LongIdentifiers) {
+			return (Map<K, V>) LongIdentifiers.withoutCommon((LongIdentifiers) min, (LongIdentifiers) max);
+		}
+		Map<K, V> ids = new HashMap<>();
+		for (Entry<K, V> entry : min.entrySet()) {
+			if (!entry.getValue().equals(max.get(entry.getKey()))) {
+				ids.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return ids;
+	}
+
+	// stable sort of the matches by descending rank of the weakest key of each
+	// match (the same order as sorting by Collections.max(keys,
+	// comparator(system)) under comparator(system)), computing that rank once per
+	// match
+	private static <K, V, M> List<EntityState<K, V, M>> sort(Scratch scratch, Ranks ranks,
+			Set<EntityState<K, V, M>> matches) {
+		int n = matches.size();
+		if (n == 1) {
+			return Collections.singletonList(matches.iterator().next());
+		}
+		Keyed[] keyed = scratch.keyed(n);
+		int i = 0;
+		for (EntityState<K, V, M> es : matches) {
+			keyed[i].rank = weakestRank(ranks, es.identifiers());
+			keyed[i].entityState = es;
+			i++;
+		}
+		Arrays.sort(keyed, 0, n, Keyed.DESCENDING_RANK);
+		List<EntityState<K, V, M>> list = new ArrayList<>(n);
+		for (i = 0; i < n; i++) {
+			@SuppressWarnings("unchecked")
+			EntityState<K, V, M> es = (EntityState<K, V, M>) keyed[i].entityState;
+			list.add(es);
+			keyed[i].entityState = null;
+		}
+		return list;
+	}
+
+	private static <K, V> int weakestRank(Ranks ranks, Map<K, V> identifiers) {
+		int weakest = Integer.MAX_VALUE;
+		if (identifiers instanceof LongIdentifiers) {
+			for (long m = ((LongIdentifiers) identifiers).mask(); m != 0; m &= m - 1) {
+				weakest = Math.min(weakest, ranks.rank(Long.numberOfTrailingZeros(m)));
+			}
+		} else {
+			for (K key : identifiers.keySet()) {
+				weakest = Math.min(weakest, ranks.rank(key));
+			}
+		}
+		return weakest;
+	}
+
+	private static final class Keyed {
+
+		static final Comparator<Keyed> DESCENDING_RANK = (a, b) -> Integer.compare(b.rank, a.rank);
+
+		int rank;
+		Object entityState;
+	}
+
+	// ranks of the keys of a system for the duration of a merge, larger is more
+	// reliable
+	private static final class Ranks {
+
+		private static final int SMALL_INTS = 64;
+
+		ViemSystem<?, ?, ?> system;
+
+		// true if the system declares ranks via keyRank
+		boolean declared;
+
+		// keys derived from keyGreaterThan in ascending order of reliability so
+		// that the rank of a key is its position, used when not declared
+		Object[] keys = new Object[8];
+		int size;
+
+		// ranks by small int key (for example the keys of LongIdentifiers)
+		final int[] smallInts = new int[SMALL_INTS];
+
+		// identifies the rules the derived ranks belong to (see rules), weak so
+		// that the per-thread cache does not retain a system
+		WeakReference<Object> derivedFor = new WeakReference<>(null);
+
+		Ranks() {
+			Arrays.fill(smallInts, Integer.MIN_VALUE);
+		}
+
+		// ensures that every key of the identifiers has a derived rank
+		@SuppressWarnings("unchecked")
+		<K> void prepare(ViemSystem<K, ?, ?> system, Map<K, ?> identifiers) {
+			Object rules = rules(system);
+			if (rules != derivedFor.get()) {
+				Arrays.fill(keys, 0, size, null);
+				Arrays.fill(smallInts, Integer.MIN_VALUE);
+				size = 0;
+				derivedFor = new WeakReference<>(rules);
+			}
+			ViemSystem<Object, ?, ?> s = (ViemSystem<Object, ?, ?>) system;
+			if (identifiers instanceof LongIdentifiers) {
+				// avoid boxing keys that are already ranked
+				for (long m = ((LongIdentifiers) identifiers).mask(); m != 0; m &= m - 1) {
+					int key = Long.numberOfTrailingZeros(m);
+					if (smallInts[key] == Integer.MIN_VALUE) {
+						insert(s, key);
+					}
+				}
+			} else {
+				for (K key : identifiers.keySet()) {
+					if (indexOf(key) < 0) {
+						insert(s, key);
+					}
+				}
+			}
+		}
+
+		// returns an object that identifies the key rules of the system. A batch
+		// has the rules of its base system and every version of a persistent
+		// system has the rules of the empty system it descends from, so the ranks
+		// derived for a system survive the batches of mergeAll and the new
+		// version made by each merge. Other systems are their own rules
+		private static Object rules(ViemSystem<?, ?, ?> system) {
+			if (system instanceof Batch) {
+				return rules(((Batch<?, ?, ?>) system).base());
+			} else if (system instanceof PersistentViemSystem) {
+				return ((PersistentViemSystem<?, ?, ?>) system).rules();
+			} else {
+				return system;
+			}
+		}
+
+		private int indexOf(Object key) {
+			for (int i = 0; i < size; i++) {
+				if (keys[i].equals(key)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		// insertion preserving ascending order of reliability, renumbers the cached
+		// small int ranks
+		private void insert(ViemSystem<Object, ?, ?> system, Object key) {
+			int i = size;
+			while (i > 0 && system.keyGreaterThan(keys[i - 1], key)) {
+				i--;
+			}
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+			}
+			System.arraycopy(keys, i, keys, i + 1, size - i);
+			keys[i] = key;
+			size++;
+			Arrays.fill(smallInts, Integer.MIN_VALUE);
+			for (int j = 0; j < size; j++) {
+				if (keys[j] instanceof Integer) {
+					int k = (Integer) keys[j];
+					if (k >= 0 && k < SMALL_INTS) {
+						smallInts[k] = j;
+					}
+				}
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		int rank(Object key) {
+			if (declared) {
+				return ((ViemSystem<Object, ?, ?>) system).keyRank(key);
+			}
+			int i = indexOf(key);
+			if (i < 0) {
+				throw new IllegalStateException("key not prepared: " + key);
+			}
+			return i;
+		}
+
+		int rank(int key) {
+			if (declared) {
+				@SuppressWarnings("unchecked")
+				ViemSystem<Integer, ?, ?> s = (ViemSystem<Integer, ?, ?>) system;
+				return s.keyRank(key);
+			}
+			return smallInts[key];
+		}
+	}
+
+	// per-thread scratch space for sorting matches and ranking keys
+	private static final class Scratch {
+
+		private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+		Keyed[] keyed = new Keyed[0];
+		final Ranks ranks = new Ranks();
+		boolean inUse;
+
+		static Scratch acquire() {
+			Scratch s = SCRATCH.get();
+			if (s.inUse) {
+				// reentrant call (for example from a user supplied rule)
+				s = new Scratch();
+			}
+			s.inUse = true;
+			return s;
+		}
+
+		<K, V, M> Ranks ranks(ViemSystem<K, V, M> system, EntityState<K, V, M> e,
+				Set<EntityState<K, V, M>> matches) {
+			K key = e.identifiers().keySet().iterator().next();
+			ranks.system = system;
+			ranks.declared = system.keyRank(key) != ViemSystem.UNRANKED;
+			if (!ranks.declared) {
+				ranks.prepare(system, e.identifiers());
+				for (EntityState<K, V, M> es : matches) {
+					ranks.prepare(system, es.identifiers());
+				}
+			}
+			return ranks;
+		}
+
+		Keyed[] keyed(int n) {
+			if (keyed.length < n) {
+				Keyed[] a = Arrays.copyOf(keyed, Math.max(n, keyed.length * 2));
+				for (int i = keyed.length; i < a.length; i++) {
+					a[i] = new Keyed();
+				}
+				keyed = a;
+			}
+			return keyed;
+		}
+
+		void release() {
+			// don't retain a reference to the system
+			ranks.system = null;
+			inUse = false;
+		}
+	}
+
+	// the result of merging each entity-state in turn against a view of the
+	// system updated by the previous merges, as a single update to the system
+	static <K, V, M> MergeResult<K, V, M> mergeAll(ViemSystem<K, V, M> system,
+			List<EntityState<K, V, M>> entityStates) {
+		Batch<K, V, M> batch = new Batch<>(system);
+		for (EntityState<K, V, M> e : entityStates) {
+			MergeResult<K, V, M> r = merge(batch, e);
+			batch.update(r.matches, r.newEntityStates);
+		}
+		return batch.result();
 	}
 
 	private static <K, V, M> boolean mergeable(ViemSystem<K, V, M> system, EntityState<K, V, M> p,
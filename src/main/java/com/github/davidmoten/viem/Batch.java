@@ -0,0 +1,139 @@
+package com.github.davidmoten.viem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * A view of a base system with the changes made by a batch of merges overlaid
+ * on it. The base system is not modified, instead the overlay records the
+ * owner of each identifier key-value touched by the batch (or null if the
+ * key-value has been released) and {@link #result()} returns the net change to
+ * apply to the base system in one update.
+ *
+ * @param <K> identifier key type
+ * @param <V> identifier value type
+ * @param <M> metadata type
+ */
+final class Batch<K, V, M> implements ViemSystem<K, V, M> {
+
+    private final ViemSystem<K, V, M> base;
+
+    // key -> value -> owner, null owner means the key-value has been released
+    private final Map<K, Map<V, EntityState<K, V, M>>> overlay = new HashMap<>();
+
+    // entity-states created by the batch and not since removed (by identity)
+    private final Set<EntityState<K, V, M>> added = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // entity-states of the base system removed by the batch
+    private final List<EntityState<K, V, M>> removed = new ArrayList<>();
+
+    Batch(ViemSystem<K, V, M> base) {
+        this.base = base;
+    }
+
+    ViemSystem<K, V, M> base() {
+        return base;
+    }
+
+    MergeResult<K, V, M> result() {
+        return new MergeResult<K, V, M>(removed, new HashSet<>(added));
+    }
+
+    @Override
+    public Iterable<EntityState<K, V, M>> entityStates() {
+        Set<EntityState<K, V, M>> set = new HashSet<>();
+        for (EntityState<K, V, M> es : base.entityStates()) {
+            set.add(es);
+        }
+        set.removeAll(removed);
+        set.addAll(added);
+        return set;
+    }
+
+    @Override
+    public Set<EntityState<K, V, M>> matches(Map<K, V> identifiers) {
+        Set<EntityState<K, V, M>> set = new HashSet<>();
+        // add in identifier order so that iteration order matches that of an
+        // indexed base system that has had the batch applied
+        for (Entry<K, V> entry : identifiers.entrySet()) {
+            Map<V, EntityState<K, V, M>> values = overlay.get(entry.getKey());
+            if (values != null && values.containsKey(entry.getValue())) {
+                EntityState<K, V, M> es = values.get(entry.getValue());
+                if (es != null) {
+                    set.add(es);
+                }
+            } else {
+                set.addAll(base.matches(Collections.singletonMap(entry.getKey(), entry.getValue())));
+            }
+        }
+        return set;
+    }
+
+    @Override
+    public ViemSystem<K, V, M> update(List<EntityState<K, V, M>> matches,
+            Set<EntityState<K, V, M>> newEntityStates) {
+        for (EntityState<K, V, M> es : matches) {
+            if (!added.remove(es)) {
+                removed.add(es);
+            }
+            for (Entry<K, V> entry : es.identifiers().entrySet()) {
+                Map<V, EntityState<K, V, M>> values = overlay.computeIfAbsent(entry.getKey(), k -> new HashMap<>());
+                EntityState<K, V, M> owner = values.get(entry.getValue());
+                if (owner == null || owner.equals(es)) {
+                    values.put(entry.getValue(), null);
+                }
+            }
+        }
+        for (EntityState<K, V, M> es : newEntityStates) {
+            added.add(es);
+            for (Entry<K, V> entry : es.identifiers().entrySet()) {
+                overlay.computeIfAbsent(entry.getKey(), k -> new HashMap<>()) //
+                        .put(entry.getValue(), es);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public boolean keyGreaterThan(K a, K b) {
+        return base.keyGreaterThan(a, b);
+    }
+
+    @Override
+    public int keyRank(K key) {
+        return base.keyRank(key);
+    }
+
+    @Override
+    public boolean metadataGreaterThan(M a, M b) {
+        return base.metadataGreaterThan(a, b);
+    }
+
+    @Override
+    public boolean mergeable(M a, M b) {
+        return base.mergeable(a, b);
+    }
+
+    @Override
+    public M merge(M a, M b) {
+        return base.merge(a, b);
+    }
+
+    @Override
+    public EntityState<K, V, M> createEntityState(Map<K, V> identifiers, M metadata) {
+        return base.createEntityState(identifiers, metadata);
+    }
+
+    @Override
+    public void checkingMetadataMergeability(EntityState<K, V, M> a, EntityState<K, V, M> b) {
+        base.checkingMetadataMergeability(a, b);
+    }
+
+}
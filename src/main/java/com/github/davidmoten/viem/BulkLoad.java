@@ -0,0 +1,190 @@
+package com.github.davidmoten.viem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Loads an archive of entity-states into a system in bulk, for example to
+ * rebuild a system from a day of reports on a cold start.
+ *
+ * <p>
+ * The entity-states are sorted into ascending metadata order (by
+ * {@link ViemSystem#metadataGreaterThan(Object, Object)}, stable so that
+ * entity-states with equal metadata keep their order in the archive) and then
+ * resolved as by {@link ParallelMerge}: the archive is partitioned into the
+ * connected components of its identifier graph, each component is resolved
+ * in metadata order on a {@link ForkJoinPool} and the system is updated once
+ * with the entity-states of all components. The result is the same as merging
+ * the sorted entity-states one at a time with {@link ViemSystem#merge}, but
+ * the system and its index are built in one pass rather than updated per
+ * report.
+ *
+ * <p>
+ * If the system is empty (a cold start) it is not asked for matches at all and
+ * an entity-state that shares no identifiers with any other in the archive is
+ * added as is. Parallelism is limited by the largest component, which is
+ * resolved on a single thread.
+ *
+ * <p>
+ * As for {@link ParallelMerge} the reads of a non-empty system must be safe
+ * from multiple threads when not being written to and the rules of the system
+ * must be thread-safe.
+ */
+public final class BulkLoad {
+
+    // the size below which a range is sorted on one thread
+    private static final int SORT_THRESHOLD = 8192;
+
+    private BulkLoad() {
+        // prevent instantiation
+    }
+
+    /**
+     * Loads the given entity-states into the system using the common
+     * {@link ForkJoinPool}.
+     *
+     * @param <K>          identifier key type
+     * @param <V>          identifier value type
+     * @param <M>          metadata type
+     * @param system       the system to load into, typically empty
+     * @param entityStates entity-states to load in any order
+     * @return the system after the load
+     */
+    public static <K, V, M> ViemSystem<K, V, M> load(ViemSystem<K, V, M> system,
+            Collection<EntityState<K, V, M>> entityStates) {
+        return load(system, entityStates, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Loads the given entity-states into the system using the given pool.
+     *
+     * @param <K>          identifier key type
+     * @param <V>          identifier value type
+     * @param <M>          metadata type
+     * @param system       the system to load into, typically empty
+     * @param entityStates entity-states to load in any order
+     * @param pool         pool used to sort, match and resolve the components
+     * @return the system after the load
+     */
+    public static <K, V, M> ViemSystem<K, V, M> load(ViemSystem<K, V, M> system,
+            Collection<EntityState<K, V, M>> entityStates, ForkJoinPool pool) {
+        MergeResult<K, V, M> r = resolve(system, sort(system, entityStates, pool), pool);
+        return system.update(r.matches, r.newEntityStates);
+    }
+
+    // returns the entity-states in ascending metadata order, equal metadata in
+    // iteration order
+    static <K, V, M> List<EntityState<K, V, M>> sort(ViemSystem<K, V, M> system,
+            Collection<EntityState<K, V, M>> entityStates, ForkJoinPool pool) {
+        @SuppressWarnings("unchecked")
+        EntityState<K, V, M>[] a = entityStates.toArray(new EntityState[0]);
+        Comparator<EntityState<K, V, M>> comparator = (x, y) -> {
+            if (system.metadataGreaterThan(x.metadata(), y.metadata())) {
+                return 1;
+            } else if (system.metadataGreaterThan(y.metadata(), x.metadata())) {
+                return -1;
+            } else {
+                return 0;
+            }
+        };
+        // Arrays.parallelSort would split the work by the parallelism of the
+        // common pool (sorting sequentially if that is 1) whatever pool it is
+        // called from, so sort with an explicit task in the given pool
+        pool.invoke(new Sort<>(a, a.clone(), 0, a.length, comparator));
+        return Arrays.asList(a);
+    }
+
+    static <K, V, M> MergeResult<K, V, M> resolve(ViemSystem<K, V, M> system,
+            List<EntityState<K, V, M>> entityStates, ForkJoinPool pool) {
+        boolean empty = !system.entityStates().iterator().hasNext();
+        List<List<EntityState<K, V, M>>> components = ParallelMerge.components(system, entityStates, pool,
+                !empty);
+        @SuppressWarnings("unchecked")
+        MergeResult<K, V, M>[] results = new MergeResult[components.size()];
+        ParallelMerge.forEach(pool, components.size(), i -> {
+            List<EntityState<K, V, M>> component = components.get(i);
+            if (empty && component.size() == 1) {
+                // nothing to merge with
+                results[i] = new MergeResult<K, V, M>(Collections.emptyList(),
+                        Collections.singleton(component.get(0)));
+            } else {
+                results[i] = Algorithm.mergeAll(system, component);
+            }
+        });
+        int size = 0;
+        for (MergeResult<K, V, M> r : results) {
+            size += r.newEntityStates.size();
+        }
+        List<EntityState<K, V, M>> removed = new ArrayList<>();
+        Set<EntityState<K, V, M>> added = new HashSet<>(Math.max(16, (int) (size / 0.75f) + 1));
+        for (MergeResult<K, V, M> r : results) {
+            removed.addAll(r.matches);
+            added.addAll(r.newEntityStates);
+        }
+        return new MergeResult<K, V, M>(removed, added);
+    }
+
+    // stable merge sort of a[start, finish) that sorts the halves in parallel
+    // and merges them through the same range of buffer
+    private static final class Sort<T> extends RecursiveAction {
+
+        private static final long serialVersionUID = 4387917250938641208L;
+
+        private final T[] a;
+        private final T[] buffer;
+        private final int start;
+        private final int finish;
+        private final transient Comparator<? super T> comparator;
+
+        Sort(T[] a, T[] buffer, int start, int finish, Comparator<? super T> comparator) {
+            this.a = a;
+            this.buffer = buffer;
+            this.start = start;
+            this.finish = finish;
+            this.comparator = comparator;
+        }
+
+        @Override
+        protected void compute() {
+            if (finish - start <= SORT_THRESHOLD) {
+                // stable
+                Arrays.sort(a, start, finish, comparator);
+            } else {
+                int middle = (start + finish) >>> 1;
+                invokeAll(new Sort<>(a, buffer, start, middle, comparator),
+                        new Sort<>(a, buffer, middle, finish, comparator));
+                merge(middle);
+            }
+        }
+
+        private void merge(int middle) {
+            if (comparator.compare(a[middle - 1], a[middle]) <= 0) {
+                // already in order
+                return;
+            }
+            System.arraycopy(a, start, buffer, start, finish - start);
+            int i = start;
+            int j = middle;
+            int k = start;
+            while (i < middle && j < finish) {
+                // ties from the left half first to keep the sort stable
+                if (comparator.compare(buffer[j], buffer[i]) < 0) {
+                    a[k++] = buffer[j++];
+                } else {
+                    a[k++] = buffer[i++];
+                }
+            }
+            System.arraycopy(buffer, i, a, k, middle - i);
+            System.arraycopy(buffer, j, a, k + middle - i, finish - j);
+        }
+    }
+
+}
@@ -0,0 +1,203 @@
+package com.github.davidmoten.viem;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread-safe in-memory {@link ViemSystem} that maintains an inverted index
+ * from each identifier key-value to the entity-state that owns it (like
+ * {@link IndexedViemSystem}) and guards the index with striped locks.
+ *
+ * <p>
+ * A call to {@link #merge(EntityState)} locks only the stripes of the
+ * identifiers of the arriving entity-state and of its matches, acquiring the
+ * stripes in ascending order so that concurrent merges cannot deadlock. Merges
+ * that touch disjoint stripes run in parallel. Every write of an index entry
+ * happens while holding the stripe of that entry so no key-value can be claimed
+ * by two concurrent merges.
+ *
+ * <p>
+ * {@link #matches(Map)} and {@link #entityStates()} can be called without
+ * locking and are weakly consistent. Subclasses supply the rules of the system
+ * which must be thread-safe.
+ *
+ * @param <K> identifier key type
+ * @param <V> identifier value type
+ * @param <M> metadata type
+ */
+public abstract class ConcurrentViemSystem<K, V, M> implements ViemSystem<K, V, M> {
+
+    private static final int DEFAULT_STRIPES = 1024;
+
+    private final Set<EntityState<K, V, M>> entityStates = ConcurrentHashMap.newKeySet();
+
+    // key -> value -> owning entity-state
+    private final Map<K, Map<V, EntityState<K, V, M>>> index = new ConcurrentHashMap<>();
+
+    private final ReentrantLock[] locks;
+
+    private final int mask;
+
+    protected ConcurrentViemSystem() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param stripes number of locks guarding the identifier index, is rounded
+     *                up to a power of two
+     */
+    protected ConcurrentViemSystem(int stripes) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("stripes must be positive");
+        }
+        int n = Integer.highestOneBit(stripes);
+        if (n < stripes) {
+            n = n << 1;
+        }
+        this.locks = new ReentrantLock[n];
+        for (int i = 0; i < n; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        this.mask = n - 1;
+    }
+
+    @Override
+    public Iterable<EntityState<K, V, M>> entityStates() {
+        return Collections.unmodifiableSet(entityStates);
+    }
+
+    @Override
+    public Set<EntityState<K, V, M>> matches(Map<K, V> identifiers) {
+        Set<EntityState<K, V, M>> set = new HashSet<>();
+        for (Entry<K, V> entry : identifiers.entrySet()) {
+            Map<V, EntityState<K, V, M>> values = index.get(entry.getKey());
+            if (values != null) {
+                EntityState<K, V, M> es = values.get(entry.getValue());
+                if (es != null) {
+                    set.add(es);
+                }
+            }
+        }
+        return set;
+    }
+
+    @Override
+    public ViemSystem<K, V, M> merge(EntityState<K, V, M> entity) {
+        int[] stripes = stripes(entity, Collections.emptySet());
+        while (true) {
+            int[] locked = stripes;
+            lock(locked);
+            try {
+                // matches are stable while the stripes of the entity identifiers are held
+                Set<EntityState<K, V, M>> matches = matches(entity.identifiers());
+                int[] required = stripes(entity, matches);
+                if (Stripes.containsAll(locked, required)) {
+                    MergeResult<K, V, M> r = Algorithm.merge(this, entity, matches);
+                    apply(r.matches, r.newEntityStates);
+                    return this;
+                }
+                // relock in order including the stripes of the matches
+                stripes = Stripes.union(locked, required);
+            } finally {
+                unlock(locked);
+            }
+        }
+    }
+
+    /**
+     * Merges each of the given entity-states in turn. Unlike the default
+     * implementation the merges are not combined into a single update so that
+     * they interleave safely with concurrent merges.
+     *
+     * @param entityStates entity-states to merge in arrival order
+     * @return this
+     */
+    @Override
+    public ViemSystem<K, V, M> mergeAll(List<EntityState<K, V, M>> entityStates) {
+        for (EntityState<K, V, M> es : entityStates) {
+            merge(es);
+        }
+        return this;
+    }
+
+    @Override
+    public ViemSystem<K, V, M> update(List<EntityState<K, V, M>> matches,
+            Set<EntityState<K, V, M>> newEntityStates) {
+        int[] stripes = Stripes.union(stripes(null, matches), stripes(null, newEntityStates));
+        lock(stripes);
+        try {
+            apply(matches, newEntityStates);
+        } finally {
+            unlock(stripes);
+        }
+        return this;
+    }
+
+    private void apply(Collection<EntityState<K, V, M>> matches, Set<EntityState<K, V, M>> newEntityStates) {
+        for (EntityState<K, V, M> es : matches) {
+            if (entityStates.remove(es)) {
+                for (Entry<K, V> entry : es.identifiers().entrySet()) {
+                    Map<V, EntityState<K, V, M>> values = index.get(entry.getKey());
+                    if (values != null) {
+                        values.remove(entry.getValue(), es);
+                    }
+                }
+            }
+        }
+        for (EntityState<K, V, M> es : newEntityStates) {
+            entityStates.add(es);
+            for (Entry<K, V> entry : es.identifiers().entrySet()) {
+                index.computeIfAbsent(entry.getKey(), k -> new ConcurrentHashMap<>()) //
+                        .put(entry.getValue(), es);
+            }
+        }
+    }
+
+    private int stripe(K key, V value) {
+        int h = key.hashCode() * 31 + value.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    // returns the sorted distinct stripes of the identifiers of entity and states
+    private int[] stripes(EntityState<K, V, M> entity, Collection<EntityState<K, V, M>> states) {
+        int n = entity == null ? 0 : entity.identifiers().size();
+        for (EntityState<K, V, M> es : states) {
+            n += es.identifiers().size();
+        }
+        int[] a = new int[n];
+        int i = 0;
+        if (entity != null) {
+            for (Entry<K, V> entry : entity.identifiers().entrySet()) {
+                a[i++] = stripe(entry.getKey(), entry.getValue());
+            }
+        }
+        for (EntityState<K, V, M> es : states) {
+            for (Entry<K, V> entry : es.identifiers().entrySet()) {
+                a[i++] = stripe(entry.getKey(), entry.getValue());
+            }
+        }
+        return Stripes.distinct(a, i);
+    }
+
+    private void lock(int[] stripes) {
+        for (int s : stripes) {
+            locks[s].lock();
+        }
+    }
+
+    private void unlock(int[] stripes) {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            locks[stripes[i]].unlock();
+        }
+    }
+
+}
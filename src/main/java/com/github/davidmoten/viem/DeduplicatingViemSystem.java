@@ -0,0 +1,217 @@
+package com.github.davidmoten.viem;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Wraps a {@link ViemSystem} so that a report repeated by several receivers is
+ * only merged once.
+ *
+ * <p>
+ * A bounded least-recently-used cache maps the identifiers of each merged
+ * report to its metadata and to the entity-state that the merge produced. When
+ * a report arrives with the same identifiers and equal metadata (the metadata
+ * hash code is compared first as a fingerprint) and that entity-state is still
+ * in the system then merging the report again would change nothing, so
+ * {@link #merge(EntityState)} returns without calling
+ * {@link ViemSystem#matches(Map)}, running the algorithm or updating the
+ * wrapped system. This relies on merging metadata being idempotent (merging a
+ * report into the entity-state it produced gives that entity-state back).
+ *
+ * <p>
+ * Optionally a report for the same identifiers whose metadata is not greater
+ * (by {@link #metadataGreaterThan(Object, Object)}) than that of the cached
+ * entity-state is skipped as well. This changes the result (information only
+ * in the stale report is discarded) so is off by default.
+ *
+ * <p>
+ * An entry is invalidated when its entity-state is removed by an update that
+ * passes through this wrapper, so the wrapped system must not be changed
+ * directly (call {@link #clear()} if it has been). {@link #mergeAll(List)} is
+ * not short-circuited but invalidates entries as usual.
+ *
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @param <K> identifier key type
+ * @param <V> identifier value type
+ * @param <M> metadata type
+ */
+public final class DeduplicatingViemSystem<K, V, M> extends ForwardingViemSystem<K, V, M> {
+
+    private final int capacity;
+    private final boolean skipStale;
+
+    // report identifiers -> cached report, in access order
+    private final LinkedHashMap<Map<K, V>, Cached<K, V, M>> cache;
+
+    // produced entity-state (equality by identifiers) -> report identifiers
+    private final Map<EntityState<K, V, M>, Map<K, V>> keys = new HashMap<>();
+
+    // entity-states added by the most recent update
+    private Set<EntityState<K, V, M>> added;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * Constructor. Only exact duplicates are skipped.
+     *
+     * @param delegate system to wrap
+     * @param capacity maximum number of cached reports
+     */
+    public DeduplicatingViemSystem(ViemSystem<K, V, M> delegate, int capacity) {
+        this(delegate, capacity, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param delegate  system to wrap
+     * @param capacity  maximum number of cached reports
+     * @param skipStale if true then a report is also skipped if its metadata is
+     *                  not greater than that of the entity-state produced by the
+     *                  cached report with the same identifiers
+     */
+    public DeduplicatingViemSystem(ViemSystem<K, V, M> delegate, int capacity, boolean skipStale) {
+        super(delegate);
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.skipStale = skipStale;
+        this.cache = new LinkedHashMap<Map<K, V>, Cached<K, V, M>>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 4218390470117329713L;
+
+            @Override
+            protected boolean removeEldestEntry(Entry<Map<K, V>, Cached<K, V, M>> eldest) {
+                if (size() > DeduplicatingViemSystem.this.capacity) {
+                    keys.remove(eldest.getValue().entityState);
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+        };
+    }
+
+    @Override
+    public ViemSystem<K, V, M> merge(EntityState<K, V, M> entity) {
+        Cached<K, V, M> c = cache.get(entity.identifiers());
+        if (c != null && isDuplicate(c, entity.metadata())) {
+            hits++;
+            return this;
+        }
+        misses++;
+        added = null;
+        super.merge(entity);
+        if (added != null) {
+            for (EntityState<K, V, M> es : added) {
+                if (containsAll(es.identifiers(), entity.identifiers())) {
+                    put(entity, es);
+                    break;
+                }
+            }
+            added = null;
+        }
+        return this;
+    }
+
+    @Override
+    public ViemSystem<K, V, M> update(List<EntityState<K, V, M>> matches,
+            Set<EntityState<K, V, M>> newEntityStates) {
+        super.update(matches, newEntityStates);
+        for (EntityState<K, V, M> es : matches) {
+            Map<K, V> key = keys.remove(es);
+            if (key != null) {
+                cache.remove(key);
+            }
+        }
+        added = newEntityStates;
+        return this;
+    }
+
+    /**
+     * Removes every cached report. Call if the wrapped system has been changed
+     * other than through this wrapper.
+     */
+    public void clear() {
+        cache.clear();
+        keys.clear();
+    }
+
+    /**
+     * Returns the number of merges skipped because the report was a duplicate
+     * (or stale if enabled).
+     *
+     * @return the number of merges skipped
+     */
+    public long hits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of merges passed to the wrapped system.
+     *
+     * @return the number of merges not skipped
+     */
+    public long misses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of cached reports.
+     *
+     * @return the number of cached reports
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    private boolean isDuplicate(Cached<K, V, M> c, M metadata) {
+        if (c.fingerprint == metadata.hashCode() && c.metadata.equals(metadata)) {
+            return true;
+        } else {
+            return skipStale && !metadataGreaterThan(metadata, c.entityState.metadata());
+        }
+    }
+
+    private void put(EntityState<K, V, M> report, EntityState<K, V, M> es) {
+        // one cached report per entity-state so that removal invalidates it
+        Map<K, V> previous = keys.put(es, report.identifiers());
+        if (previous != null && !previous.equals(report.identifiers())) {
+            cache.remove(previous);
+        }
+        cache.put(report.identifiers(), new Cached<>(report.metadata(), es));
+    }
+
+    private static <K, V> boolean containsAll(Map<K, V> a, Map<K, V> b) {
+        if (a.size() < b.size()) {
+            return false;
+        }
+        for (Entry<K, V> entry : b.entrySet()) {
+            if (!entry.getValue().equals(a.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Cached<K, V, M> {
+        final M metadata;
+        final int fingerprint;
+        final EntityState<K, V, M> entityState;
+
+        Cached(M metadata, EntityState<K, V, M> entityState) {
+            this.metadata = metadata;
+            this.fingerprint = metadata.hashCode();
+            this.entityState = entityState;
+        }
+    }
+
+}
@@ -0,0 +1,606 @@
+package com.github.davidmoten.viem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Wraps a {@link ViemSystem} so that its state survives a restart.
+ *
+ * <p>
+ * Every {@link #update(List, Set)} (and so every merge) is appended to a
+ * write-ahead log in the given directory before it is applied to the wrapped
+ * system. Each log record holds a sequence number, the removed and added
+ * entity-states (serialized with the given serializers) and a CRC32 so that a
+ * record torn by a crash is detected and discarded. Log writes are made durable
+ * by group commit: either each update waits for an fsync that it shares with
+ * any concurrent updates, or updates return immediately and the log is fsynced
+ * on a fixed interval (bounding the updates lost in a crash by that interval).
+ *
+ * <p>
+ * Every {@code snapshotInterval} updates (and on {@link #snapshot()}) the
+ * entity-states of the system are written to a new snapshot file that
+ * atomically replaces the previous one and, once the directory has been
+ * fsynced so that the replacement is durable, the log is truncated. On
+ * {@link #open} the latest snapshot is loaded into the (empty) wrapped system
+ * and the log records after it are replayed so recovery time is bounded by the
+ * snapshot size plus the log tail.
+ *
+ * <p>
+ * Updates are serialized by the wrapper and {@link #merge(EntityState)} and
+ * {@link #mergeAll(List)} hold the same lock from matching through to applying
+ * their result, so concurrent merges keep the system strongly consistent. The
+ * wait for the fsync happens outside the lock. Reads made outside a merge and
+ * the rules are forwarded to the wrapped system which must be safe to use from
+ * the calling threads.
+ *
+ * <p>
+ * A snapshot is written on the thread of the update that reaches
+ * {@code snapshotInterval} (or that calls {@link #snapshot()}) while holding
+ * the update lock, so every writer stalls for the time it takes to write and
+ * fsync all the entity-states of the system. For a large system choose a
+ * large interval, or set it to zero and call {@link #snapshot()} at quiet
+ * times.
+ *
+ * @param <K> identifier key type
+ * @param <V> identifier value type
+ * @param <M> metadata type
+ */
+public final class DurableViemSystem<K, V, M> extends ForwardingViemSystem<K, V, M> implements Closeable {
+
+    static final String LOG = "log";
+    static final String SNAPSHOT = "snapshot";
+
+    private static final String SNAPSHOT_TMP = "snapshot.tmp";
+    private static final long SNAPSHOT_MAGIC = 0x5649454d534e4150L; // VIEMSNAP
+    private static final int END_OF_SNAPSHOT = -1;
+
+    // record header is payload length, crc of sequence and payload, sequence
+    private static final int RECORD_HEADER_BYTES = 16;
+
+    private static final int DEFAULT_SNAPSHOT_INTERVAL = 100_000;
+
+    // a directory cannot be opened to fsync it on Windows
+    private static final boolean WINDOWS = System.getProperty("os.name", "").toLowerCase(Locale.ROOT)
+            .startsWith("windows");
+
+    private final File directory;
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final Serializer<M> metadataSerializer;
+    private final int snapshotInterval;
+    private final FileChannel log;
+
+    // null if each update waits for its fsync
+    private final ScheduledExecutorService syncer;
+
+    // guards appends, application to the wrapped system and snapshots
+    private final Object lock = new Object();
+
+    // guards fsync of the log
+    private final Object syncLock = new Object();
+
+    // guarded by lock
+    private ByteBuffer buffer = ByteBuffer.allocate(4096);
+    private long sequence;
+    private int sinceSnapshot;
+
+    // sequence of the last record written to the log
+    private volatile long written;
+
+    // sequence of the last record known to be on the storage device, guarded by
+    // syncLock
+    private long synced;
+
+    private volatile UncheckedIOException syncFailure;
+
+    private DurableViemSystem(File directory, ViemSystem<K, V, M> system, Serializer<K> keySerializer,
+            Serializer<V> valueSerializer, Serializer<M> metadataSerializer, long syncIntervalMillis,
+            int snapshotInterval) throws IOException {
+        super(system);
+        this.directory = directory;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.metadataSerializer = metadataSerializer;
+        this.snapshotInterval = snapshotInterval;
+        Files.deleteIfExists(new File(directory, SNAPSHOT_TMP).toPath());
+        long snapshotSequence = loadSnapshot();
+        this.log = FileChannel.open(new File(directory, LOG).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.sequence = replay(snapshotSequence);
+        this.written = sequence;
+        this.synced = sequence;
+        if (syncIntervalMillis > 0) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "viem-log-sync");
+                t.setDaemon(true);
+                return t;
+            });
+            syncer.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMillis, syncIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            this.syncer = null;
+        }
+    }
+
+    /**
+     * Opens the durable system stored in the given directory, recovering the
+     * state of a previous run into the given empty system. Each update waits for
+     * the log to be fsynced and a snapshot is taken every 100,000 updates.
+     *
+     * @param <K>                identifier key type
+     * @param <V>                identifier value type
+     * @param <M>                metadata type
+     * @param directory          directory holding the log and snapshot, created
+     *                           if it does not exist
+     * @param system             empty system to wrap
+     * @param keySerializer      identifier key serializer
+     * @param valueSerializer    identifier value serializer
+     * @param metadataSerializer metadata serializer
+     * @return the durable system
+     * @throws UncheckedIOException if the directory cannot be read or written
+     */
+    public static <K, V, M> DurableViemSystem<K, V, M> open(File directory, ViemSystem<K, V, M> system,
+            Serializer<K> keySerializer, Serializer<V> valueSerializer, Serializer<M> metadataSerializer) {
+        return open(directory, system, keySerializer, valueSerializer, metadataSerializer, 0,
+                DEFAULT_SNAPSHOT_INTERVAL);
+    }
+
+    /**
+     * Opens the durable system stored in the given directory, recovering the
+     * state of a previous run into the given empty system.
+     *
+     * @param <K>                identifier key type
+     * @param <V>                identifier value type
+     * @param <M>                metadata type
+     * @param directory          directory holding the log and snapshot, created
+     *                           if it does not exist
+     * @param system             empty system to wrap
+     * @param keySerializer      identifier key serializer
+     * @param valueSerializer    identifier value serializer
+     * @param metadataSerializer metadata serializer
+     * @param syncIntervalMillis if zero each update waits for the log to be
+     *                           fsynced, otherwise updates return once written
+     *                           and the log is fsynced at this interval
+     * @param snapshotInterval   number of updates between snapshots, zero for
+     *                           snapshots only on {@link #snapshot()}
+     * @return the durable system
+     * @throws UncheckedIOException if the directory cannot be read or written
+     */
+    public static <K, V, M> DurableViemSystem<K, V, M> open(File directory, ViemSystem<K, V, M> system,
+            Serializer<K> keySerializer, Serializer<V> valueSerializer, Serializer<M> metadataSerializer,
+            long syncIntervalMillis, int snapshotInterval) {
+        if (syncIntervalMillis < 0) {
+            throw new IllegalArgumentException("syncIntervalMillis cannot be negative");
+        }
+        if (snapshotInterval < 0) {
+            throw new IllegalArgumentException("snapshotInterval cannot be negative");
+        }
+        try {
+            Files.createDirectories(directory.toPath());
+            return new DurableViemSystem<K, V, M>(directory, system, keySerializer, valueSerializer,
+                    metadataSerializer, syncIntervalMillis, snapshotInterval);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Merges the entity-state holding the update lock from matching through to
+     * applying the result, so that concurrent merges see each other's changes.
+     * The wait for the fsync of the log happens after the lock is released and
+     * is shared with concurrent updates.
+     *
+     * @param entity entity-state to merge
+     * @return this
+     */
+    @Override
+    public ViemSystem<K, V, M> merge(EntityState<K, V, M> entity) {
+        checkNotFailed();
+        long seq;
+        synchronized (lock) {
+            MergeResult<K, V, M> r = Algorithm.merge(this, entity);
+            seq = updateLocked(r.matches, r.newEntityStates);
+        }
+        awaitSync(seq);
+        return this;
+    }
+
+    /**
+     * Merges the entity-states as one update holding the update lock from
+     * matching through to applying the result, as for
+     * {@link #merge(EntityState)}.
+     *
+     * @param entityStates entity-states to merge in arrival order
+     * @return this
+     */
+    @Override
+    public ViemSystem<K, V, M> mergeAll(List<EntityState<K, V, M>> entityStates) {
+        checkNotFailed();
+        long seq;
+        synchronized (lock) {
+            MergeResult<K, V, M> r = Algorithm.mergeAll(this, entityStates);
+            seq = updateLocked(r.matches, r.newEntityStates);
+        }
+        awaitSync(seq);
+        return this;
+    }
+
+    @Override
+    public ViemSystem<K, V, M> update(List<EntityState<K, V, M>> matches,
+            Set<EntityState<K, V, M>> newEntityStates) {
+        checkNotFailed();
+        long seq;
+        synchronized (lock) {
+            seq = updateLocked(matches, newEntityStates);
+        }
+        awaitSync(seq);
+        return this;
+    }
+
+    // appends the update to the log and applies it, returns its sequence
+    private long updateLocked(List<EntityState<K, V, M>> matches, Set<EntityState<K, V, M>> newEntityStates) {
+        long seq = sequence + 1;
+        // serialize before changing anything so that a failure leaves no trace
+        ByteBuffer record = encodeRecord(seq, matches, newEntityStates);
+        long position = append(record);
+        try {
+            super.update(matches, newEntityStates);
+        } catch (RuntimeException e) {
+            // don't leave a record in the log that was not applied
+            truncate(position, e);
+            throw e;
+        }
+        sequence = seq;
+        written = seq;
+        if (snapshotInterval > 0 && ++sinceSnapshot >= snapshotInterval) {
+            snapshotLocked();
+        }
+        return seq;
+    }
+
+    private void checkNotFailed() {
+        UncheckedIOException failure = syncFailure;
+        if (failure != null) {
+            throw new IllegalStateException("log sync failed", failure);
+        }
+    }
+
+    private void awaitSync(long seq) {
+        if (syncer == null) {
+            sync(seq);
+        }
+    }
+
+    /**
+     * Blocks until every update so far is on the storage device.
+     */
+    public void sync() {
+        sync(written);
+    }
+
+    /**
+     * Writes the entity-states of the system to a new snapshot and truncates the
+     * log. Blocks updates while the snapshot is written.
+     */
+    public void snapshot() {
+        synchronized (lock) {
+            snapshotLocked();
+        }
+    }
+
+    /**
+     * Syncs the log and closes it. The system must not be updated afterwards.
+     */
+    @Override
+    public void close() {
+        if (syncer != null) {
+            syncer.shutdown();
+        }
+        synchronized (lock) {
+            sync();
+            try {
+                log.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // group commit: a caller that finds its record already synced by another
+    // caller's fsync returns without an fsync of its own
+    private void sync(long seq) {
+        synchronized (syncLock) {
+            if (synced >= seq) {
+                return;
+            }
+            long target = written;
+            try {
+                log.force(false);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            synced = target;
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (UncheckedIOException e) {
+            syncFailure = e;
+        }
+    }
+
+    // returns the position of the record in the log
+    private long append(ByteBuffer record) {
+        long position = -1;
+        try {
+            position = log.size();
+            log.position(position);
+            while (record.hasRemaining()) {
+                log.write(record);
+            }
+            return position;
+        } catch (IOException e) {
+            // remove a partially written record so later records stay readable
+            if (position >= 0) {
+                truncate(position, e);
+            }
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void truncate(long position, Exception cause) {
+        try {
+            log.truncate(position);
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    private void snapshotLocked() {
+        File tmp = new File(directory, SNAPSHOT_TMP);
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos), new CRC32());
+                DataOutputStream out = new DataOutputStream(checked);
+                out.writeLong(SNAPSHOT_MAGIC);
+                out.writeLong(sequence);
+                for (EntityState<K, V, M> es : entityStates()) {
+                    ByteBuffer b = encodeEntityState(es);
+                    out.writeInt(b.remaining());
+                    out.write(b.array(), b.position(), b.remaining());
+                }
+                out.writeInt(END_OF_SNAPSHOT);
+                out.writeLong(checked.getChecksum().getValue());
+                out.flush();
+                fos.getFD().sync();
+            }
+            Files.move(tmp.toPath(), new File(directory, SNAPSHOT).toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            // the rename must be durable before the log records it replaces are
+            // truncated, otherwise a crash could keep the truncation and lose the
+            // rename
+            syncDirectory();
+            // records up to sequence are in the snapshot
+            log.truncate(0);
+            log.force(true);
+            sinceSnapshot = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // fsyncs the directory so that a rename in it is durable. Windows does not
+    // allow a directory to be opened for this and there the rename is left to
+    // the file system
+    private void syncDirectory() throws IOException {
+        FileChannel dir;
+        try {
+            dir = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            if (WINDOWS) {
+                return;
+            }
+            throw e;
+        }
+        try {
+            dir.force(true);
+        } finally {
+            dir.close();
+        }
+    }
+
+    // loads the snapshot into the wrapped system and returns its sequence
+    private long loadSnapshot() throws IOException {
+        File file = new File(directory, SNAPSHOT);
+        if (!file.exists()) {
+            return 0;
+        }
+        Set<EntityState<K, V, M>> states = new HashSet<>();
+        long seq;
+        try (InputStream fis = new FileInputStream(file)) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(fis), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readLong() != SNAPSHOT_MAGIC) {
+                throw new IllegalStateException("not a snapshot: " + file);
+            }
+            seq = in.readLong();
+            while (true) {
+                int length = in.readInt();
+                if (length == END_OF_SNAPSHOT) {
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                states.add(decodeEntityState(ByteBuffer.wrap(bytes)));
+            }
+            long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                throw new IllegalStateException("snapshot checksum mismatch: " + file);
+            }
+        } catch (EOFException e) {
+            throw new IllegalStateException("truncated snapshot: " + file, e);
+        }
+        super.update(Collections.emptyList(), states);
+        return seq;
+    }
+
+    // replays the log records after the snapshot, truncates a torn or corrupt
+    // tail and returns the sequence of the last record
+    private long replay(long snapshotSequence) throws IOException {
+        long seq = snapshotSequence;
+        long valid = 0;
+        long size = log.size();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(new File(directory, LOG))))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 0 || valid + RECORD_HEADER_BYTES + length > size) {
+                    // corrupt or torn
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                int crc;
+                long recordSequence;
+                try {
+                    crc = in.readInt();
+                    recordSequence = in.readLong();
+                    in.readFully(bytes);
+                } catch (EOFException e) {
+                    break;
+                }
+                if (crc != crc(recordSequence, bytes, 0, length)) {
+                    break;
+                }
+                if (recordSequence > snapshotSequence) {
+                    if (recordSequence != seq + 1) {
+                        break;
+                    }
+                    ByteBuffer b = ByteBuffer.wrap(bytes);
+                    List<EntityState<K, V, M>> matches = new ArrayList<>();
+                    for (int i = b.getInt(); i > 0; i--) {
+                        matches.add(decodeEntityState(b));
+                    }
+                    Set<EntityState<K, V, M>> newEntityStates = new HashSet<>();
+                    for (int i = b.getInt(); i > 0; i--) {
+                        newEntityStates.add(decodeEntityState(b));
+                    }
+                    super.update(matches, newEntityStates);
+                    seq = recordSequence;
+                }
+                valid += RECORD_HEADER_BYTES + length;
+            }
+        }
+        if (log.size() > valid) {
+            log.truncate(valid);
+            log.force(true);
+        }
+        return seq;
+    }
+
+    private ByteBuffer encodeRecord(long seq, List<EntityState<K, V, M>> matches,
+            Set<EntityState<K, V, M>> newEntityStates) {
+        while (true) {
+            try {
+                buffer.clear();
+                buffer.position(RECORD_HEADER_BYTES);
+                buffer.putInt(matches.size());
+                for (EntityState<K, V, M> es : matches) {
+                    writeEntityState(es, buffer);
+                }
+                buffer.putInt(newEntityStates.size());
+                for (EntityState<K, V, M> es : newEntityStates) {
+                    writeEntityState(es, buffer);
+                }
+                int length = buffer.position() - RECORD_HEADER_BYTES;
+                buffer.putInt(0, length);
+                buffer.putInt(4, crc(seq, buffer.array(), RECORD_HEADER_BYTES, length));
+                buffer.putLong(8, seq);
+                buffer.flip();
+                return buffer;
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+            }
+        }
+    }
+
+    private ByteBuffer encodeEntityState(EntityState<K, V, M> es) {
+        while (true) {
+            try {
+                buffer.clear();
+                writeEntityState(es, buffer);
+                buffer.flip();
+                return buffer;
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+            }
+        }
+    }
+
+    private void writeEntityState(EntityState<K, V, M> es, ByteBuffer b) {
+        Map<K, V> ids = es.identifiers();
+        b.putInt(ids.size());
+        for (Entry<K, V> entry : ids.entrySet()) {
+            keySerializer.write(entry.getKey(), b);
+            valueSerializer.write(entry.getValue(), b);
+        }
+        metadataSerializer.write(es.metadata(), b);
+    }
+
+    private EntityState<K, V, M> decodeEntityState(ByteBuffer b) {
+        int n = b.getInt();
+        Map<K, V> ids = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            K key = keySerializer.read(b);
+            ids.put(key, valueSerializer.read(b));
+        }
+        return createEntityState(ids, metadataSerializer.read(b));
+    }
+
+    private static int crc(long seq, byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < 8; i++) {
+            crc.update((int) (seq >>> (56 - 8 * i)));
+        }
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+}
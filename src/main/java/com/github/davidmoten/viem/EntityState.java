@@ -4,9 +4,10 @@ import java.util.Map;
 
 /**
  * EntityState must implement hashCode and equals based on equality of the
- * identifiers only (ignoring metadata). it is advised to use the static methods
- * on EntityState to implement hashCode and equals. See
- * {@link EntityStateDefault} for example.
+ * identifiers only (ignoring metadata and the implementing class, so that
+ * entity-states of different implementations with equal identifiers are
+ * equal). it is advised to use the static methods on EntityState to implement
+ * hashCode and equals. See {@link EntityStateDefault} for example.
  *
  * @param <K> identifier key type
  * @param <V> identifier value type
@@ -29,11 +30,9 @@ public interface EntityState<K, V, M> {
     static boolean equals(EntityState<?, ?, ?> a, Object obj) {
         if (a == obj)
             return true;
-        if (obj == null)
+        if (!(obj instanceof EntityState))
             return false;
-        if (a.getClass() != obj.getClass())
-            return false;
-        EntityStateDefault<?, ?, ?> other = (EntityStateDefault<?, ?, ?>) obj;
+        EntityState<?, ?, ?> other = (EntityState<?, ?, ?>) obj;
         if (!a.identifiers().equals(other.identifiers()))
             return false;
         return true;
@@ -0,0 +1,165 @@
+package com.github.davidmoten.viem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Wraps a {@link ViemSystem} so that entity-states that stop being updated are
+ * removed (freeing their identifiers for reuse) once their time to live has
+ * passed.
+ *
+ * <p>
+ * The expiry time of an entity-state is the timestamp of its metadata plus its
+ * time to live, both supplied by functions so that different types of entity
+ * can live for different times. Expiry times are held in a hierarchical timer
+ * wheel so that tracking an update costs O(1) and {@link #evict(long)} costs
+ * time proportional to the number of entity-states evicted rather than the
+ * size of the system. Evicted entity-states are removed from the wrapped
+ * system in a single update and passed to the listeners.
+ *
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @param <K> identifier key type
+ * @param <V> identifier value type
+ * @param <M> metadata type
+ */
+public final class EvictingViemSystem<K, V, M> extends ForwardingViemSystem<K, V, M> {
+
+    /**
+     * Time to live meaning never evict.
+     */
+    public static final long FOREVER = Long.MAX_VALUE;
+
+    private final ToLongFunction<? super M> timestamp;
+    private final ToLongFunction<? super EntityState<K, V, M>> timeToLive;
+    private final TimerWheel<EntityState<K, V, M>> wheel;
+
+    // timer of each tracked entity-state (equality by identifiers)
+    private final Map<EntityState<K, V, M>, TimerWheel.Node<EntityState<K, V, M>>> timers = new HashMap<>();
+
+    private final List<Consumer<? super EntityState<K, V, M>>> listeners = new CopyOnWriteArrayList<>();
+
+    private long evicted;
+
+    /**
+     * Constructor. The entity-states already in the delegate are tracked.
+     *
+     * @param delegate   system to wrap
+     * @param timestamp  returns the time in milliseconds of the metadata
+     * @param timeToLive returns the time to live in milliseconds of an
+     *                   entity-state (for example by its type) or
+     *                   {@link #FOREVER}
+     * @param tickMillis resolution of expiry times, an entity-state is evicted
+     *                   by the first {@link #evict(long)} at or after its expiry
+     *                   time
+     */
+    public EvictingViemSystem(ViemSystem<K, V, M> delegate, ToLongFunction<? super M> timestamp,
+            ToLongFunction<? super EntityState<K, V, M>> timeToLive, long tickMillis) {
+        super(delegate);
+        this.timestamp = timestamp;
+        this.timeToLive = timeToLive;
+        this.wheel = new TimerWheel<>(tickMillis);
+        for (EntityState<K, V, M> es : delegate.entityStates()) {
+            track(es);
+        }
+    }
+
+    /**
+     * Adds a listener that is called with each evicted entity-state.
+     *
+     * @param listener receives evicted entity-states
+     * @return this
+     */
+    public EvictingViemSystem<K, V, M> addListener(Consumer<? super EntityState<K, V, M>> listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    @Override
+    public ViemSystem<K, V, M> update(List<EntityState<K, V, M>> matches,
+            Set<EntityState<K, V, M>> newEntityStates) {
+        super.update(matches, newEntityStates);
+        for (EntityState<K, V, M> es : matches) {
+            TimerWheel.Node<EntityState<K, V, M>> node = timers.remove(es);
+            if (node != null) {
+                wheel.cancel(node);
+            }
+        }
+        for (EntityState<K, V, M> es : newEntityStates) {
+            track(es);
+        }
+        return this;
+    }
+
+    /**
+     * Removes every entity-state whose expiry time is at or before now. Call
+     * periodically with the wall clock or with the time of the latest report.
+     *
+     * @param now time in milliseconds
+     * @return the number of entity-states evicted
+     */
+    public int evict(long now) {
+        List<EntityState<K, V, M>> expired = new ArrayList<>();
+        wheel.advance(now, expired::add);
+        if (expired.isEmpty()) {
+            return 0;
+        }
+        for (EntityState<K, V, M> es : expired) {
+            timers.remove(es);
+        }
+        super.update(expired, Collections.emptySet());
+        evicted += expired.size();
+        for (EntityState<K, V, M> es : expired) {
+            for (Consumer<? super EntityState<K, V, M>> listener : listeners) {
+                listener.accept(es);
+            }
+        }
+        return expired.size();
+    }
+
+    /**
+     * Returns the number of entity-states with a pending expiry.
+     *
+     * @return the number of entity-states with a pending expiry
+     */
+    public int tracked() {
+        return wheel.size();
+    }
+
+    /**
+     * Returns the number of entity-states evicted so far.
+     *
+     * @return the number of entity-states evicted
+     */
+    public long evicted() {
+        return evicted;
+    }
+
+    private void track(EntityState<K, V, M> es) {
+        long ttl = timeToLive.applyAsLong(es);
+        if (ttl == FOREVER) {
+            return;
+        }
+        if (ttl < 0) {
+            throw new IllegalArgumentException("time to live cannot be negative: " + ttl);
+        }
+        long t = timestamp.applyAsLong(es.metadata());
+        // saturate rather than overflow
+        long deadline = t > Long.MAX_VALUE - ttl ? Long.MAX_VALUE : t + ttl;
+        TimerWheel.Node<EntityState<K, V, M>> node = new TimerWheel.Node<>(es);
+        TimerWheel.Node<EntityState<K, V, M>> previous = timers.put(es, node);
+        if (previous != null) {
+            wheel.cancel(previous);
+        }
+        wheel.schedule(node, deadline);
+    }
+
+}
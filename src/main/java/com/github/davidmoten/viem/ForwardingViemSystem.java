@@ -0,0 +1,101 @@
+package com.github.davidmoten.viem;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link ViemSystem} that forwards to another system, for wrappers that add
+ * behaviour (for example persistence) to any system. The rules, matching and
+ * updates are forwarded but {@link #merge(EntityState)} and
+ * {@link #mergeAll(List)} use the default implementations so that every change
+ * made by a merge reaches the wrapper through {@link #update(List, Set)}.
+ *
+ * <p>
+ * The delegate must be mutable (its {@link #update(List, Set)} returns
+ * itself), otherwise {@code update} throws an {@link IllegalStateException}
+ * rather than lose the change. Subclasses override the methods they need to
+ * intercept.
+ *
+ * @param <K> identifier key type
+ * @param <V> identifier value type
+ * @param <M> metadata type
+ */
+public abstract class ForwardingViemSystem<K, V, M> implements ViemSystem<K, V, M> {
+
+    private final ViemSystem<K, V, M> delegate;
+
+    protected ForwardingViemSystem(ViemSystem<K, V, M> delegate) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate cannot be null");
+        }
+        this.delegate = delegate;
+    }
+
+    protected final ViemSystem<K, V, M> delegate() {
+        return delegate;
+    }
+
+    @Override
+    public Iterable<EntityState<K, V, M>> entityStates() {
+        return delegate.entityStates();
+    }
+
+    @Override
+    public Set<EntityState<K, V, M>> matches(Map<K, V> identifiers) {
+        return delegate.matches(identifiers);
+    }
+
+    @Override
+    public boolean keyGreaterThan(K a, K b) {
+        return delegate.keyGreaterThan(a, b);
+    }
+
+    @Override
+    public int keyRank(K key) {
+        return delegate.keyRank(key);
+    }
+
+    @Override
+    public boolean metadataGreaterThan(M a, M b) {
+        return delegate.metadataGreaterThan(a, b);
+    }
+
+    @Override
+    public boolean mergeable(M a, M b) {
+        return delegate.mergeable(a, b);
+    }
+
+    @Override
+    public M merge(M a, M b) {
+        return delegate.merge(a, b);
+    }
+
+    /**
+     * Forwards the update to the delegate.
+     *
+     * @throws IllegalStateException if the delegate returns a system other than
+     *                               itself (it is immutable, so the update would
+     *                               be lost)
+     */
+    @Override
+    public ViemSystem<K, V, M> update(List<EntityState<K, V, M>> matches,
+            Set<EntityState<K, V, M>> newEntityStates) {
+        if (delegate.update(matches, newEntityStates) != delegate) {
+            throw new IllegalStateException(
+                    "delegate returned a new system from update, an immutable system cannot be wrapped");
+        }
+        return this;
+    }
+
+    @Override
+    public EntityState<K, V, M> createEntityState(Map<K, V> identifiers, M metadata) {
+        return delegate.createEntityState(identifiers, metadata);
+    }
+
+    @Override
+    public void checkingMetadataMergeability(EntityState<K, V, M> a, EntityState<K, V, M> b) {
+        delegate.checkingMetadataMergeability(a, b);
+    }
+
+}
@@ -0,0 +1,357 @@
+package com.github.davidmoten.viem;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable hash array mapped trie. Updates return a new map that shares
+ * all but the path to the changed entry with this map, so an update costs
+ * O(log32 n) time and space and earlier versions stay valid and can be read
+ * concurrently without locking.
+ *
+ * <p>
+ * Null keys and values are not supported.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+final class Hamt<K, V> implements Iterable<V> {
+
+    private static final int BITS = 5;
+
+    private static final int MASK = (1 << BITS) - 1;
+
+    @SuppressWarnings("rawtypes")
+    private static final Hamt EMPTY = new Hamt<>(new BitmapNode(0, new Object[0]), 0);
+
+    private final Node root;
+    private final int size;
+
+    private Hamt(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> Hamt<K, V> empty() {
+        return EMPTY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(Object key) {
+        Leaf leaf = root.get(key, hash(key), 0);
+        return leaf == null ? null : (V) leaf.value;
+    }
+
+    Hamt<K, V> put(K key, V value) {
+        boolean[] added = new boolean[1];
+        Node r = root.put(new Leaf(key, value, hash(key)), 0, added);
+        if (r == root) {
+            return this;
+        }
+        return new Hamt<>(r, added[0] ? size + 1 : size);
+    }
+
+    Hamt<K, V> remove(Object key) {
+        Object r = root.remove(key, hash(key), 0);
+        if (r == root) {
+            return this;
+        } else if (r instanceof Node) {
+            return new Hamt<>((Node) r, size - 1);
+        } else if (r == null) {
+            return empty();
+        } else {
+            // the only remaining entry
+            return new Hamt<>(new BitmapNode(bit(((Leaf) r).hash, 0), new Object[] { r }), size - 1);
+        }
+    }
+
+    /**
+     * Returns the values in no particular order.
+     */
+    @Override
+    public Iterator<V> iterator() {
+        return new ValueIterator<>(root);
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private static final class Leaf {
+        final Object key;
+        final Object value;
+        final int hash;
+
+        Leaf(Object key, Object value, int hash) {
+            this.key = key;
+            this.value = value;
+            this.hash = hash;
+        }
+    }
+
+    // the entries of a node are leaves or child nodes
+    private abstract static class Node {
+
+        final Object[] entries;
+
+        Node(Object[] entries) {
+            this.entries = entries;
+        }
+
+        abstract Leaf get(Object key, int hash, int shift);
+
+        // returns this if unchanged
+        abstract Node put(Leaf leaf, int shift, boolean[] added);
+
+        // returns this if unchanged, else the replacement node, the only
+        // remaining leaf or null if empty
+        abstract Object remove(Object key, int hash, int shift);
+    }
+
+    private static final class BitmapNode extends Node {
+
+        final int bitmap;
+
+        BitmapNode(int bitmap, Object[] entries) {
+            super(entries);
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        Leaf get(Object key, int hash, int shift) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            Object e = entries[index(bit)];
+            if (e instanceof Leaf) {
+                Leaf leaf = (Leaf) e;
+                return leaf.hash == hash && leaf.key.equals(key) ? leaf : null;
+            } else {
+                return ((Node) e).get(key, hash, shift + BITS);
+            }
+        }
+
+        @Override
+        Node put(Leaf leaf, int shift, boolean[] added) {
+            int bit = bit(leaf.hash, shift);
+            int i = index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] a = new Object[entries.length + 1];
+                System.arraycopy(entries, 0, a, 0, i);
+                a[i] = leaf;
+                System.arraycopy(entries, i, a, i + 1, entries.length - i);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, a);
+            }
+            Object e = entries[i];
+            Object replacement;
+            if (e instanceof Leaf) {
+                Leaf existing = (Leaf) e;
+                if (existing.hash == leaf.hash && existing.key.equals(leaf.key)) {
+                    if (existing.value == leaf.value) {
+                        return this;
+                    }
+                    replacement = leaf;
+                } else {
+                    added[0] = true;
+                    replacement = pair(existing, leaf, shift + BITS);
+                }
+            } else {
+                Node child = (Node) e;
+                replacement = child.put(leaf, shift + BITS, added);
+                if (replacement == child) {
+                    return this;
+                }
+            }
+            Object[] a = entries.clone();
+            a[i] = replacement;
+            return new BitmapNode(bitmap, a);
+        }
+
+        @Override
+        Object remove(Object key, int hash, int shift) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int i = index(bit);
+            Object e = entries[i];
+            Object replacement;
+            if (e instanceof Leaf) {
+                Leaf leaf = (Leaf) e;
+                if (leaf.hash != hash || !leaf.key.equals(key)) {
+                    return this;
+                }
+                replacement = null;
+            } else {
+                replacement = ((Node) e).remove(key, hash, shift + BITS);
+                if (replacement == e) {
+                    return this;
+                }
+            }
+            if (replacement != null) {
+                Object[] a = entries.clone();
+                a[i] = replacement;
+                return new BitmapNode(bitmap, a);
+            }
+            if (entries.length == 1) {
+                return null;
+            }
+            if (entries.length == 2 && entries[1 - i] instanceof Leaf) {
+                // let the parent hold the remaining leaf directly
+                return entries[1 - i];
+            }
+            Object[] a = new Object[entries.length - 1];
+            System.arraycopy(entries, 0, a, 0, i);
+            System.arraycopy(entries, i + 1, a, i, entries.length - i - 1);
+            return new BitmapNode(bitmap & ~bit, a);
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        private static Node pair(Leaf a, Leaf b, int shift) {
+            if (a.hash == b.hash) {
+                return new CollisionNode(a.hash, new Object[] { a, b });
+            }
+            int bitA = bit(a.hash, shift);
+            int bitB = bit(b.hash, shift);
+            if (bitA == bitB) {
+                return new BitmapNode(bitA, new Object[] { pair(a, b, shift + BITS) });
+            } else if (Integer.compareUnsigned(bitA, bitB) < 0) {
+                return new BitmapNode(bitA | bitB, new Object[] { a, b });
+            } else {
+                return new BitmapNode(bitA | bitB, new Object[] { b, a });
+            }
+        }
+    }
+
+    // leaves whose keys have the same full hash
+    private static final class CollisionNode extends Node {
+
+        final int hash;
+
+        CollisionNode(int hash, Object[] entries) {
+            super(entries);
+            this.hash = hash;
+        }
+
+        @Override
+        Leaf get(Object key, int hash, int shift) {
+            int i = indexOf(key);
+            return i == -1 ? null : (Leaf) entries[i];
+        }
+
+        @Override
+        Node put(Leaf leaf, int shift, boolean[] added) {
+            if (leaf.hash != hash) {
+                // split off into a bitmap node at this level
+                BitmapNode node = new BitmapNode(bit(hash, shift), new Object[] { this });
+                return node.put(leaf, shift, added);
+            }
+            int i = indexOf(leaf.key);
+            Object[] a;
+            if (i == -1) {
+                a = new Object[entries.length + 1];
+                System.arraycopy(entries, 0, a, 0, entries.length);
+                a[entries.length] = leaf;
+                added[0] = true;
+            } else if (((Leaf) entries[i]).value == leaf.value) {
+                return this;
+            } else {
+                a = entries.clone();
+                a[i] = leaf;
+            }
+            return new CollisionNode(hash, a);
+        }
+
+        @Override
+        Object remove(Object key, int hash, int shift) {
+            int i = indexOf(key);
+            if (i == -1) {
+                return this;
+            }
+            if (entries.length == 2) {
+                return entries[1 - i];
+            }
+            Object[] a = new Object[entries.length - 1];
+            System.arraycopy(entries, 0, a, 0, i);
+            System.arraycopy(entries, i + 1, a, i, entries.length - i - 1);
+            return new CollisionNode(hash, a);
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < entries.length; i++) {
+                if (((Leaf) entries[i]).key.equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static final class ValueIterator<V> implements Iterator<V> {
+
+        // a path from the root is at most 7 bitmap nodes and a collision node
+        private final Object[][] stack = new Object[8][];
+        private final int[] positions = new int[8];
+        private int depth;
+        private Leaf next;
+
+        ValueIterator(Node root) {
+            stack[0] = root.entries;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (depth >= 0) {
+                Object[] entries = stack[depth];
+                int i = positions[depth];
+                if (i == entries.length) {
+                    depth--;
+                } else {
+                    positions[depth] = i + 1;
+                    Object e = entries[i];
+                    if (e instanceof Leaf) {
+                        next = (Leaf) e;
+                        return;
+                    } else {
+                        depth++;
+                        stack[depth] = ((Node) e).entries;
+                        positions[depth] = 0;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public V next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            V v = (V) next.value;
+            advance();
+            return v;
+        }
+    }
+
+}
@@ -0,0 +1,327 @@
+package com.github.davidmoten.viem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * A mutable in-memory {@link ViemSystem} that maintains an inverted index from
+ * each identifier key-value to a handle on the entity-state that owns it. As a
+ * consequence {@link #matches(Map)} costs one index lookup per identifier
+ * rather than a scan of every entity-state in the system and
+ * {@link #update(List, Set)} only touches the index entries of the
+ * entity-states being removed and added.
+ *
+ * <p>
+ * Subclasses supply the rules of the system ({@link #keyGreaterThan},
+ * {@link #metadataGreaterThan}, {@link #mergeable} and
+ * {@link #merge(Object, Object)}).
+ *
+ * <p>
+ * The index holds one owner per identifier key-value so it relies on the
+ * system being strongly consistent (no key-value appears in two
+ * entity-states). If an added entity-state shares a key-value with an existing
+ * entity-state then the index entry moves to the added entity-state.
+ *
+ * <p>
+ * When a merged entity-state has exactly the identifiers of an existing
+ * entity-state (the common case of a newer report for a known entity) then
+ * {@link #merge(EntityState)} resolves the metadata directly and points the
+ * handle of the existing entity-state at the result, leaving the index
+ * untouched. Otherwise the merge is applied in place using the lineage of the
+ * merge result: each new entity-state takes over the handle of the match it
+ * descends from, so a transfer or split only writes the index entries of the
+ * identifiers that move. In neither case is {@link #update(List, Set)} called,
+ * so {@code update} is final and a subclass that needs to see every change (to
+ * audit, persist or count them) overrides {@link #updated(List, Set)} instead,
+ * which is called after every change made by {@code merge}, {@code mergeAll}
+ * and {@code update}.
+ *
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @param <K> identifier key type
+ * @param <V> identifier value type
+ * @param <M> metadata type
+ */
+public abstract class IndexedViemSystem<K, V, M> implements ViemSystem<K, V, M> {
+
+    // entity-state -> its handle (entity-states are equal when their identifiers
+    // are equal)
+    private final Map<EntityState<K, V, M>, Handle<K, V, M>> handles = new HashMap<>();
+
+    // key -> value -> handle of the owning entity-state
+    private final Map<K, Map<V, Handle<K, V, M>>> index = new HashMap<>();
+
+    @Override
+    public Iterable<EntityState<K, V, M>> entityStates() {
+        return () -> new Iterator<EntityState<K, V, M>>() {
+
+            final Iterator<Handle<K, V, M>> it = handles.values().iterator();
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public EntityState<K, V, M> next() {
+                return it.next().entityState;
+            }
+        };
+    }
+
+    @Override
+    public Set<EntityState<K, V, M>> matches(Map<K, V> identifiers) {
+        // distinct handles first so that the identifiers of a match are hashed
+        // once rather than once per identifier it shares with the report, and not
+        // at all if it is the only match
+        List<Handle<K, V, M>> list = new ArrayList<>(2);
+        for (Entry<K, V> entry : identifiers.entrySet()) {
+            Map<V, Handle<K, V, M>> values = index.get(entry.getKey());
+            if (values != null) {
+                Handle<K, V, M> h = values.get(entry.getValue());
+                if (h != null && !containsIdentical(list, h)) {
+                    list.add(h);
+                }
+            }
+        }
+        if (list.isEmpty()) {
+            return Collections.emptySet();
+        } else if (list.size() == 1) {
+            return Collections.singleton(list.get(0).entityState);
+        } else {
+            Set<EntityState<K, V, M>> set = new HashSet<>();
+            for (Handle<K, V, M> h : list) {
+                set.add(h.entityState);
+            }
+            return set;
+        }
+    }
+
+    @Override
+    public ViemSystem<K, V, M> merge(EntityState<K, V, M> entity) {
+        Handle<K, V, M> h = sameIdentifiers(entity.identifiers());
+        if (h != null) {
+            // the only match so resolve without the general algorithm, the index
+            // entries stay in place and only the entity-state of their handle
+            // changes
+            EntityState<K, V, M> es = h.entityState;
+            EntityState<K, V, M> merged = Algorithm.mergeSameIdentifiers(this, entity, es);
+            h.entityState = merged;
+            updated(Collections.singletonList(es), Collections.singleton(merged));
+            return this;
+        }
+        MergeResult<K, V, M> r = Algorithm.merge(this, entity);
+        apply(r);
+        updated(r.matches, r.newEntityStates);
+        return this;
+    }
+
+    @Override
+    public final ViemSystem<K, V, M> update(List<EntityState<K, V, M>> matches,
+            Set<EntityState<K, V, M>> newEntityStates) {
+        for (EntityState<K, V, M> es : matches) {
+            Handle<K, V, M> h = handles.get(es);
+            if (h != null) {
+                remove(h);
+            }
+        }
+        for (EntityState<K, V, M> es : newEntityStates) {
+            add(es);
+        }
+        updated(matches, newEntityStates);
+        return this;
+    }
+
+    /**
+     * Called after every change to the system, whether made by
+     * {@link #update(List, Set)} or in place by {@link #merge(EntityState)},
+     * with the same arguments that {@code update} would have been given. Does
+     * nothing by default. Implementations must not modify the system.
+     *
+     * @param matches         entity-states removed from the system
+     * @param newEntityStates entity-states added to the system
+     */
+    protected void updated(List<EntityState<K, V, M>> matches, Set<EntityState<K, V, M>> newEntityStates) {
+        // do nothing
+    }
+
+    /**
+     * Returns the number of entity-states in the system.
+     *
+     * @return the number of entity-states in the system
+     */
+    public int size() {
+        return handles.size();
+    }
+
+    // returns the handle of the entity-state with exactly the given identifiers
+    // (which is then the only match) or null
+    private Handle<K, V, M> sameIdentifiers(Map<K, V> identifiers) {
+        Iterator<Entry<K, V>> it = identifiers.entrySet().iterator();
+        if (!it.hasNext()) {
+            return null;
+        }
+        Entry<K, V> first = it.next();
+        Map<V, Handle<K, V, M>> values = index.get(first.getKey());
+        Handle<K, V, M> h = values == null ? null : values.get(first.getValue());
+        if (h != null && h.entityState.identifiers().size() == identifiers.size()
+                && h.entityState.identifiers().equals(identifiers)) {
+            return h;
+        } else {
+            return null;
+        }
+    }
+
+    // applies a merge result in place as a delta on the index using its lineage:
+    // a new entity-state takes over the handle of the match it descends from so
+    // only the key-values that move between handles are written. Other matches
+    // are removed and other new entity-states added. As for update all matches
+    // leave the system before any new entity-state is added
+    private void apply(MergeResult<K, V, M> r) {
+        List<EntityState<K, V, M>> matches = r.matches;
+        @SuppressWarnings("unchecked")
+        Handle<K, V, M>[] matched = new Handle[matches.size()];
+        boolean[] kept = new boolean[matched.length];
+        for (EntityState<K, V, M> es : r.newEntityStates) {
+            int i = indexOf(matches, r.origins.get(es));
+            if (i >= 0) {
+                kept[i] = true;
+            }
+        }
+        for (int i = 0; i < matched.length; i++) {
+            EntityState<K, V, M> es = matches.get(i);
+            if (kept[i]) {
+                matched[i] = handles.remove(es);
+            } else {
+                Handle<K, V, M> h = handles.get(es);
+                if (h != null) {
+                    remove(h);
+                }
+            }
+        }
+        for (EntityState<K, V, M> es : r.newEntityStates) {
+            int i = indexOf(matches, r.origins.get(es));
+            if (i >= 0 && matched[i] != null) {
+                // a match split in two keeps its handle for one part only
+                Handle<K, V, M> h = matched[i];
+                matched[i] = null;
+                move(h, es);
+            } else {
+                add(es);
+            }
+        }
+    }
+
+    private static <T> boolean containsIdentical(List<T> list, T item) {
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == item) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static <T> int indexOf(List<T> list, T item) {
+        if (item == null) {
+            return -1;
+        }
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == item) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // points h at es, releasing the key-values of its entity-state that es does
+    // not have and claiming those of es that it did not have. The key-values it
+    // keeps are not touched unless another entity-state has taken some of them
+    // (see the class doc) in which case they are taken back as update would
+    private void move(Handle<K, V, M> h, EntityState<K, V, M> es) {
+        Map<K, V> before = h.entityState.identifiers();
+        Map<K, V> after = es.identifiers();
+        for (Entry<K, V> entry : before.entrySet()) {
+            if (!entry.getValue().equals(after.get(entry.getKey()))) {
+                Map<V, Handle<K, V, M>> values = index.get(entry.getKey());
+                if (values != null) {
+                    values.remove(entry.getValue(), h);
+                }
+            }
+        }
+        boolean taken = h.taken > 0;
+        for (Entry<K, V> entry : after.entrySet()) {
+            if (taken || !entry.getValue().equals(before.get(entry.getKey()))) {
+                claim(h, entry.getKey(), entry.getValue());
+            }
+        }
+        h.taken = 0;
+        h.entityState = es;
+        Handle<K, V, M> other = handles.put(es, h);
+        if (other != null) {
+            // a split gave es the same identifiers as an entity-state outside the
+            // merge, which es replaces as it would in update
+            release(other);
+        }
+    }
+
+    private void remove(Handle<K, V, M> h) {
+        handles.remove(h.entityState);
+        release(h);
+    }
+
+    private void release(Handle<K, V, M> h) {
+        for (Entry<K, V> entry : h.entityState.identifiers().entrySet()) {
+            Map<V, Handle<K, V, M>> values = index.get(entry.getKey());
+            if (values != null) {
+                values.remove(entry.getValue(), h);
+            }
+        }
+    }
+
+    private void add(EntityState<K, V, M> es) {
+        Handle<K, V, M> h = handles.get(es);
+        if (h == null) {
+            h = new Handle<>(es);
+            handles.put(es, h);
+        } else {
+            // already present (equal identifiers) so only the metadata changes
+            h.entityState = es;
+            h.taken = 0;
+        }
+        for (Entry<K, V> entry : es.identifiers().entrySet()) {
+            claim(h, entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void claim(Handle<K, V, M> h, K key, V value) {
+        Handle<K, V, M> previous = index.computeIfAbsent(key, k -> new HashMap<>()).put(value, h);
+        if (previous != null && previous != h) {
+            previous.taken++;
+        }
+    }
+
+    // the index refers to an entity-state through its handle so that a change of
+    // metadata or of some identifiers leaves the entries of the identifiers it
+    // keeps untouched
+    private static final class Handle<K, V, M> {
+
+        EntityState<K, V, M> entityState;
+
+        // an upper bound on the number of key-values of the entity-state whose
+        // index entries another handle has taken, zero if it owns them all
+        int taken;
+
+        Handle(EntityState<K, V, M> entityState) {
+            this.entityState = entityState;
+        }
+    }
+
+}
@@ -0,0 +1,525 @@
+package com.github.davidmoten.viem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Feeds reports from many sources (for example terrestrial AIS, satellite AIS,
+ * ADS-B and tracking devices) into a {@link ViemSystem}.
+ *
+ * <p>
+ * Each source has its own bounded queue with a {@link DropPolicy} that decides
+ * what happens when the queue is full. A source may be given a reader that
+ * decodes its feed and offers reports to the source. Each reader runs on its
+ * own thread, a virtual thread when the runtime supports them (Java 21+) and a
+ * daemon platform thread otherwise. A single merge thread takes up to a fair
+ * share of the batch size from each queue in turn, starting from the next queue
+ * for each batch, then fills what the quiet sources left of the batch from the
+ * queues that still have reports, never taking more than the batch size. It
+ * merges the batch with {@link ViemSystem#mergeAll(List)}, so a slow or bursty
+ * source neither stalls nor crowds out the others and a burst from one source
+ * is still merged in full batches.
+ *
+ * <p>
+ * The merge thread is the only writer to the system, which need not be
+ * thread-safe but must not be updated by anything else while the pipeline runs.
+ * The system returned by each merge is kept (so an immutable system such as
+ * {@link PersistentViemSystem} can be used) and is available from
+ * {@link #system()}.
+ *
+ * <p>
+ * Queue depth, drops and the latency from offer to merge are recorded per
+ * source.
+ *
+ * @param <K> identifier key type
+ * @param <V> identifier value type
+ * @param <M> metadata type
+ */
+public final class IngestionPipeline<K, V, M> implements AutoCloseable {
+
+    /**
+     * What a source does with a report offered while its queue is full.
+     */
+    public enum DropPolicy {
+        /**
+         * Waits for space in the queue, applying backpressure to the reader.
+         */
+        BLOCK,
+        /**
+         * Drops the offered report.
+         */
+        DROP_NEWEST,
+        /**
+         * Drops the oldest report in the queue to make space for the offered
+         * report.
+         */
+        DROP_OLDEST;
+    }
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // how often a producer blocked on a full queue checks for a failed merge
+    // thread or a closed pipeline
+    private static final long BLOCKED_CHECK_MILLIS = 10;
+
+    private final int batchSize;
+    private final List<Source<K, V, M>> sources = new CopyOnWriteArrayList<>();
+    private final ThreadFactory readerThreads = Threads.virtualOrPlatform("viem-source-");
+    private final Thread merger;
+
+    private volatile ViemSystem<K, V, M> system;
+    private volatile boolean started;
+    private volatile boolean closed;
+    private volatile boolean idle;
+    private volatile RuntimeException failure;
+
+    /**
+     * Constructor. Sources are added with
+     * {@link #addSource(String, int, DropPolicy)} and the pipeline runs once
+     * {@link #start()} is called.
+     *
+     * @param system    system to merge reports into
+     * @param batchSize maximum number of reports per call to
+     *                  {@link ViemSystem#mergeAll(List)}
+     */
+    public IngestionPipeline(ViemSystem<K, V, M> system, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.system = system;
+        this.batchSize = batchSize;
+        this.merger = Threads.platform("viem-merge-").newThread(this::mergeLoop);
+    }
+
+    /**
+     * Adds a source to which reports are offered by the caller using
+     * {@link Source#offer(EntityState)}.
+     *
+     * @param name     name of the source
+     * @param capacity capacity of the queue of the source
+     * @param policy   what to do with a report offered when the queue is full
+     * @return the source
+     */
+    public Source<K, V, M> addSource(String name, int capacity, DropPolicy policy) {
+        return addSource(name, capacity, policy, null);
+    }
+
+    /**
+     * Adds a source whose reader is run on its own thread once the pipeline is
+     * started. The reader decodes the feed of the source and offers each report
+     * to the source it is given. It should return when its feed ends or its
+     * thread is interrupted (by {@link #close()}).
+     *
+     * @param name     name of the source
+     * @param capacity capacity of the queue of the source
+     * @param policy   what to do with a report offered when the queue is full
+     * @param reader   decodes the feed and offers reports to the source, may be
+     *                 null
+     * @return the source
+     */
+    public Source<K, V, M> addSource(String name, int capacity, DropPolicy policy,
+            Consumer<? super Source<K, V, M>> reader) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        if (started) {
+            throw new IllegalStateException("sources must be added before the pipeline is started");
+        }
+        Source<K, V, M> source = new Source<>(this, name, capacity, policy, reader);
+        sources.add(source);
+        return source;
+    }
+
+    /**
+     * Starts the merge thread and the readers of the sources.
+     *
+     * @return this
+     */
+    public IngestionPipeline<K, V, M> start() {
+        if (started) {
+            throw new IllegalStateException("already started");
+        }
+        started = true;
+        merger.start();
+        for (Source<K, V, M> source : sources) {
+            if (source.reader != null) {
+                source.thread = readerThreads.newThread(() -> source.read());
+                source.thread.start();
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Returns the system after the reports merged so far. While the pipeline
+     * runs the returned system may be in the middle of a merge unless it is
+     * immutable.
+     *
+     * @return the current system
+     */
+    public ViemSystem<K, V, M> system() {
+        return system;
+    }
+
+    /**
+     * Returns the sources in the order they were added.
+     *
+     * @return the sources
+     */
+    public List<Source<K, V, M>> sources() {
+        return Collections.unmodifiableList(sources);
+    }
+
+    /**
+     * Interrupts the readers and waits for them to return, merges the reports
+     * still queued and stops the merge thread. Reports offered by other threads
+     * concurrently with this call may not be merged.
+     *
+     * @throws IllegalStateException if a merge failed
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        boolean interrupted = false;
+        for (Source<K, V, M> source : sources) {
+            if (source.thread != null) {
+                source.thread.interrupt();
+            }
+        }
+        for (Source<K, V, M> source : sources) {
+            interrupted |= join(source.thread);
+        }
+        closed = true;
+        if (started) {
+            LockSupport.unpark(merger);
+            interrupted |= join(merger);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        checkNotFailed();
+    }
+
+    // returns true if the current thread was interrupted while waiting
+    private static boolean join(Thread thread) {
+        boolean interrupted = false;
+        while (thread != null && thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        return interrupted;
+    }
+
+    private void mergeLoop() {
+        List<Pending<K, V, M>> pending = new ArrayList<>(batchSize);
+        List<EntityState<K, V, M>> batch = new ArrayList<>(batchSize);
+        int first = 0;
+        try {
+            while (true) {
+                boolean closing = closed;
+                // a fair share for each source so that a busy source cannot
+                // crowd out the others. If there are more sources than the batch
+                // size the share is one and the first source drained rotates so
+                // that the batch size is kept without favouring any source
+                int n = sources.size();
+                int share = Math.max(1, batchSize / Math.max(1, n));
+                for (int i = 0; i < n && pending.size() < batchSize; i++) {
+                    Source<K, V, M> source = sources.get((first + i) % n);
+                    source.queue.drainTo(pending, Math.min(share, batchSize - pending.size()));
+                }
+                // the quiet sources leave part of the batch unused, fill it from
+                // the sources that still have reports queued
+                for (int i = 0; i < n && pending.size() < batchSize; i++) {
+                    Source<K, V, M> source = sources.get((first + i) % n);
+                    source.queue.drainTo(pending, batchSize - pending.size());
+                }
+                if (n > 0) {
+                    first = (first + 1) % n;
+                }
+                if (pending.isEmpty()) {
+                    if (closing) {
+                        return;
+                    }
+                    idle = true;
+                    if (!anyQueued()) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    idle = false;
+                    continue;
+                }
+                for (Pending<K, V, M> p : pending) {
+                    batch.add(p.entityState);
+                }
+                system = system.mergeAll(batch);
+                long now = System.nanoTime();
+                for (Pending<K, V, M> p : pending) {
+                    p.source.recordMerged(now - p.offeredNanos);
+                }
+                pending.clear();
+                batch.clear();
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+    }
+
+    private boolean anyQueued() {
+        for (Source<K, V, M> source : sources) {
+            if (!source.queue.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void offered() {
+        if (idle) {
+            LockSupport.unpark(merger);
+        }
+    }
+
+    private void checkNotFailed() {
+        RuntimeException e = failure;
+        if (e != null) {
+            throw new IllegalStateException("merge failed", e);
+        }
+    }
+
+    /**
+     * A source of reports with its own bounded queue and metrics.
+     *
+     * @param <K> identifier key type
+     * @param <V> identifier value type
+     * @param <M> metadata type
+     */
+    public static final class Source<K, V, M> {
+
+        private final IngestionPipeline<K, V, M> pipeline;
+        private final String name;
+        private final int capacity;
+        private final DropPolicy policy;
+        private final Consumer<? super Source<K, V, M>> reader;
+        final ArrayBlockingQueue<Pending<K, V, M>> queue;
+
+        private final LongAdder offered = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private final LongAdder merged = new LongAdder();
+        private final LongAdder totalLatencyNanos = new LongAdder();
+        private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+        private volatile Thread thread;
+        private volatile RuntimeException failure;
+
+        Source(IngestionPipeline<K, V, M> pipeline, String name, int capacity, DropPolicy policy,
+                Consumer<? super Source<K, V, M>> reader) {
+            this.pipeline = pipeline;
+            this.name = name;
+            this.capacity = capacity;
+            this.policy = policy;
+            this.reader = reader;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        /**
+         * Offers a report to the queue of the source, applying the drop policy
+         * of the source if the queue is full.
+         *
+         * @param entityState report
+         * @return false if the offered report was dropped (also if interrupted
+         *         while waiting for space)
+         * @throws IllegalStateException if the pipeline is closed or a merge
+         *                               failed, also if either happens while
+         *                               waiting for space
+         */
+        public boolean offer(EntityState<K, V, M> entityState) {
+            pipeline.checkNotFailed();
+            if (pipeline.closed) {
+                throw new IllegalStateException("pipeline is closed");
+            }
+            offered.increment();
+            Pending<K, V, M> p = new Pending<>(this, entityState, System.nanoTime());
+            boolean added;
+            switch (policy) {
+            case BLOCK:
+                added = put(p);
+                break;
+            case DROP_NEWEST:
+                added = queue.offer(p);
+                break;
+            default:
+                // DROP_OLDEST
+                while (!queue.offer(p)) {
+                    if (queue.poll() != null) {
+                        dropped.increment();
+                    }
+                }
+                added = true;
+            }
+            if (added) {
+                pipeline.offered();
+            } else {
+                dropped.increment();
+            }
+            return added;
+        }
+
+        /**
+         * Returns the name of the source.
+         *
+         * @return name of the source
+         */
+        public String name() {
+            return name;
+        }
+
+        /**
+         * Returns the capacity of the queue of the source.
+         *
+         * @return capacity of the queue
+         */
+        public int capacity() {
+            return capacity;
+        }
+
+        /**
+         * Returns the number of reports waiting in the queue of the source.
+         *
+         * @return queue depth
+         */
+        public int depth() {
+            return queue.size();
+        }
+
+        /**
+         * Returns the number of reports offered to the source.
+         *
+         * @return the number of reports offered
+         */
+        public long offered() {
+            return offered.sum();
+        }
+
+        /**
+         * Returns the number of reports dropped by the drop policy of the
+         * source.
+         *
+         * @return the number of reports dropped
+         */
+        public long dropped() {
+            return dropped.sum();
+        }
+
+        /**
+         * Returns the number of reports from the source merged into the system.
+         *
+         * @return the number of reports merged
+         */
+        public long merged() {
+            return merged.sum();
+        }
+
+        /**
+         * Returns the mean time from offer to the completion of the merge of
+         * the reports of the source merged so far.
+         *
+         * @return mean latency in nanoseconds, zero if none merged
+         */
+        public long meanLatencyNanos() {
+            long n = merged.sum();
+            return n == 0 ? 0 : totalLatencyNanos.sum() / n;
+        }
+
+        /**
+         * Returns the maximum time from offer to the completion of the merge of
+         * the reports of the source merged so far.
+         *
+         * @return maximum latency in nanoseconds
+         */
+        public long maxLatencyNanos() {
+            return maxLatencyNanos.get();
+        }
+
+        /**
+         * Returns the exception thrown by the reader of the source or null if
+         * none.
+         *
+         * @return reader failure or null
+         */
+        public RuntimeException failure() {
+            return failure;
+        }
+
+        private boolean put(Pending<K, V, M> p) {
+            try {
+                // the queue is only drained by the merge thread so don't wait
+                // for space after it has stopped
+                while (!queue.offer(p, BLOCKED_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                    pipeline.checkNotFailed();
+                    if (pipeline.closed) {
+                        throw new IllegalStateException("pipeline is closed");
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        private void read() {
+            try {
+                reader.accept(this);
+            } catch (IllegalStateException e) {
+                if (!pipeline.closed) {
+                    failure = e;
+                }
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+        }
+
+        void recordMerged(long latencyNanos) {
+            merged.increment();
+            totalLatencyNanos.add(latencyNanos);
+            long max;
+            while (latencyNanos > (max = maxLatencyNanos.get())) {
+                if (maxLatencyNanos.compareAndSet(max, latencyNanos)) {
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Source [name=" + name + ", depth=" + depth() + ", offered=" + offered() + ", dropped="
+                    + dropped() + ", merged=" + merged() + "]";
+        }
+    }
+
+    static final class Pending<K, V, M> {
+        final Source<K, V, M> source;
+        final EntityState<K, V, M> entityState;
+        final long offeredNanos;
+
+        Pending(Source<K, V, M> source, EntityState<K, V, M> entityState, long offeredNanos) {
+            this.source = source;
+            this.entityState = entityState;
+            this.offeredNanos = offeredNanos;
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+package com.github.davidmoten.viem;
+
+import java.util.List;
+
+/**
+ * Receives timings and outcomes of merges from an
+ * {@link InstrumentedViemSystem}. All methods have empty default
+ * implementations so an implementation overrides only what it records.
+ * Methods are called on the merging thread and should be cheap (for example
+ * incrementing counters).
+ *
+ * <p>
+ * See {@link PrometheusInstrumentation} for an implementation that exports in
+ * the Prometheus text format.
+ */
+public interface Instrumentation {
+
+    /**
+     * Records nothing.
+     */
+    Instrumentation NONE = new Instrumentation() {
+    };
+
+    enum Phase {
+        /**
+         * Finding the entity-states that match a report
+         * ({@link ViemSystem#matches(java.util.Map)}).
+         */
+        MATCHES,
+        /**
+         * The rule {@link ViemSystem#mergeable(Object, Object)} (for example a
+         * speed check).
+         */
+        MERGEABLE,
+        /**
+         * The rest of resolving a report against its matches.
+         */
+        ALGORITHM,
+        /**
+         * Applying the result to the system
+         * ({@link ViemSystem#update(java.util.List, java.util.Set)}).
+         */
+        UPDATE;
+    }
+
+    enum Outcome {
+        /**
+         * The report matched nothing and became a new entity-state.
+         */
+        CREATED,
+        /**
+         * The report was merged into its only match.
+         */
+        UPDATED,
+        /**
+         * The report joined two or more matches into one entity-state.
+         */
+        MERGED,
+        /**
+         * Identifiers were transferred from an entity-state that lives on to
+         * another entity-state.
+         */
+        TRANSFERRED,
+        /**
+         * An entity-state that the report matched was removed without a
+         * successor.
+         */
+        REMOVED;
+
+        // the most significant of the changes made by the report, in the order
+        // transferred, removed, merged
+        static <K, V, M> Outcome of(int matches, List<MergeEvent<K, V, M>> events) {
+            boolean removed = false;
+            boolean merged = false;
+            for (MergeEvent<K, V, M> event : events) {
+                if (event.type() == MergeEvent.Type.TRANSFERRED) {
+                    return TRANSFERRED;
+                } else if (event.type() == MergeEvent.Type.REMOVED) {
+                    removed = true;
+                } else if (event.type() == MergeEvent.Type.MERGED) {
+                    merged = true;
+                }
+            }
+            if (removed) {
+                return REMOVED;
+            } else if (merged) {
+                return MERGED;
+            } else if (matches == 0) {
+                return CREATED;
+            } else {
+                return UPDATED;
+            }
+        }
+    }
+
+    /**
+     * Called when a phase of a merge completes. Time spent in
+     * {@link Phase#MATCHES} and {@link Phase#MERGEABLE} during resolution is not
+     * included in the time of {@link Phase#ALGORITHM}.
+     *
+     * @param phase phase
+     * @param nanos elapsed time in nanoseconds
+     */
+    default void timed(Phase phase, long nanos) {
+        // do nothing
+    }
+
+    /**
+     * Called with the result of each call to
+     * {@link ViemSystem#mergeable(Object, Object)}.
+     *
+     * @param mergeable the result
+     */
+    default void mergeable(boolean mergeable) {
+        // do nothing
+    }
+
+    /**
+     * Called once per report after it has been resolved.
+     *
+     * @param outcome what happened to the report
+     * @param matches number of entity-states the report matched
+     * @param added   number of entity-states that replaced the matches
+     */
+    default void merged(Outcome outcome, int matches, int added) {
+        // do nothing
+    }
+
+    /**
+     * Called once per change to an entity-state made by a report (as derived
+     * for {@link MergeEvent}) after {@link #merged(Outcome, int, int)}. A
+     * report whose result leaves its only match unchanged makes no change.
+     *
+     * @param type the kind of change
+     */
+    default void changed(MergeEvent.Type type) {
+        // do nothing
+    }
+
+}
@@ -0,0 +1,106 @@
+package com.github.davidmoten.viem;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.github.davidmoten.viem.Instrumentation.Outcome;
+import com.github.davidmoten.viem.Instrumentation.Phase;
+
+/**
+ * Wraps a {@link ViemSystem} and reports to an {@link Instrumentation} how long
+ * each phase of a merge takes (matching, the mergeable rule, the rest of the
+ * algorithm and the update) and what each merge did (created, updated, merged,
+ * transferred identifiers between or removed entity-states, how many matches).
+ *
+ * <p>
+ * Systems that are not wrapped pay nothing for instrumentation. Wrapped, the
+ * cost is a few calls to {@link System#nanoTime()} per merge, deriving the
+ * changes made by the merge (see {@link MergeEvent}) plus whatever the
+ * instrumentation does.
+ *
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @param <K> identifier key type
+ * @param <V> identifier value type
+ * @param <M> metadata type
+ */
+public final class InstrumentedViemSystem<K, V, M> extends ForwardingViemSystem<K, V, M> {
+
+    private final Instrumentation instrumentation;
+
+    // time spent in matches and mergeable during the current resolution
+    private long nested;
+
+    public InstrumentedViemSystem(ViemSystem<K, V, M> delegate, Instrumentation instrumentation) {
+        super(delegate);
+        if (instrumentation == null) {
+            throw new NullPointerException("instrumentation cannot be null");
+        }
+        this.instrumentation = instrumentation;
+    }
+
+    @Override
+    public Set<EntityState<K, V, M>> matches(Map<K, V> identifiers) {
+        long start = System.nanoTime();
+        Set<EntityState<K, V, M>> matches = super.matches(identifiers);
+        long elapsed = System.nanoTime() - start;
+        nested += elapsed;
+        instrumentation.timed(Phase.MATCHES, elapsed);
+        return matches;
+    }
+
+    @Override
+    public boolean mergeable(M a, M b) {
+        long start = System.nanoTime();
+        boolean mergeable = super.mergeable(a, b);
+        long elapsed = System.nanoTime() - start;
+        nested += elapsed;
+        instrumentation.timed(Phase.MERGEABLE, elapsed);
+        instrumentation.mergeable(mergeable);
+        return mergeable;
+    }
+
+    @Override
+    public ViemSystem<K, V, M> merge(EntityState<K, V, M> entity) {
+        MergeResult<K, V, M> r = resolve(this, entity);
+        return update(r.matches, r.newEntityStates);
+    }
+
+    @Override
+    public ViemSystem<K, V, M> mergeAll(List<EntityState<K, V, M>> entityStates) {
+        // as Algorithm.mergeAll but reporting the outcome of each entity-state
+        Batch<K, V, M> batch = new Batch<>(this);
+        for (EntityState<K, V, M> e : entityStates) {
+            MergeResult<K, V, M> r = resolve(batch, e);
+            batch.update(r.matches, r.newEntityStates);
+        }
+        MergeResult<K, V, M> r = batch.result();
+        return update(r.matches, r.newEntityStates);
+    }
+
+    @Override
+    public ViemSystem<K, V, M> update(List<EntityState<K, V, M>> matches,
+            Set<EntityState<K, V, M>> newEntityStates) {
+        long start = System.nanoTime();
+        super.update(matches, newEntityStates);
+        instrumentation.timed(Phase.UPDATE, System.nanoTime() - start);
+        return this;
+    }
+
+    private MergeResult<K, V, M> resolve(ViemSystem<K, V, M> system, EntityState<K, V, M> entity) {
+        nested = 0;
+        long start = System.nanoTime();
+        MergeResult<K, V, M> r = Algorithm.merge(system, entity);
+        instrumentation.timed(Phase.ALGORITHM, System.nanoTime() - start - nested);
+        int matches = r.matches.size();
+        List<MergeEvent<K, V, M>> events = MergeEvent.derive(system, r.matches, r.newEntityStates);
+        instrumentation.merged(Outcome.of(matches, events), matches, r.newEntityStates.size());
+        for (MergeEvent<K, V, M> event : events) {
+            instrumentation.changed(event.type());
+        }
+        return r;
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.github.davidmoten.viem;
+
+import java.util.Map;
+
+/**
+ * A compact {@link EntityState} with identifiers held as
+ * {@link LongIdentifiers}.
+ *
+ * @param <M> metadata type
+ */
+public final class LongEntityState<M> implements EntityState<Integer, Long, M> {
+
+    private final LongIdentifiers identifiers;
+    private final M metadata;
+
+    private LongEntityState(LongIdentifiers identifiers, M metadata) {
+        if (identifiers == null) {
+            throw new NullPointerException("identifiers cannot be null");
+        }
+        this.identifiers = identifiers;
+        this.metadata = metadata;
+    }
+
+    public static <M> LongEntityState<M> create(Map<Integer, Long> identifiers, M metadata) {
+        return new LongEntityState<M>(LongIdentifiers.from(identifiers), metadata);
+    }
+
+    /**
+     * Returns the given entity-state as a {@link LongEntityState} (returns the
+     * argument if already an instance).
+     *
+     * @param <M>         metadata type
+     * @param entityState entity-state to convert
+     * @return entity-state as a LongEntityState
+     */
+    public static <M> LongEntityState<M> from(EntityState<Integer, Long, M> entityState) {
+        if (entityState instanceof LongEntityState) {
+            return (LongEntityState<M>) entityState;
+        }
+        return create(entityState.identifiers(), entityState.metadata());
+    }
+
+    @Override
+    public LongIdentifiers identifiers() {
+        return identifiers;
+    }
+
+    @Override
+    public M metadata() {
+        return metadata;
+    }
+
+    @Override
+    public int hashCode() {
+        return EntityState.hashCode(this);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return EntityState.equals(this, obj);
+    }
+
+    @Override
+    public String toString() {
+        return "LongEntityState [ids=" + identifiers + ", metadata=" + metadata + "]";
+    }
+
+}
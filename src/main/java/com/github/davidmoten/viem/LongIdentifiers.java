@@ -0,0 +1,256 @@
+package com.github.davidmoten.viem;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A compact immutable map of identifiers where keys are small ordinals (0 to
+ * 63 inclusive, for example the ordinal of an enum of identifier types) and
+ * values are longs. The keys are held as a bitmask and the values in a
+ * primitive array in ascending key order so an instance costs two objects
+ * regardless of the number of identifiers and lookups don't box.
+ *
+ * <p>
+ * Behaves as a normal {@code Map<Integer, Long>} (including {@code equals} and
+ * {@code hashCode}) so it can be used wherever {@link EntityState#identifiers()}
+ * is used.
+ */
+public final class LongIdentifiers extends AbstractMap<Integer, Long> {
+
+    /**
+     * Largest allowed key.
+     */
+    public static final int MAX_KEY = 63;
+
+    private static final LongIdentifiers EMPTY = new LongIdentifiers(0, new long[0]);
+
+    private final long mask;
+
+    // in ascending key order
+    private final long[] values;
+
+    private LongIdentifiers(long mask, long[] values) {
+        this.mask = mask;
+        this.values = values;
+    }
+
+    public static LongIdentifiers empty() {
+        return EMPTY;
+    }
+
+    public static LongIdentifiers of(int key, long value) {
+        return EMPTY.with(key, value);
+    }
+
+    /**
+     * Returns the given identifiers as a {@link LongIdentifiers} (returns the
+     * argument if already an instance).
+     *
+     * @param identifiers identifiers with keys between 0 and {@link #MAX_KEY}
+     *                    inclusive
+     * @return identifiers as LongIdentifiers
+     * @throws IllegalArgumentException if a key is out of range
+     */
+    public static LongIdentifiers from(Map<Integer, Long> identifiers) {
+        if (identifiers instanceof LongIdentifiers) {
+            return (LongIdentifiers) identifiers;
+        }
+        long mask = 0;
+        for (Integer key : identifiers.keySet()) {
+            mask |= bit(key);
+        }
+        long[] values = new long[Long.bitCount(mask)];
+        for (Entry<Integer, Long> entry : identifiers.entrySet()) {
+            values[index(mask, entry.getKey())] = entry.getValue();
+        }
+        return new LongIdentifiers(mask, values);
+    }
+
+    // values must be in ascending key order, one per bit of mask
+    static LongIdentifiers create(long mask, long[] values) {
+        return new LongIdentifiers(mask, values);
+    }
+
+    /**
+     * Returns a copy of these identifiers with the given key set to the given
+     * value.
+     *
+     * @param key   key between 0 and {@link #MAX_KEY} inclusive
+     * @param value value
+     * @return copy with the key set to the value
+     */
+    public LongIdentifiers with(int key, long value) {
+        long m = mask | bit(key);
+        int i = index(m, key);
+        if (m == mask) {
+            long[] v = values.clone();
+            v[i] = value;
+            return new LongIdentifiers(m, v);
+        }
+        long[] v = new long[values.length + 1];
+        System.arraycopy(values, 0, v, 0, i);
+        v[i] = value;
+        System.arraycopy(values, i, v, i + 1, values.length - i);
+        return new LongIdentifiers(m, v);
+    }
+
+    /**
+     * Returns the keys as a bitmask where bit n is set if key n is present.
+     *
+     * @return keys as a bitmask
+     */
+    public long mask() {
+        return mask;
+    }
+
+    public boolean contains(int key) {
+        return key >= 0 && key <= MAX_KEY && (mask & (1L << key)) != 0;
+    }
+
+    /**
+     * Returns the value for the given key without boxing.
+     *
+     * @param key key
+     * @return value for key
+     * @throws NoSuchElementException if key not present
+     */
+    public long value(int key) {
+        if (!contains(key)) {
+            throw new NoSuchElementException("key not present: " + key);
+        }
+        return values[index(mask, key)];
+    }
+
+    @Override
+    public int size() {
+        return values.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof Integer && contains((Integer) key);
+    }
+
+    @Override
+    public Long get(Object key) {
+        if (containsKey(key)) {
+            return values[index(mask, (Integer) key)];
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public Set<Entry<Integer, Long>> entrySet() {
+        return new AbstractSet<Entry<Integer, Long>>() {
+
+            @Override
+            public Iterator<Entry<Integer, Long>> iterator() {
+                return new Iterator<Entry<Integer, Long>>() {
+
+                    long remaining = mask;
+                    int i;
+
+                    @Override
+                    public boolean hasNext() {
+                        return remaining != 0;
+                    }
+
+                    @Override
+                    public Entry<Integer, Long> next() {
+                        if (remaining == 0) {
+                            throw new NoSuchElementException();
+                        }
+                        int key = Long.numberOfTrailingZeros(remaining);
+                        remaining &= remaining - 1;
+                        return new SimpleImmutableEntry<>(key, values[i++]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return values.length;
+            }
+        };
+    }
+
+    @Override
+    public int hashCode() {
+        // same as the Map contract (sum of entry hash codes) without boxing
+        int h = 0;
+        int i = 0;
+        for (long m = mask; m != 0; m &= m - 1) {
+            h += Long.numberOfTrailingZeros(m) ^ Long.hashCode(values[i++]);
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof LongIdentifiers) {
+            LongIdentifiers other = (LongIdentifiers) o;
+            return mask == other.mask && Arrays.equals(values, other.values);
+        } else {
+            return super.equals(o);
+        }
+    }
+
+    // returns true if and only if key is present in both with the same value
+    boolean common(LongIdentifiers other, int key) {
+        return values[index(mask, key)] == other.values[index(other.mask, key)];
+    }
+
+    // the identifiers of max plus the identifiers of min with keys not in max
+    static LongIdentifiers union(LongIdentifiers max, LongIdentifiers min) {
+        long m = max.mask | min.mask;
+        if (m == max.mask) {
+            return max;
+        }
+        long[] v = new long[Long.bitCount(m)];
+        int i = 0;
+        for (long r = m; r != 0; r &= r - 1) {
+            int key = Long.numberOfTrailingZeros(r);
+            LongIdentifiers source = (max.mask & (1L << key)) != 0 ? max : min;
+            v[i++] = source.values[index(source.mask, key)];
+        }
+        return new LongIdentifiers(m, v);
+    }
+
+    // the identifiers of min that are not common with max
+    static LongIdentifiers withoutCommon(LongIdentifiers min, LongIdentifiers max) {
+        long m = min.mask;
+        for (long r = min.mask & max.mask; r != 0; r &= r - 1) {
+            int key = Long.numberOfTrailingZeros(r);
+            if (min.common(max, key)) {
+                m &= ~(1L << key);
+            }
+        }
+        if (m == min.mask) {
+            return min;
+        }
+        long[] v = new long[Long.bitCount(m)];
+        int i = 0;
+        for (long r = m; r != 0; r &= r - 1) {
+            v[i++] = min.values[index(min.mask, Long.numberOfTrailingZeros(r))];
+        }
+        return new LongIdentifiers(m, v);
+    }
+
+    private static long bit(int key) {
+        if (key < 0 || key > MAX_KEY) {
+            throw new IllegalArgumentException("key must be between 0 and " + MAX_KEY + " inclusive: " + key);
+        }
+        return 1L << key;
+    }
+
+    private static int index(long mask, int key) {
+        return Long.bitCount(mask & ((1L << key) - 1));
+    }
+
+}
@@ -0,0 +1,132 @@
+package com.github.davidmoten.viem;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * A mutable in-memory {@link ViemSystem} like {@link IndexedViemSystem} for
+ * systems where identifier keys are small ordinals (0 to
+ * {@link LongIdentifiers#MAX_KEY} inclusive, for example the ordinal of an enum
+ * of identifier types) and identifier values are longs.
+ *
+ * <p>
+ * Entity-states are held as {@link LongEntityState} (identifiers as a bitmask
+ * plus a primitive array) and the index from identifier key-value to owning
+ * entity-state is a primitive long-keyed open-addressing hash map per key so
+ * neither the entity-states nor the index hold boxed keys, boxed values or map
+ * entries. Entity-states added to the system that are not already
+ * {@link LongEntityState}s are converted.
+ *
+ * <p>
+ * Subclasses supply the rules of the system ({@link #keyGreaterThan},
+ * {@link #metadataGreaterThan}, {@link #mergeable} and
+ * {@link #merge(Object, Object)}).
+ *
+ * <p>
+ * As for {@link IndexedViemSystem} the index relies on the system being
+ * strongly consistent. This class is not thread-safe.
+ *
+ * @param <M> metadata type
+ */
+public abstract class LongIndexedViemSystem<M> implements ViemSystem<Integer, Long, M> {
+
+    private final Set<LongEntityState<M>> entityStates = new HashSet<>();
+
+    // key -> value -> owning entity-state, null if no value for the key yet
+    @SuppressWarnings("unchecked")
+    private final LongObjectHashMap<LongEntityState<M>>[] index = new LongObjectHashMap[LongIdentifiers.MAX_KEY
+            + 1];
+
+    @Override
+    public Iterable<EntityState<Integer, Long, M>> entityStates() {
+        return Collections.unmodifiableSet(entityStates);
+    }
+
+    @Override
+    public Set<EntityState<Integer, Long, M>> matches(Map<Integer, Long> identifiers) {
+        Set<EntityState<Integer, Long, M>> set = new HashSet<>();
+        if (identifiers instanceof LongIdentifiers) {
+            LongIdentifiers ids = (LongIdentifiers) identifiers;
+            for (long m = ids.mask(); m != 0; m &= m - 1) {
+                int key = Long.numberOfTrailingZeros(m);
+                addMatch(set, key, ids.value(key));
+            }
+        } else {
+            for (Entry<Integer, Long> entry : identifiers.entrySet()) {
+                int key = entry.getKey();
+                if (key >= 0 && key <= LongIdentifiers.MAX_KEY) {
+                    addMatch(set, key, entry.getValue());
+                }
+            }
+        }
+        return set;
+    }
+
+    private void addMatch(Set<EntityState<Integer, Long, M>> set, int key, long value) {
+        LongObjectHashMap<LongEntityState<M>> values = index[key];
+        if (values != null) {
+            LongEntityState<M> es = values.get(value);
+            if (es != null) {
+                set.add(es);
+            }
+        }
+    }
+
+    @Override
+    public ViemSystem<Integer, Long, M> update(List<EntityState<Integer, Long, M>> matches,
+            Set<EntityState<Integer, Long, M>> newEntityStates) {
+        for (EntityState<Integer, Long, M> es : matches) {
+            remove(LongEntityState.from(es));
+        }
+        for (EntityState<Integer, Long, M> es : newEntityStates) {
+            add(LongEntityState.from(es));
+        }
+        return this;
+    }
+
+    @Override
+    public EntityState<Integer, Long, M> createEntityState(Map<Integer, Long> identifiers, M metadata) {
+        return LongEntityState.create(identifiers, metadata);
+    }
+
+    /**
+     * Returns the number of entity-states in the system.
+     *
+     * @return the number of entity-states in the system
+     */
+    public int size() {
+        return entityStates.size();
+    }
+
+    private void remove(LongEntityState<M> es) {
+        if (entityStates.remove(es)) {
+            LongIdentifiers ids = es.identifiers();
+            for (long m = ids.mask(); m != 0; m &= m - 1) {
+                int key = Long.numberOfTrailingZeros(m);
+                LongObjectHashMap<LongEntityState<M>> values = index[key];
+                if (values != null) {
+                    values.remove(ids.value(key), es);
+                }
+            }
+        }
+    }
+
+    private void add(LongEntityState<M> es) {
+        entityStates.add(es);
+        LongIdentifiers ids = es.identifiers();
+        for (long m = ids.mask(); m != 0; m &= m - 1) {
+            int key = Long.numberOfTrailingZeros(m);
+            LongObjectHashMap<LongEntityState<M>> values = index[key];
+            if (values == null) {
+                values = new LongObjectHashMap<>();
+                index[key] = values;
+            }
+            values.put(ids.value(key), es);
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+package com.github.davidmoten.viem;
+
+/**
+ * An open-addressing (linear probing) hash map from primitive long keys to
+ * non-null values. Avoids boxing the keys and allocating an entry per mapping.
+ *
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @param <T> value type
+ */
+final class LongObjectHashMap<T> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] keys;
+
+    // null means the slot is empty
+    private Object[] values;
+
+    private int mask;
+
+    private int size;
+
+    LongObjectHashMap() {
+        keys = new long[INITIAL_CAPACITY];
+        values = new Object[INITIAL_CAPACITY];
+        mask = INITIAL_CAPACITY - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(long key) {
+        int i = slot(key);
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                return (T) values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    void put(long key, T value) {
+        if (value == null) {
+            throw new NullPointerException("value cannot be null");
+        }
+        int i = slot(key);
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        // keep load factor at most 0.75
+        if (size * 4 > values.length * 3) {
+            resize(values.length * 2);
+        }
+    }
+
+    /**
+     * Removes the mapping for the key only if it is currently mapped to the
+     * given value (by equals).
+     *
+     * @param key   key
+     * @param value expected value
+     * @return true if removed
+     */
+    boolean remove(long key, Object value) {
+        int i = slot(key);
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                if (!values[i].equals(value)) {
+                    return false;
+                }
+                delete(i);
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    // backward shift deletion so that no tombstones are needed
+    private void delete(int i) {
+        values[i] = null;
+        size--;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] == null) {
+                return;
+            }
+            int k = slot(keys[j]);
+            // leave j where it is if its home slot k is cyclically in (i, j]
+            boolean stays = i <= j ? i < k && k <= j : i < k || k <= j;
+            if (!stays) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                values[j] = null;
+                i = j;
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] != null) {
+                int i = slot(oldKeys[j]);
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private int slot(long key) {
+        // murmur3 finalizer so that sequential keys spread over the table
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.github.davidmoten.viem;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link ShardTransport} whose shards are held in this process, for running
+ * a {@link ShardedViemSystem} on one node and as a stand-in for remote shards
+ * in tests.
+ *
+ * @param <K> identifier key type
+ * @param <V> identifier value type
+ * @param <M> metadata type
+ */
+public final class LoopbackShardTransport<K, V, M> implements ShardTransport<K, V, M> {
+
+    private final List<Shard<K, V, M>> shards;
+
+    /**
+     * Constructor.
+     *
+     * @param shards number of shards
+     */
+    public LoopbackShardTransport(int shards) {
+        if (shards <= 0) {
+            throw new IllegalArgumentException("shards must be positive");
+        }
+        this.shards = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            this.shards.add(new Shard<>(i, shards));
+        }
+    }
+
+    @Override
+    public int shards() {
+        return shards.size();
+    }
+
+    @Override
+    public Set<EntityState<K, V, M>> matches(int shard, Map<K, V> identifiers) {
+        return shards.get(shard).matches(identifiers);
+    }
+
+    @Override
+    public void update(int shard, List<EntityState<K, V, M>> removed, Set<EntityState<K, V, M>> added) {
+        shards.get(shard).update(removed, added);
+    }
+
+    @Override
+    public Iterable<EntityState<K, V, M>> entityStates(int shard) {
+        return shards.get(shard).entityStates();
+    }
+
+    @Override
+    public void lock(int shard) {
+        shards.get(shard).lock.lock();
+    }
+
+    @Override
+    public void unlock(int shard) {
+        shards.get(shard).lock.unlock();
+    }
+
+    private static final class Shard<K, V, M> {
+
+        final ReentrantLock lock = new ReentrantLock();
+
+        private final int number;
+        private final int shards;
+
+        // key -> value -> owning entity-state, for the key-values of this shard
+        private final Map<K, Map<V, EntityState<K, V, M>>> index = new HashMap<>();
+
+        // entity-states whose home is this shard
+        private final Set<EntityState<K, V, M>> home = new HashSet<>();
+
+        Shard(int number, int shards) {
+            this.number = number;
+            this.shards = shards;
+        }
+
+        // reads are made while holding the lock of the shard so a plain map is
+        // safe, except for entityStates which takes the lock itself
+        Set<EntityState<K, V, M>> matches(Map<K, V> identifiers) {
+            Set<EntityState<K, V, M>> set = new HashSet<>();
+            for (Entry<K, V> entry : identifiers.entrySet()) {
+                Map<V, EntityState<K, V, M>> values = index.get(entry.getKey());
+                if (values != null) {
+                    EntityState<K, V, M> es = values.get(entry.getValue());
+                    if (es != null) {
+                        set.add(es);
+                    }
+                }
+            }
+            return set;
+        }
+
+        void update(List<EntityState<K, V, M>> removed, Set<EntityState<K, V, M>> added) {
+            for (EntityState<K, V, M> es : removed) {
+                home.remove(es);
+                for (Entry<K, V> entry : es.identifiers().entrySet()) {
+                    if (owns(entry.getKey(), entry.getValue())) {
+                        Map<V, EntityState<K, V, M>> values = index.get(entry.getKey());
+                        if (values != null) {
+                            values.remove(entry.getValue(), es);
+                        }
+                    }
+                }
+            }
+            for (EntityState<K, V, M> es : added) {
+                if (ShardedViemSystem.home(es.identifiers(), shards) == number) {
+                    home.add(es);
+                }
+                for (Entry<K, V> entry : es.identifiers().entrySet()) {
+                    if (owns(entry.getKey(), entry.getValue())) {
+                        index.computeIfAbsent(entry.getKey(), k -> new HashMap<>()) //
+                                .put(entry.getValue(), es);
+                    }
+                }
+            }
+        }
+
+        List<EntityState<K, V, M>> entityStates() {
+            lock.lock();
+            try {
+                return new ArrayList<>(home);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean owns(K key, V value) {
+            return ShardedViemSystem.shard(key, value, shards) == number;
+        }
+    }
+
+}
@@ -0,0 +1,507 @@
+package com.github.davidmoten.viem;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A {@link ViemSystem} that keeps its entity-states outside the heap in a
+ * memory-mapped file, for systems where identifier keys are small ordinals and
+ * values are longs (as for {@link LongIndexedViemSystem}).
+ *
+ * <p>
+ * Each entity-state is a fixed size record in the file holding its
+ * identifiers (a bitmask of keys and a slot per key) and its metadata written
+ * by the given {@link Serializer} into a fixed number of bytes. The index from
+ * identifier key-value to record is held in a direct buffer and is rebuilt by
+ * a sequential scan of the records when an existing file is opened, so a
+ * restart does not replay any merges. The heap holds only the index of free
+ * records: {@link #matches(Map)} and {@link #entityStates()} return
+ * short-lived views of records whose metadata is deserialized on first use.
+ * A view whose record has since been removed or reused throws
+ * {@link IllegalStateException} from {@link EntityState#metadata()} if its
+ * metadata was not already read.
+ *
+ * <p>
+ * Changes are written to the mapped file as they are made and are flushed to
+ * the storage device by {@link #flush()} and {@link #close()}. The file is not
+ * crash consistent if the process dies during an update.
+ *
+ * <p>
+ * Subclasses supply the rules of the system. This class is not thread-safe.
+ *
+ * @param <M> metadata type
+ */
+public abstract class MappedViemSystem<M> implements ViemSystem<Integer, Long, M>, Closeable {
+
+    private static final long MAGIC = 0x5649454d4d415031L; // VIEMMAP1
+    private static final int HEADER_BYTES = 64;
+    private static final int SEGMENT_BYTES = 1 << 26;
+
+    // header layout
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_KEYS = 8;
+    private static final int HEADER_METADATA_BYTES = 12;
+    private static final int HEADER_RECORD_BYTES = 16;
+    private static final int HEADER_RECORDS_PER_SEGMENT = 20;
+    private static final int HEADER_HIGH_WATER = 24;
+
+    // record layout, a record is free if its mask is zero
+    private static final int RECORD_STAMP = 0;
+    private static final int RECORD_METADATA_LENGTH = 4;
+    private static final int RECORD_MASK = 8;
+    private static final int RECORD_VALUES = 16;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final int keys;
+    private final int metadataBytes;
+    private final int recordBytes;
+    private final int recordsPerSegment;
+    private final Serializer<M> serializer;
+    private final OffHeapIndex index;
+
+    // stack of free records below the high water mark
+    private int[] free = new int[16];
+    private int freeCount;
+
+    // records at or above the high water mark have never been used
+    private int highWater;
+
+    private int size;
+
+    /**
+     * Opens the system stored in the given file, creating the file if it does
+     * not exist.
+     *
+     * @param file          file to store the entity-states in
+     * @param keys          number of identifier keys, keys are 0 to keys - 1
+     *                      inclusive and at most {@link LongIdentifiers#MAX_KEY}
+     * @param metadataBytes maximum number of bytes of serialized metadata per
+     *                      entity-state
+     * @param serializer    metadata serializer
+     * @throws IllegalArgumentException if the file exists and was created with a
+     *                                  different number of keys or metadata bytes
+     * @throws UncheckedIOException     if the file cannot be opened
+     */
+    protected MappedViemSystem(File file, int keys, int metadataBytes, Serializer<M> serializer) {
+        if (keys <= 0 || keys > LongIdentifiers.MAX_KEY + 1) {
+            throw new IllegalArgumentException("keys must be between 1 and " + (LongIdentifiers.MAX_KEY + 1));
+        }
+        if (metadataBytes < 0) {
+            throw new IllegalArgumentException("metadataBytes cannot be negative");
+        }
+        this.keys = keys;
+        this.metadataBytes = metadataBytes;
+        this.serializer = serializer;
+        // align records to 8 bytes so that longs are not split
+        this.recordBytes = (RECORD_VALUES + 8 * keys + metadataBytes + 7) & ~7;
+        try {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            boolean exists = channel.size() >= HEADER_BYTES;
+            this.header = channel.map(MapMode.READ_WRITE, 0, HEADER_BYTES);
+            if (exists) {
+                if (header.getLong(HEADER_MAGIC) != MAGIC) {
+                    throw new IllegalArgumentException("not a mapped system file: " + file);
+                }
+                if (header.getInt(HEADER_KEYS) != keys || header.getInt(HEADER_METADATA_BYTES) != metadataBytes
+                        || header.getInt(HEADER_RECORD_BYTES) != recordBytes) {
+                    throw new IllegalArgumentException("file " + file + " was created with keys="
+                            + header.getInt(HEADER_KEYS) + ", metadataBytes=" + header.getInt(HEADER_METADATA_BYTES));
+                }
+                this.recordsPerSegment = header.getInt(HEADER_RECORDS_PER_SEGMENT);
+                this.highWater = header.getInt(HEADER_HIGH_WATER);
+            } else {
+                this.recordsPerSegment = Math.max(1, SEGMENT_BYTES / recordBytes);
+                header.putLong(HEADER_MAGIC, MAGIC);
+                header.putInt(HEADER_KEYS, keys);
+                header.putInt(HEADER_METADATA_BYTES, metadataBytes);
+                header.putInt(HEADER_RECORD_BYTES, recordBytes);
+                header.putInt(HEADER_RECORDS_PER_SEGMENT, recordsPerSegment);
+                header.putInt(HEADER_HIGH_WATER, 0);
+            }
+            for (int s = 0; s < (highWater + recordsPerSegment - 1) / recordsPerSegment; s++) {
+                mapSegment();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.index = new OffHeapIndex(highWater);
+        rebuild();
+    }
+
+    // scans the records to rebuild the index, the free records and the size
+    private void rebuild() {
+        for (int r = 0; r < highWater; r++) {
+            long mask = segment(r).getLong(offset(r) + RECORD_MASK);
+            if (mask == 0) {
+                pushFree(r);
+            } else {
+                putIndex(r, mask);
+                size++;
+            }
+        }
+    }
+
+    @Override
+    public Iterable<EntityState<Integer, Long, M>> entityStates() {
+        return () -> new Iterator<EntityState<Integer, Long, M>>() {
+
+            int next = advance(0);
+
+            private int advance(int r) {
+                while (r < highWater && segment(r).getLong(offset(r) + RECORD_MASK) == 0) {
+                    r++;
+                }
+                return r;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < highWater;
+            }
+
+            @Override
+            public EntityState<Integer, Long, M> next() {
+                if (next >= highWater) {
+                    throw new NoSuchElementException();
+                }
+                EntityState<Integer, Long, M> es = view(next);
+                next = advance(next + 1);
+                return es;
+            }
+        };
+    }
+
+    @Override
+    public Set<EntityState<Integer, Long, M>> matches(Map<Integer, Long> identifiers) {
+        Set<EntityState<Integer, Long, M>> set = new HashSet<>();
+        int[] records = new int[identifiers.size()];
+        int n = 0;
+        if (identifiers instanceof LongIdentifiers) {
+            LongIdentifiers ids = (LongIdentifiers) identifiers;
+            for (long m = ids.mask(); m != 0; m &= m - 1) {
+                int key = Long.numberOfTrailingZeros(m);
+                n = addMatch(set, records, n, key, ids.value(key));
+            }
+        } else {
+            for (Entry<Integer, Long> entry : identifiers.entrySet()) {
+                n = addMatch(set, records, n, entry.getKey(), entry.getValue());
+            }
+        }
+        return set;
+    }
+
+    private int addMatch(Set<EntityState<Integer, Long, M>> set, int[] records, int n, int key, long value) {
+        if (key < 0 || key >= keys) {
+            return n;
+        }
+        int r = index.get(key, value);
+        if (r == OffHeapIndex.ABSENT) {
+            return n;
+        }
+        for (int i = 0; i < n; i++) {
+            if (records[i] == r) {
+                return n;
+            }
+        }
+        set.add(view(r));
+        records[n] = r;
+        return n + 1;
+    }
+
+    @Override
+    public ViemSystem<Integer, Long, M> update(List<EntityState<Integer, Long, M>> matches,
+            Set<EntityState<Integer, Long, M>> newEntityStates) {
+        // an unchanged view of a match is left in its record
+        Set<Integer> keep = new HashSet<>();
+        List<LongIdentifiers> addIds = new ArrayList<>(newEntityStates.size());
+        List<byte[]> addMetadata = new ArrayList<>(newEntityStates.size());
+        ByteBuffer scratch = ByteBuffer.allocate(metadataBytes);
+        for (EntityState<Integer, Long, M> es : newEntityStates) {
+            int r = validRecord(es);
+            if (r != OffHeapIndex.ABSENT) {
+                keep.add(r);
+            } else {
+                // serialize before changing the file so a failure leaves it unchanged
+                LongIdentifiers ids = LongIdentifiers.from(es.identifiers());
+                if (ids.isEmpty()) {
+                    throw new IllegalArgumentException("identifiers cannot be empty");
+                }
+                if (Long.numberOfLeadingZeros(ids.mask()) < 64 - keys) {
+                    throw new IllegalArgumentException("identifier keys must be less than " + keys + ": " + ids);
+                }
+                addIds.add(ids);
+                addMetadata.add(serialize(es.metadata(), scratch));
+            }
+        }
+        for (EntityState<Integer, Long, M> es : matches) {
+            int r = recordOf(es);
+            if (r != OffHeapIndex.ABSENT && !keep.contains(r)) {
+                freeRecord(r);
+            }
+        }
+        for (int i = 0; i < addIds.size(); i++) {
+            write(addIds.get(i), addMetadata.get(i));
+        }
+        return this;
+    }
+
+    @Override
+    public EntityState<Integer, Long, M> createEntityState(Map<Integer, Long> identifiers, M metadata) {
+        return LongEntityState.create(identifiers, metadata);
+    }
+
+    /**
+     * Returns the number of entity-states in the system.
+     *
+     * @return the number of entity-states in the system
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Writes changes to the mapped file through to the storage device.
+     */
+    public void flush() {
+        header.force();
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Flushes and closes the file. The system must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        flush();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private byte[] serialize(M metadata, ByteBuffer scratch) {
+        scratch.clear();
+        try {
+            serializer.write(metadata, scratch);
+        } catch (BufferOverflowException e) {
+            throw new IllegalArgumentException("serialized metadata exceeds " + metadataBytes + " bytes: " + metadata,
+                    e);
+        }
+        return Arrays.copyOf(scratch.array(), scratch.position());
+    }
+
+    // returns the record of a view of this system that is still current
+    private int validRecord(EntityState<Integer, Long, M> es) {
+        if (es instanceof View && ((View<?>) es).system == this) {
+            View<?> v = (View<?>) es;
+            if (segment(v.record).getInt(offset(v.record) + RECORD_STAMP) == v.stamp) {
+                return v.record;
+            }
+        }
+        return OffHeapIndex.ABSENT;
+    }
+
+    private int recordOf(EntityState<Integer, Long, M> es) {
+        int r = validRecord(es);
+        if (r != OffHeapIndex.ABSENT) {
+            return r;
+        }
+        LongIdentifiers ids = LongIdentifiers.from(es.identifiers());
+        if (ids.isEmpty()) {
+            return OffHeapIndex.ABSENT;
+        }
+        int key = Long.numberOfTrailingZeros(ids.mask());
+        if (key >= keys) {
+            return OffHeapIndex.ABSENT;
+        }
+        r = index.get(key, ids.value(key));
+        if (r != OffHeapIndex.ABSENT && readIdentifiers(r).equals(ids)) {
+            return r;
+        } else {
+            return OffHeapIndex.ABSENT;
+        }
+    }
+
+    private void write(LongIdentifiers ids, byte[] metadata) {
+        int r = allocate();
+        ByteBuffer segment = segment(r);
+        int offset = offset(r);
+        for (long m = ids.mask(); m != 0; m &= m - 1) {
+            int key = Long.numberOfTrailingZeros(m);
+            segment.putLong(offset + RECORD_VALUES + 8 * key, ids.value(key));
+        }
+        ByteBuffer b = segment.duplicate();
+        b.position(offset + RECORD_VALUES + 8 * keys);
+        b.put(metadata);
+        segment.putInt(offset + RECORD_METADATA_LENGTH, metadata.length);
+        segment.putInt(offset + RECORD_STAMP, segment.getInt(offset + RECORD_STAMP) + 1);
+        // the mask marks the record as in use so is written last
+        segment.putLong(offset + RECORD_MASK, ids.mask());
+        putIndex(r, ids.mask());
+        size++;
+    }
+
+    private void freeRecord(int r) {
+        ByteBuffer segment = segment(r);
+        int offset = offset(r);
+        long mask = segment.getLong(offset + RECORD_MASK);
+        for (long m = mask; m != 0; m &= m - 1) {
+            int key = Long.numberOfTrailingZeros(m);
+            index.remove(key, segment.getLong(offset + RECORD_VALUES + 8 * key), r);
+        }
+        segment.putLong(offset + RECORD_MASK, 0);
+        segment.putInt(offset + RECORD_STAMP, segment.getInt(offset + RECORD_STAMP) + 1);
+        pushFree(r);
+        size--;
+    }
+
+    private void putIndex(int r, long mask) {
+        ByteBuffer segment = segment(r);
+        int offset = offset(r);
+        for (long m = mask; m != 0; m &= m - 1) {
+            int key = Long.numberOfTrailingZeros(m);
+            index.put(key, segment.getLong(offset + RECORD_VALUES + 8 * key), r);
+        }
+    }
+
+    private int allocate() {
+        if (freeCount > 0) {
+            return free[--freeCount];
+        }
+        if (highWater == Integer.MAX_VALUE) {
+            throw new IllegalStateException("too many records");
+        }
+        int r = highWater;
+        if (r / recordsPerSegment >= segments.size()) {
+            try {
+                mapSegment();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        highWater++;
+        header.putInt(HEADER_HIGH_WATER, highWater);
+        return r;
+    }
+
+    private void pushFree(int r) {
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, free.length * 2);
+        }
+        free[freeCount++] = r;
+    }
+
+    private void mapSegment() throws IOException {
+        long position = HEADER_BYTES + (long) segments.size() * recordsPerSegment * recordBytes;
+        // mapping beyond the end of the file extends the file
+        segments.add(channel.map(MapMode.READ_WRITE, position, (long) recordsPerSegment * recordBytes));
+    }
+
+    private ByteBuffer segment(int record) {
+        return segments.get(record / recordsPerSegment);
+    }
+
+    private int offset(int record) {
+        return (record % recordsPerSegment) * recordBytes;
+    }
+
+    private LongIdentifiers readIdentifiers(int r) {
+        ByteBuffer segment = segment(r);
+        int offset = offset(r);
+        long mask = segment.getLong(offset + RECORD_MASK);
+        long[] values = new long[Long.bitCount(mask)];
+        int i = 0;
+        for (long m = mask; m != 0; m &= m - 1) {
+            values[i++] = segment.getLong(offset + RECORD_VALUES + 8 * Long.numberOfTrailingZeros(m));
+        }
+        return LongIdentifiers.create(mask, values);
+    }
+
+    private M readMetadata(int r, int stamp) {
+        ByteBuffer segment = segment(r);
+        int offset = offset(r);
+        if (segment.getInt(offset + RECORD_STAMP) != stamp) {
+            throw new IllegalStateException("entity-state has been removed from the system");
+        }
+        ByteBuffer b = segment.duplicate();
+        b.position(offset + RECORD_VALUES + 8 * keys);
+        b.limit(b.position() + segment.getInt(offset + RECORD_METADATA_LENGTH));
+        return serializer.read(b);
+    }
+
+    private View<M> view(int r) {
+        return new View<M>(this, r, segment(r).getInt(offset(r) + RECORD_STAMP), readIdentifiers(r));
+    }
+
+    // a view of a record, identifiers are read eagerly because they determine
+    // equality and the metadata is read on first use
+    private static final class View<M> implements EntityState<Integer, Long, M> {
+
+        final MappedViemSystem<M> system;
+        final int record;
+        final int stamp;
+        private final LongIdentifiers identifiers;
+        private M metadata;
+        private boolean loaded;
+
+        View(MappedViemSystem<M> system, int record, int stamp, LongIdentifiers identifiers) {
+            this.system = system;
+            this.record = record;
+            this.stamp = stamp;
+            this.identifiers = identifiers;
+        }
+
+        @Override
+        public LongIdentifiers identifiers() {
+            return identifiers;
+        }
+
+        @Override
+        public M metadata() {
+            if (!loaded) {
+                metadata = system.readMetadata(record, stamp);
+                loaded = true;
+            }
+            return metadata;
+        }
+
+        @Override
+        public int hashCode() {
+            return EntityState.hashCode(this);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return EntityState.equals(this, obj);
+        }
+
+        @Override
+        public String toString() {
+            return "MappedEntityState [record=" + record + ", ids=" + identifiers + "]";
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+package com.github.davidmoten.viem;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wraps a {@link ViemSystem} so that the results of the rules
+ * {@link #mergeable(Object, Object)} and {@link #merge(Object, Object)} are
+ * remembered for recently seen pairs of metadata, for systems where those
+ * rules are expensive (for example geodesic speed checks or lookups against
+ * reference data) and the same pairs are evaluated repeatedly (for example by
+ * {@link #mergeAll(java.util.List)} or {@link ParallelMerge}).
+ *
+ * <p>
+ * Pairs are keyed on the identity of the metadata objects and, as both rules
+ * are required to be commutative, {@code (a, b)} and {@code (b, a)} share an
+ * entry. Each memo is a fixed size direct-mapped table: a pair hashes to one
+ * slot and a new pair overwrites whatever occupied it, so memory is bounded
+ * and lookups never block. The rules must be pure functions of the metadata
+ * (which must not be mutated) for memoization to be safe.
+ *
+ * <p>
+ * The memos are thread-safe (the rules of the wrapped system must be too if
+ * used from multiple threads).
+ *
+ * @param <K> identifier key type
+ * @param <V> identifier value type
+ * @param <M> metadata type
+ */
+public final class MemoizingViemSystem<K, V, M> extends ForwardingViemSystem<K, V, M> {
+
+    private final Memo<Boolean> mergeable;
+    private final Memo<M> merge;
+
+    /**
+     * Constructor.
+     *
+     * @param delegate system to wrap
+     * @param size     number of slots in each memo, is rounded up to a power of
+     *                 two
+     */
+    public MemoizingViemSystem(ViemSystem<K, V, M> delegate, int size) {
+        super(delegate);
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+        this.mergeable = new Memo<>(size);
+        this.merge = new Memo<>(size);
+    }
+
+    @Override
+    public boolean mergeable(M a, M b) {
+        Boolean result = mergeable.get(a, b);
+        if (result == null) {
+            result = super.mergeable(a, b);
+            mergeable.put(a, b, result);
+        }
+        return result;
+    }
+
+    @Override
+    public M merge(M a, M b) {
+        M result = merge.get(a, b);
+        if (result == null) {
+            result = super.merge(a, b);
+            merge.put(a, b, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of calls to {@link #mergeable(Object, Object)}
+     * answered from the memo.
+     *
+     * @return the number of mergeable memo hits
+     */
+    public long mergeableHits() {
+        return mergeable.hits.sum();
+    }
+
+    /**
+     * Returns the number of calls to {@link #mergeable(Object, Object)} passed
+     * to the wrapped system.
+     *
+     * @return the number of mergeable memo misses
+     */
+    public long mergeableMisses() {
+        return mergeable.misses.sum();
+    }
+
+    /**
+     * Returns the number of calls to {@link #merge(Object, Object)} answered
+     * from the memo.
+     *
+     * @return the number of merge memo hits
+     */
+    public long mergeHits() {
+        return merge.hits.sum();
+    }
+
+    /**
+     * Returns the number of calls to {@link #merge(Object, Object)} passed to
+     * the wrapped system.
+     *
+     * @return the number of merge memo misses
+     */
+    public long mergeMisses() {
+        return merge.misses.sum();
+    }
+
+    // direct-mapped table of results keyed on an unordered pair of identities
+    private static final class Memo<R> {
+
+        private final AtomicReferenceArray<Entry<R>> slots;
+        private final int mask;
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+
+        Memo(int size) {
+            int n = Integer.highestOneBit(size);
+            if (n < size) {
+                n = n << 1;
+            }
+            this.slots = new AtomicReferenceArray<>(n);
+            this.mask = n - 1;
+        }
+
+        R get(Object a, Object b) {
+            Entry<R> e = slots.get(slot(a, b));
+            if (e != null && ((e.a == a && e.b == b) || (e.a == b && e.b == a))) {
+                hits.increment();
+                return e.result;
+            }
+            misses.increment();
+            return null;
+        }
+
+        void put(Object a, Object b, R result) {
+            if (result != null) {
+                slots.set(slot(a, b), new Entry<>(a, b, result));
+            }
+        }
+
+        private int slot(Object a, Object b) {
+            // symmetric in a and b
+            int h = System.identityHashCode(a) + System.identityHashCode(b);
+            h *= 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
+
+    private static final class Entry<R> {
+        final Object a;
+        final Object b;
+        final R result;
+
+        Entry(Object a, Object b, R result) {
+            this.a = a;
+            this.b = b;
+            this.result = result;
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+package com.github.davidmoten.viem;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A change to a system made by an update (for example the update made by a
+ * merge) derived from the entity-states the update removed and added.
+ *
+ * <p>
+ * Each removed entity-state has as its successor the added entity-state that
+ * holds its strongest identifier key-value (if any). An added entity-state
+ * with no predecessors is {@link Type#CREATED}, with one predecessor is
+ * {@link Type#UPDATED} and with more than one predecessor is
+ * {@link Type#MERGED}. If it also takes identifiers from removed entity-states
+ * whose successor is another entity-state then it is
+ * {@link Type#TRANSFERRED}. A removed entity-state without a successor is
+ * {@link Type#REMOVED}. An added entity-state identical (in identifiers and
+ * metadata) to its only predecessor produces no event.
+ *
+ * @param <K> identifier key type
+ * @param <V> identifier value type
+ * @param <M> metadata type
+ */
+public final class MergeEvent<K, V, M> {
+
+    public enum Type {
+        /**
+         * A new entity.
+         */
+        CREATED,
+        /**
+         * The metadata or identifiers of an entity changed.
+         */
+        UPDATED,
+        /**
+         * Two or more entities became one.
+         */
+        MERGED,
+        /**
+         * An entity took identifiers from other entities that live on.
+         */
+        TRANSFERRED,
+        /**
+         * An entity was removed.
+         */
+        REMOVED;
+    }
+
+    private final Type type;
+    private final EntityState<K, V, M> entityState;
+    private final List<EntityState<K, V, M>> sources;
+
+    MergeEvent(Type type, EntityState<K, V, M> entityState, List<EntityState<K, V, M>> sources) {
+        this.type = type;
+        this.entityState = entityState;
+        this.sources = Collections.unmodifiableList(sources);
+    }
+
+    public Type type() {
+        return type;
+    }
+
+    /**
+     * Returns the entity-state after the change, or the removed entity-state for
+     * {@link Type#REMOVED}.
+     *
+     * @return the entity-state after the change
+     */
+    public EntityState<K, V, M> entityState() {
+        return entityState;
+    }
+
+    /**
+     * Returns the removed entity-states that the entity-state was derived from
+     * (predecessors first, then those it took identifiers from). Empty for
+     * {@link Type#CREATED} and {@link Type#REMOVED}.
+     *
+     * @return the entity-states the change was derived from
+     */
+    public List<EntityState<K, V, M>> sources() {
+        return sources;
+    }
+
+    @Override
+    public String toString() {
+        return "MergeEvent [type=" + type + ", entityState=" + entityState + ", sources=" + sources + "]";
+    }
+
+    /**
+     * Returns the events for an update of the system that removes the given
+     * matches and adds the given new entity-states.
+     *
+     * @param <K>             identifier key type
+     * @param <V>             identifier value type
+     * @param <M>             metadata type
+     * @param system          system supplying the key order
+     * @param matches         removed entity-states
+     * @param newEntityStates added entity-states
+     * @return events, for added entity-states first
+     */
+    static <K, V, M> List<MergeEvent<K, V, M>> derive(ViemSystem<K, V, M> system,
+            Collection<EntityState<K, V, M>> matches, Set<EntityState<K, V, M>> newEntityStates) {
+        // key -> value -> added entity-state
+        Map<K, Map<V, EntityState<K, V, M>>> owners = new HashMap<>();
+        for (EntityState<K, V, M> n : newEntityStates) {
+            for (Entry<K, V> entry : n.identifiers().entrySet()) {
+                owners.computeIfAbsent(entry.getKey(), k -> new HashMap<>()).put(entry.getValue(), n);
+            }
+        }
+        Map<EntityState<K, V, M>, EntityState<K, V, M>> successors = new IdentityHashMap<>();
+        Map<EntityState<K, V, M>, List<EntityState<K, V, M>>> predecessors = new IdentityHashMap<>();
+        Map<EntityState<K, V, M>, List<EntityState<K, V, M>>> donors = new IdentityHashMap<>();
+        for (EntityState<K, V, M> m : matches) {
+            EntityState<K, V, M> successor = owner(owners, m.identifiers(), strongestKey(system, m.identifiers()));
+            if (successor != null) {
+                successors.put(m, successor);
+                predecessors.computeIfAbsent(successor, x -> new ArrayList<>()).add(m);
+            }
+            for (Entry<K, V> entry : m.identifiers().entrySet()) {
+                EntityState<K, V, M> n = owner(owners, m.identifiers(), entry.getKey());
+                if (n != null && n != successor) {
+                    List<EntityState<K, V, M>> list = donors.computeIfAbsent(n, x -> new ArrayList<>());
+                    if (!containsIdentical(list, m)) {
+                        list.add(m);
+                    }
+                }
+            }
+        }
+        List<MergeEvent<K, V, M>> events = new ArrayList<>();
+        for (EntityState<K, V, M> n : newEntityStates) {
+            List<EntityState<K, V, M>> preds = predecessors.getOrDefault(n, Collections.emptyList());
+            List<EntityState<K, V, M>> from = donors.getOrDefault(n, Collections.emptyList());
+            List<EntityState<K, V, M>> sources = new ArrayList<>(preds);
+            sources.addAll(from);
+            if (sources.isEmpty()) {
+                events.add(new MergeEvent<>(Type.CREATED, n, sources));
+            } else if (preds.size() > 1) {
+                events.add(new MergeEvent<>(Type.MERGED, n, sources));
+            } else if (!from.isEmpty()) {
+                events.add(new MergeEvent<>(Type.TRANSFERRED, n, sources));
+            } else {
+                EntityState<K, V, M> m = preds.get(0);
+                if (!m.identifiers().equals(n.identifiers()) || !Objects.equals(m.metadata(), n.metadata())) {
+                    events.add(new MergeEvent<>(Type.UPDATED, n, sources));
+                }
+            }
+        }
+        for (EntityState<K, V, M> m : matches) {
+            if (!successors.containsKey(m)) {
+                events.add(new MergeEvent<>(Type.REMOVED, m, Collections.emptyList()));
+            }
+        }
+        return events;
+    }
+
+    private static <K, V, M> EntityState<K, V, M> owner(Map<K, Map<V, EntityState<K, V, M>>> owners,
+            Map<K, V> identifiers, K key) {
+        Map<V, EntityState<K, V, M>> values = owners.get(key);
+        return values == null ? null : values.get(identifiers.get(key));
+    }
+
+    private static <K, V, M> K strongestKey(ViemSystem<K, V, M> system, Map<K, V> identifiers) {
+        K strongest = null;
+        for (K key : identifiers.keySet()) {
+            if (strongest == null || system.keyGreaterThan(key, strongest)) {
+                strongest = key;
+            }
+        }
+        return strongest;
+    }
+
+    private static boolean containsIdentical(List<?> list, Object o) {
+        for (Object x : list) {
+            if (x == o) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,249 @@
+package com.github.davidmoten.viem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import com.github.davidmoten.viem.MergeEvent.Type;
+
+/**
+ * A bounded buffer of {@link MergeEvent}s for one subscriber of a
+ * {@link PublishingViemSystem}. The subscriber pulls events at its own pace
+ * with {@link #poll()}, {@link #poll(long, TimeUnit)} or
+ * {@link #drain(Consumer, int)} so that a slow subscriber never blocks the
+ * system.
+ *
+ * <p>
+ * Pending events are coalesced per entity: an update of an entity whose
+ * previous event has not been consumed yet replaces that event (keeping its
+ * position and, for a created entity, its type). If the buffer is full and an
+ * event cannot be coalesced the oldest pending event is dropped and counted by
+ * {@link #dropped()} so that the subscriber can resynchronize (for example from
+ * {@link ViemSystem#toSet()}).
+ *
+ * @param <K> identifier key type
+ * @param <V> identifier value type
+ * @param <M> metadata type
+ */
+public final class MergeEventBuffer<K, V, M> {
+
+    private final int capacity;
+    private final PublishingViemSystem<K, V, M> system;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    // pending events by a per-event token in arrival order, guarded by lock
+    private final LinkedHashMap<Long, MergeEvent<K, V, M>> pending = new LinkedHashMap<>();
+
+    // token of the pending event for the identifiers of each created or updated
+    // entity-state, guarded by lock
+    private final Map<Map<K, V>, Long> byIdentifiers = new HashMap<>();
+
+    private long nextToken;
+    private long dropped;
+    private long coalesced;
+
+    MergeEventBuffer(PublishingViemSystem<K, V, M> system, int capacity) {
+        this.system = system;
+        this.capacity = capacity;
+    }
+
+    void offer(List<MergeEvent<K, V, M>> events) {
+        lock.lock();
+        try {
+            boolean wasEmpty = pending.isEmpty();
+            for (MergeEvent<K, V, M> event : events) {
+                offer(event);
+            }
+            if (wasEmpty && !pending.isEmpty()) {
+                notEmpty.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void offer(MergeEvent<K, V, M> event) {
+        if (event.type() == Type.UPDATED) {
+            Map<K, V> source = event.sources().get(0).identifiers();
+            Long token = byIdentifiers.remove(source);
+            if (token != null) {
+                MergeEvent<K, V, M> previous = pending.get(token);
+                MergeEvent<K, V, M> replacement = new MergeEvent<>(previous.type(), event.entityState(),
+                        previous.sources());
+                pending.put(token, replacement);
+                byIdentifiers.put(event.entityState().identifiers(), token);
+                coalesced++;
+                return;
+            }
+        }
+        // pending events for entity-states this event consumes can no longer be
+        // coalesced with later events
+        for (EntityState<K, V, M> source : event.sources()) {
+            byIdentifiers.remove(source.identifiers());
+        }
+        if (event.type() == Type.REMOVED) {
+            byIdentifiers.remove(event.entityState().identifiers());
+        }
+        if (pending.size() == capacity) {
+            Iterator<Map.Entry<Long, MergeEvent<K, V, M>>> it = pending.entrySet().iterator();
+            Map.Entry<Long, MergeEvent<K, V, M>> oldest = it.next();
+            it.remove();
+            byIdentifiers.remove(oldest.getValue().entityState().identifiers(), oldest.getKey());
+            dropped++;
+        }
+        long token = nextToken++;
+        pending.put(token, event);
+        if (event.type() == Type.CREATED || event.type() == Type.UPDATED) {
+            byIdentifiers.put(event.entityState().identifiers(), token);
+        }
+    }
+
+    /**
+     * Returns and removes the oldest pending event or null if none.
+     *
+     * @return the oldest pending event or null
+     */
+    public MergeEvent<K, V, M> poll() {
+        lock.lock();
+        try {
+            return removeOldest();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns and removes the oldest pending event, waiting up to the given time
+     * for one to arrive.
+     *
+     * @param timeout maximum time to wait
+     * @param unit    unit of timeout
+     * @return the oldest pending event or null if none arrived in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public MergeEvent<K, V, M> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (pending.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return removeOldest();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes up to {@code max} pending events in arrival order and passes them
+     * to the consumer (outside of the lock of the buffer).
+     *
+     * @param consumer receives the events
+     * @param max      maximum number of events to drain
+     * @return the number of events drained
+     */
+    public int drain(Consumer<? super MergeEvent<K, V, M>> consumer, int max) {
+        List<MergeEvent<K, V, M>> list;
+        lock.lock();
+        try {
+            int n = Math.min(max, pending.size());
+            if (n == 0) {
+                return 0;
+            }
+            list = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                list.add(removeOldest());
+            }
+        } finally {
+            lock.unlock();
+        }
+        list.forEach(consumer);
+        return list.size();
+    }
+
+    private MergeEvent<K, V, M> removeOldest() {
+        Iterator<Map.Entry<Long, MergeEvent<K, V, M>>> it = pending.entrySet().iterator();
+        if (!it.hasNext()) {
+            return null;
+        }
+        Map.Entry<Long, MergeEvent<K, V, M>> oldest = it.next();
+        it.remove();
+        byIdentifiers.remove(oldest.getValue().entityState().identifiers(), oldest.getKey());
+        return oldest.getValue();
+    }
+
+    /**
+     * Returns the number of pending events.
+     *
+     * @return the number of pending events
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of events dropped because the buffer was full.
+     *
+     * @return the number of dropped events
+     */
+    public long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of events coalesced into a pending event.
+     *
+     * @return the number of coalesced events
+     */
+    public long coalesced() {
+        lock.lock();
+        try {
+            return coalesced;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops delivery of events to this buffer. Pending events can still be
+     * consumed.
+     */
+    public void cancel() {
+        system.unsubscribe(this);
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "MergeEventBuffer [size=" + pending.size() + ", capacity=" + capacity + ", dropped=" + dropped
+                    + ", coalesced=" + coalesced + ", pending=" + Collections.unmodifiableCollection(pending.values())
+                    + "]";
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -1,6 +1,7 @@
 package com.github.davidmoten.viem;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 final class MergeResult<K,V, M> {
@@ -8,9 +9,22 @@ final class MergeResult<K,V, M> {
     final List<EntityState<K, V, M>> matches;
     final Set<EntityState<K, V, M>> newEntityStates;
 
+    // new entity-state -> the match it descends from (whose identifiers it
+    // mostly keeps) so that a system can move only the identifiers that differ,
+    // null if the lineage is not known. Keyed by identity (or a single entry) so
+    // that a lookup does not hash the identifiers. A new entity-state may be its
+    // own origin (unchanged)
+    final Map<EntityState<K, V, M>, EntityState<K, V, M>> origins;
+
     MergeResult(List<EntityState<K, V, M>> matches, Set<EntityState<K, V, M>> newEntityStates) {
+        this(matches, newEntityStates, null);
+    }
+
+    MergeResult(List<EntityState<K, V, M>> matches, Set<EntityState<K, V, M>> newEntityStates,
+            Map<EntityState<K, V, M>, EntityState<K, V, M>> origins) {
         this.matches = matches;
         this.newEntityStates = newEntityStates;
+        this.origins = origins;
     }
 
 }
@@ -0,0 +1,185 @@
+package com.github.davidmoten.viem;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An open-addressing (linear probing) hash map from an identifier key-value
+ * (small int key, long value) to a non-negative record number held in a
+ * direct {@link ByteBuffer} so that the index adds nothing to the heap per
+ * entry. Each slot is 16 bytes: the value, the key plus one (zero marks an
+ * empty slot) and the record number.
+ *
+ * <p>
+ * This class is not thread-safe.
+ */
+final class OffHeapIndex {
+
+    static final int ABSENT = -1;
+
+    private static final int SLOT_BYTES = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+    // largest power of two whose buffer size fits in an int
+    private static final int MAX_CAPACITY = 1 << 26;
+
+    private final int maxCapacity;
+
+    private ByteBuffer slots;
+
+    private int mask;
+
+    private int size;
+
+    OffHeapIndex() {
+        this(INITIAL_CAPACITY);
+    }
+
+    OffHeapIndex(int expectedSize) {
+        this(expectedSize, MAX_CAPACITY);
+    }
+
+    // maxCapacity is a power of two no less than the initial capacity, visible
+    // for testing
+    OffHeapIndex(int expectedSize, int maxCapacity) {
+        this.maxCapacity = maxCapacity;
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < maxCapacity && capacity * 3L < expectedSize * 4L) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(int key, long value) {
+        int i = slot(key, value);
+        while (occupied(i)) {
+            if (matches(i, key, value)) {
+                return slots.getInt(i * SLOT_BYTES + 12);
+            }
+            i = (i + 1) & mask;
+        }
+        return ABSENT;
+    }
+
+    void put(int key, long value, int record) {
+        int i = slot(key, value);
+        while (occupied(i)) {
+            if (matches(i, key, value)) {
+                slots.putInt(i * SLOT_BYTES + 12, record);
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        // keep load factor at most 0.75, checked before writing so that a put
+        // that fails leaves the index unchanged
+        if ((size + 1) * 4L > (mask + 1) * 3L) {
+            if (mask + 1 >= maxCapacity) {
+                throw new IllegalStateException("index is full");
+            }
+            resize((mask + 1) * 2);
+            i = slot(key, value);
+            while (occupied(i)) {
+                i = (i + 1) & mask;
+            }
+        }
+        write(i, key, value, record);
+        size++;
+    }
+
+    /**
+     * Removes the mapping for the key-value only if it maps to the given
+     * record.
+     *
+     * @param key    key
+     * @param value  value
+     * @param record expected record
+     * @return true if removed
+     */
+    boolean remove(int key, long value, int record) {
+        int i = slot(key, value);
+        while (occupied(i)) {
+            if (matches(i, key, value)) {
+                if (slots.getInt(i * SLOT_BYTES + 12) != record) {
+                    return false;
+                }
+                delete(i);
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    // backward shift deletion so that no tombstones are needed
+    private void delete(int i) {
+        slots.putInt(i * SLOT_BYTES + 8, 0);
+        size--;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (!occupied(j)) {
+                return;
+            }
+            int k = slot(slots.getInt(j * SLOT_BYTES + 8) - 1, slots.getLong(j * SLOT_BYTES));
+            // leave j where it is if its home slot k is cyclically in (i, j]
+            boolean stays = i <= j ? i < k && k <= j : i < k || k <= j;
+            if (!stays) {
+                write(i, slots.getInt(j * SLOT_BYTES + 8) - 1, slots.getLong(j * SLOT_BYTES),
+                        slots.getInt(j * SLOT_BYTES + 12));
+                slots.putInt(j * SLOT_BYTES + 8, 0);
+                i = j;
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        ByteBuffer old = slots;
+        int oldCapacity = mask + 1;
+        allocate(capacity);
+        for (int j = 0; j < oldCapacity; j++) {
+            int keyPlusOne = old.getInt(j * SLOT_BYTES + 8);
+            if (keyPlusOne != 0) {
+                long value = old.getLong(j * SLOT_BYTES);
+                int i = slot(keyPlusOne - 1, value);
+                while (occupied(i)) {
+                    i = (i + 1) & mask;
+                }
+                write(i, keyPlusOne - 1, value, old.getInt(j * SLOT_BYTES + 12));
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        // a new direct buffer is zeroed so every slot is empty
+        slots = ByteBuffer.allocateDirect(capacity * SLOT_BYTES);
+        mask = capacity - 1;
+    }
+
+    private boolean occupied(int i) {
+        return slots.getInt(i * SLOT_BYTES + 8) != 0;
+    }
+
+    private boolean matches(int i, int key, long value) {
+        return slots.getInt(i * SLOT_BYTES + 8) == key + 1 && slots.getLong(i * SLOT_BYTES) == value;
+    }
+
+    private void write(int i, int key, long value, int record) {
+        slots.putLong(i * SLOT_BYTES, value);
+        slots.putInt(i * SLOT_BYTES + 8, key + 1);
+        slots.putInt(i * SLOT_BYTES + 12, record);
+    }
+
+    private int slot(int key, long value) {
+        // murmur3 finalizer so that sequential values spread over the table
+        long h = value * 31 + key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+}
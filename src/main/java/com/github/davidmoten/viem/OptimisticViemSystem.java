@@ -0,0 +1,302 @@
+package com.github.davidmoten.viem;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe in-memory {@link ViemSystem} that merges optimistically
+ * without holding locks.
+ *
+ * <p>
+ * Each identifier key-value maps to a slot that refers to the entity-state
+ * that owns it and is replaced (never modified) on every change of owner. A call to {@link #merge(EntityState)} takes a
+ * snapshot of the slots of the arriving identifiers, runs the algorithm against
+ * the snapshot matches and then commits by compare-and-set of every affected
+ * slot from its snapshot value to a claim. If any slot has changed since the
+ * snapshot the claims made so far are rolled back and the merge is retried
+ * from a fresh snapshot. Once all affected slots are claimed the new
+ * entity-states are published to them. If a commit fails with an exception
+ * (for example from the {@code hashCode} of an entity-state) the slots it still
+ * holds claims on are rolled back so that other merges do not wait on them.
+ *
+ * <p>
+ * Readers never wait: {@link #matches(Map)} reports the owner before the claim
+ * for a slot that is mid-commit. Merges that touch disjoint identifiers never
+ * conflict. The number of commits and retries is exposed by {@link #commits()}
+ * and {@link #retries()} so that contention can be observed.
+ *
+ * <p>
+ * Subclasses supply the rules of the system which must be thread-safe.
+ *
+ * @param <K> identifier key type
+ * @param <V> identifier value type
+ * @param <M> metadata type
+ */
+public abstract class OptimisticViemSystem<K, V, M> implements ViemSystem<K, V, M> {
+
+    private final Set<EntityState<K, V, M>> entityStates = ConcurrentHashMap.newKeySet();
+
+    // key -> value -> slot of owning entity-state
+    private final Map<K, ConcurrentHashMap<V, Slot<K, V, M>>> index = new ConcurrentHashMap<>();
+
+    private final AtomicLong commits = new AtomicLong();
+
+    private final LongAdder retries = new LongAdder();
+
+    @Override
+    public Iterable<EntityState<K, V, M>> entityStates() {
+        return Collections.unmodifiableSet(entityStates);
+    }
+
+    @Override
+    public Set<EntityState<K, V, M>> matches(Map<K, V> identifiers) {
+        Set<EntityState<K, V, M>> set = new HashSet<>();
+        for (Entry<K, V> entry : identifiers.entrySet()) {
+            Slot<K, V, M> slot = slot(entry.getKey(), entry.getValue());
+            EntityState<K, V, M> es = slot == null ? null : slot.committed();
+            if (es != null) {
+                set.add(es);
+            }
+        }
+        return set;
+    }
+
+    @Override
+    public ViemSystem<K, V, M> merge(EntityState<K, V, M> entity) {
+        while (true) {
+            Map<Entry<K, V>, Write<K, V, M>> writes = new HashMap<>();
+            Set<EntityState<K, V, M>> matches = new HashSet<>();
+            if (snapshot(entity.identifiers(), writes, matches)) {
+                MergeResult<K, V, M> r = Algorithm.merge(this, entity, matches);
+                if (tryCommit(writes, r.matches, r.newEntityStates)) {
+                    return this;
+                }
+            }
+            retries.increment();
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Merges each of the given entity-states in turn. Unlike the default
+     * implementation the merges are not combined into a single update so that
+     * they interleave safely with concurrent merges.
+     *
+     * @param entityStates entity-states to merge in arrival order
+     * @return this
+     */
+    @Override
+    public ViemSystem<K, V, M> mergeAll(List<EntityState<K, V, M>> entityStates) {
+        for (EntityState<K, V, M> es : entityStates) {
+            merge(es);
+        }
+        return this;
+    }
+
+    @Override
+    public ViemSystem<K, V, M> update(List<EntityState<K, V, M>> matches,
+            Set<EntityState<K, V, M>> newEntityStates) {
+        while (true) {
+            Map<Entry<K, V>, Write<K, V, M>> writes = new HashMap<>();
+            if (tryCommit(writes, matches, newEntityStates)) {
+                return this;
+            }
+            retries.increment();
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Returns the number of successful commits (one per merge or update).
+     *
+     * @return the number of successful commits
+     */
+    public long commits() {
+        return commits.get();
+    }
+
+    /**
+     * Returns the number of times a merge or update was retried because a slot
+     * it read was changed or claimed by another merge.
+     *
+     * @return the number of retries due to contention
+     */
+    public long retries() {
+        return retries.sum();
+    }
+
+    // returns false if a slot is mid-commit
+    private boolean snapshot(Map<K, V> identifiers, Map<Entry<K, V>, Write<K, V, M>> writes,
+            Set<EntityState<K, V, M>> matches) {
+        for (Entry<K, V> entry : identifiers.entrySet()) {
+            Slot<K, V, M> slot = slot(entry.getKey(), entry.getValue());
+            if (slot instanceof Claim) {
+                return false;
+            }
+            writes.put(entry(entry.getKey(), entry.getValue()), new Write<>(entry.getKey(), entry.getValue(), slot));
+            if (slot != null) {
+                matches.add(slot.entityState);
+            }
+        }
+        return true;
+    }
+
+    private boolean tryCommit(Map<Entry<K, V>, Write<K, V, M>> writes, Collection<EntityState<K, V, M>> matches,
+            Set<EntityState<K, V, M>> newEntityStates) {
+        // the identifiers of removed entity-states are released only if still owned
+        // by them, the identifiers of new entity-states are always claimed
+        for (EntityState<K, V, M> es : matches) {
+            for (Entry<K, V> entry : es.identifiers().entrySet()) {
+                Entry<K, V> kv = entry(entry.getKey(), entry.getValue());
+                if (!writes.containsKey(kv)) {
+                    Slot<K, V, M> slot = slot(entry.getKey(), entry.getValue());
+                    if (slot instanceof Claim) {
+                        return false;
+                    }
+                    if (slot != null && slot.entityState.equals(es)) {
+                        writes.put(kv, new Write<>(entry.getKey(), entry.getValue(), slot));
+                    }
+                }
+            }
+        }
+        for (EntityState<K, V, M> es : newEntityStates) {
+            for (Entry<K, V> entry : es.identifiers().entrySet()) {
+                Entry<K, V> kv = entry(entry.getKey(), entry.getValue());
+                Write<K, V, M> w = writes.get(kv);
+                if (w == null) {
+                    Slot<K, V, M> slot = slot(entry.getKey(), entry.getValue());
+                    if (slot instanceof Claim) {
+                        return false;
+                    }
+                    w = new Write<>(entry.getKey(), entry.getValue(), slot);
+                    writes.put(kv, w);
+                }
+                w.owner = es;
+            }
+        }
+        List<Write<K, V, M>> list = new ArrayList<>(writes.values());
+        // claim in a consistent order to reduce repeated conflicts between two merges
+        list.sort((a, b) -> Integer.compare(a.hash, b.hash));
+        int claimed = 0;
+        try {
+            while (claimed < list.size()) {
+                if (!claim(list.get(claimed))) {
+                    return false;
+                }
+                claimed++;
+            }
+            // all affected slots are claimed so no other merge can commit them
+            Map<EntityState<K, V, M>, Slot<K, V, M>> slots = new HashMap<>();
+            for (Write<K, V, M> w : list) {
+                if (w.owner != null) {
+                    w.published = slots.computeIfAbsent(w.owner, Slot::new);
+                }
+            }
+            for (EntityState<K, V, M> es : matches) {
+                entityStates.remove(es);
+            }
+            entityStates.addAll(newEntityStates);
+            for (Write<K, V, M> w : list) {
+                ConcurrentHashMap<V, Slot<K, V, M>> values = index.get(w.key);
+                if (w.published == null) {
+                    values.remove(w.value, w.claim);
+                } else {
+                    values.replace(w.value, w.claim, w.published);
+                }
+            }
+            claimed = 0;
+            commits.incrementAndGet();
+            return true;
+        } finally {
+            // release the claims still held after a conflict or an exception,
+            // slots already published are left alone
+            for (int i = claimed - 1; i >= 0; i--) {
+                rollback(list.get(i));
+            }
+        }
+    }
+
+    private boolean claim(Write<K, V, M> w) {
+        ConcurrentHashMap<V, Slot<K, V, M>> values = index.computeIfAbsent(w.key, k -> new ConcurrentHashMap<>());
+        w.claim = new Claim<>(w.expected);
+        if (w.expected == null) {
+            return values.putIfAbsent(w.value, w.claim) == null;
+        } else {
+            return values.replace(w.value, w.expected, w.claim);
+        }
+    }
+
+    private void rollback(Write<K, V, M> w) {
+        ConcurrentHashMap<V, Slot<K, V, M>> values = index.get(w.key);
+        if (w.expected == null) {
+            values.remove(w.value, w.claim);
+        } else {
+            values.replace(w.value, w.claim, w.expected);
+        }
+    }
+
+    private Slot<K, V, M> slot(K key, V value) {
+        ConcurrentHashMap<V, Slot<K, V, M>> values = index.get(key);
+        return values == null ? null : values.get(value);
+    }
+
+    private static <K, V> Entry<K, V> entry(K key, V value) {
+        return new SimpleImmutableEntry<>(key, value);
+    }
+
+    // does not override equals so compare-and-set is by identity
+    private static class Slot<K, V, M> {
+        final EntityState<K, V, M> entityState;
+
+        Slot(EntityState<K, V, M> entityState) {
+            this.entityState = entityState;
+        }
+
+        EntityState<K, V, M> committed() {
+            return entityState;
+        }
+    }
+
+    private static final class Claim<K, V, M> extends Slot<K, V, M> {
+        final Slot<K, V, M> previous;
+
+        Claim(Slot<K, V, M> previous) {
+            super(null);
+            this.previous = previous;
+        }
+
+        @Override
+        EntityState<K, V, M> committed() {
+            return previous == null ? null : previous.entityState;
+        }
+    }
+
+    private static final class Write<K, V, M> {
+        final K key;
+        final V value;
+        final Slot<K, V, M> expected;
+        final int hash;
+        EntityState<K, V, M> owner;
+        Claim<K, V, M> claim;
+        Slot<K, V, M> published;
+
+        Write(K key, V value, Slot<K, V, M> expected) {
+            this.key = key;
+            this.value = value;
+            this.expected = expected;
+            this.hash = key.hashCode() * 31 + value.hashCode();
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+package com.github.davidmoten.viem;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Merges a batch of entity-states into a system in parallel.
+ *
+ * <p>
+ * Entity-states that share no identifiers, either directly or through the
+ * entity-states of the system that they match, cannot affect each other's
+ * resolution. The batch is partitioned into the connected components of that
+ * identifier graph (using union-find), each component is resolved in arrival
+ * order on a {@link ForkJoinPool} and the results of all components are applied
+ * to the system in a single {@link ViemSystem#update(List, Set)}. The result is
+ * deterministic and the same as calling {@link ViemSystem#mergeAll(List)}.
+ *
+ * <p>
+ * While the components are resolved the system is only read (via
+ * {@link ViemSystem#matches(Map)}) so its reads must be safe from multiple
+ * threads when not being written to (as is the case for
+ * {@link IndexedViemSystem}) and the rules of the system must be thread-safe.
+ */
+public final class ParallelMerge {
+
+    private static final int THRESHOLD = 64;
+
+    private ParallelMerge() {
+        // prevent instantiation
+    }
+
+    /**
+     * Merges the given entity-states into the system using the common
+     * {@link ForkJoinPool}.
+     *
+     * @param <K>          identifier key type
+     * @param <V>          identifier value type
+     * @param <M>          metadata type
+     * @param system       the system to merge into
+     * @param entityStates entity-states to merge in arrival order
+     * @return the system after the merges
+     */
+    public static <K, V, M> ViemSystem<K, V, M> mergeAll(ViemSystem<K, V, M> system,
+            List<EntityState<K, V, M>> entityStates) {
+        return mergeAll(system, entityStates, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Merges the given entity-states into the system using the given pool.
+     *
+     * @param <K>          identifier key type
+     * @param <V>          identifier value type
+     * @param <M>          metadata type
+     * @param system       the system to merge into
+     * @param entityStates entity-states to merge in arrival order
+     * @param pool         pool used to match and resolve the components
+     * @return the system after the merges
+     */
+    public static <K, V, M> ViemSystem<K, V, M> mergeAll(ViemSystem<K, V, M> system,
+            List<EntityState<K, V, M>> entityStates, ForkJoinPool pool) {
+        MergeResult<K, V, M> r = resolve(system, entityStates, pool);
+        return system.update(r.matches, r.newEntityStates);
+    }
+
+    static <K, V, M> MergeResult<K, V, M> resolve(ViemSystem<K, V, M> system,
+            List<EntityState<K, V, M>> entityStates, ForkJoinPool pool) {
+        List<List<EntityState<K, V, M>>> components = components(system, entityStates, pool);
+        @SuppressWarnings("unchecked")
+        MergeResult<K, V, M>[] results = new MergeResult[components.size()];
+        forEach(pool, components.size(), i -> results[i] = Algorithm.mergeAll(system, components.get(i)));
+        List<EntityState<K, V, M>> removed = new ArrayList<>();
+        Set<EntityState<K, V, M>> added = new HashSet<>();
+        for (MergeResult<K, V, M> r : results) {
+            removed.addAll(r.matches);
+            added.addAll(r.newEntityStates);
+        }
+        return new MergeResult<K, V, M>(removed, added);
+    }
+
+    // returns the connected components ordered by first arrival, each component
+    // in arrival order
+    static <K, V, M> List<List<EntityState<K, V, M>>> components(ViemSystem<K, V, M> system,
+            List<EntityState<K, V, M>> entityStates, ForkJoinPool pool) {
+        return components(system, entityStates, pool, true);
+    }
+
+    // as above but if matchSystem is false the system is taken to be empty and
+    // is not asked for matches
+    static <K, V, M> List<List<EntityState<K, V, M>>> components(ViemSystem<K, V, M> system,
+            List<EntityState<K, V, M>> entityStates, ForkJoinPool pool, boolean matchSystem) {
+        int n = entityStates.size();
+        @SuppressWarnings("unchecked")
+        Set<EntityState<K, V, M>>[] matches = matchSystem ? new Set[n] : null;
+        if (matchSystem) {
+            forEach(pool, n, i -> matches[i] = system.matches(entityStates.get(i).identifiers()));
+        }
+        UnionFind uf = new UnionFind(n);
+        // key -> value -> index of first entity-state touching the key-value
+        Map<K, Map<V, Integer>> first = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            join(uf, first, i, entityStates.get(i).identifiers());
+            if (matchSystem) {
+                for (EntityState<K, V, M> es : matches[i]) {
+                    join(uf, first, i, es.identifiers());
+                }
+            }
+        }
+        Map<Integer, List<EntityState<K, V, M>>> components = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++) {
+            components.computeIfAbsent(uf.find(i), x -> new ArrayList<>()).add(entityStates.get(i));
+        }
+        return new ArrayList<>(components.values());
+    }
+
+    private static <K, V> void join(UnionFind uf, Map<K, Map<V, Integer>> first, int i, Map<K, V> identifiers) {
+        for (Entry<K, V> entry : identifiers.entrySet()) {
+            Integer j = first.computeIfAbsent(entry.getKey(), k -> new HashMap<>()).putIfAbsent(entry.getValue(), i);
+            if (j != null) {
+                uf.union(i, j);
+            }
+        }
+    }
+
+    static void forEach(ForkJoinPool pool, int n, IntConsumer action) {
+        pool.invoke(new ForEach(0, n, action));
+    }
+
+    private static final class ForEach extends RecursiveAction {
+
+        private static final long serialVersionUID = -2125018651224046624L;
+
+        private final int start;
+        private final int finish;
+        private final transient IntConsumer action;
+
+        ForEach(int start, int finish, IntConsumer action) {
+            this.start = start;
+            this.finish = finish;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (finish - start <= THRESHOLD) {
+                for (int i = start; i < finish; i++) {
+                    action.accept(i);
+                }
+            } else {
+                int middle = (start + finish) >>> 1;
+                invokeAll(new ForEach(start, middle, action), new ForEach(middle, finish, action));
+            }
+        }
+    }
+
+    // union-find with path halving and union by size
+    private static final class UnionFind {
+
+        private final int[] parent;
+        private final int[] size;
+
+        UnionFind(int n) {
+            parent = new int[n];
+            size = new int[n];
+            for (int i = 0; i < n; i++) {
+                parent[i] = i;
+                size[i] = 1;
+            }
+        }
+
+        int find(int i) {
+            while (parent[i] != i) {
+                parent[i] = parent[parent[i]];
+                i = parent[i];
+            }
+            return i;
+        }
+
+        void union(int a, int b) {
+            int x = find(a);
+            int y = find(b);
+            if (x != y) {
+                if (size[x] < size[y]) {
+                    int t = x;
+                    x = y;
+                    y = t;
+                }
+                parent[y] = x;
+                size[x] += size[y];
+            }
+        }
+    }
+
+}
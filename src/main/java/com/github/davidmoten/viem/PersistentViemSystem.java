@@ -0,0 +1,218 @@
+package com.github.davidmoten.viem;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * An immutable {@link ViemSystem} whose entity-states and identifier index are
+ * held in persistent hash array mapped tries. {@link #merge(EntityState)},
+ * {@link #mergeAll(List)} and {@link #update(List, Set)} leave this system
+ * unchanged and return a new version that shares all but the changed paths of
+ * the tries with this one, so a merge costs O(log n) rather than a copy of the
+ * system.
+ *
+ * <p>
+ * As a version never changes it can be read by any number of threads without
+ * locking. A typical arrangement is a single writer that merges reports and
+ * publishes each new version through a volatile field or
+ * {@link java.util.concurrent.atomic.AtomicReference}, while readers (map
+ * rendering, queries) take the current version and see a consistent snapshot
+ * for as long as they hold it.
+ *
+ * <p>
+ * Subclasses supply the rules of the system and implement
+ * {@link #withState(State)} to create a new version with the same rules, for
+ * example:
+ *
+ * <pre>
+ * class Vessels extends PersistentViemSystem&lt;String, String, Long&gt; {
+ *
+ *     Vessels() {
+ *         super();
+ *     }
+ *
+ *     private Vessels(State&lt;String, String, Long&gt; state) {
+ *         super(state);
+ *     }
+ *
+ *     &#64;Override
+ *     protected Vessels withState(State&lt;String, String, Long&gt; state) {
+ *         return new Vessels(state);
+ *     }
+ *
+ *     // rules ...
+ * }
+ * </pre>
+ *
+ * @param <K> identifier key type
+ * @param <V> identifier value type
+ * @param <M> metadata type
+ */
+public abstract class PersistentViemSystem<K, V, M> implements ViemSystem<K, V, M> {
+
+    private final State<K, V, M> state;
+
+    /**
+     * Constructor for an empty system.
+     */
+    protected PersistentViemSystem() {
+        this(new State<>(Hamt.empty(), Hamt.empty(), new Object()));
+    }
+
+    /**
+     * Constructor for a version with the given state.
+     *
+     * @param state entity-states and index of the version
+     */
+    protected PersistentViemSystem(State<K, V, M> state) {
+        this.state = state;
+    }
+
+    /**
+     * Returns a system with the same rules as this one and the given state.
+     *
+     * @param state entity-states and index of the new version
+     * @return new version of the system
+     */
+    protected abstract PersistentViemSystem<K, V, M> withState(State<K, V, M> state);
+
+    @Override
+    public Iterable<EntityState<K, V, M>> entityStates() {
+        return state.entityStates;
+    }
+
+    @Override
+    public Set<EntityState<K, V, M>> matches(Map<K, V> identifiers) {
+        Set<EntityState<K, V, M>> set = new HashSet<>();
+        for (Entry<K, V> entry : identifiers.entrySet()) {
+            EntityState<K, V, M> es = state.index.get(entry(entry.getKey(), entry.getValue()));
+            if (es != null) {
+                set.add(es);
+            }
+        }
+        return set;
+    }
+
+    @Override
+    public PersistentViemSystem<K, V, M> merge(EntityState<K, V, M> entity) {
+        EntityState<K, V, M> es = sameIdentifiers(entity.identifiers());
+        if (es != null) {
+            // the only match so resolve without the general algorithm and point
+            // the existing index entries at the merged entity-state
+            EntityState<K, V, M> merged = Algorithm.mergeSameIdentifiers(this, entity, es);
+            if (merged == es) {
+                return this;
+            }
+            Hamt<Entry<K, V>, EntityState<K, V, M>> index = state.index;
+            for (Entry<K, V> entry : merged.identifiers().entrySet()) {
+                index = index.put(entry(entry.getKey(), entry.getValue()), merged);
+            }
+            return withState(new State<>(state.entityStates.put(merged, merged), index, state.rules));
+        }
+        return (PersistentViemSystem<K, V, M>) ViemSystem.super.merge(entity);
+    }
+
+    @Override
+    public PersistentViemSystem<K, V, M> mergeAll(List<EntityState<K, V, M>> entityStates) {
+        return (PersistentViemSystem<K, V, M>) ViemSystem.super.mergeAll(entityStates);
+    }
+
+    @Override
+    public PersistentViemSystem<K, V, M> update(List<EntityState<K, V, M>> matches,
+            Set<EntityState<K, V, M>> newEntityStates) {
+        Hamt<EntityState<K, V, M>, EntityState<K, V, M>> entityStates = state.entityStates;
+        Hamt<Entry<K, V>, EntityState<K, V, M>> index = state.index;
+        for (EntityState<K, V, M> es : matches) {
+            if (entityStates.get(es) != null) {
+                entityStates = entityStates.remove(es);
+                for (Entry<K, V> entry : es.identifiers().entrySet()) {
+                    Entry<K, V> kv = entry(entry.getKey(), entry.getValue());
+                    // release only if still owned by es
+                    if (es.equals(index.get(kv))) {
+                        index = index.remove(kv);
+                    }
+                }
+            }
+        }
+        for (EntityState<K, V, M> es : newEntityStates) {
+            entityStates = entityStates.put(es, es);
+            for (Entry<K, V> entry : es.identifiers().entrySet()) {
+                index = index.put(entry(entry.getKey(), entry.getValue()), es);
+            }
+        }
+        if (entityStates == state.entityStates && index == state.index) {
+            return this;
+        }
+        return withState(new State<>(entityStates, index, state.rules));
+    }
+
+    /**
+     * Returns the number of entity-states in the system.
+     *
+     * @return the number of entity-states in the system
+     */
+    public int size() {
+        return state.entityStates.size();
+    }
+
+    // identifies the rules shared by this version and every version derived
+    // from it, see Algorithm
+    Object rules() {
+        return state.rules;
+    }
+
+    // returns the entity-state with exactly the given identifiers (which is then
+    // the only match) or null
+    private EntityState<K, V, M> sameIdentifiers(Map<K, V> identifiers) {
+        Iterator<Entry<K, V>> it = identifiers.entrySet().iterator();
+        if (!it.hasNext()) {
+            return null;
+        }
+        Entry<K, V> first = it.next();
+        EntityState<K, V, M> es = state.index.get(entry(first.getKey(), first.getValue()));
+        if (es != null && es.identifiers().size() == identifiers.size() && es.identifiers().equals(identifiers)) {
+            return es;
+        } else {
+            return null;
+        }
+    }
+
+    private static <K, V> Entry<K, V> entry(K key, V value) {
+        return new SimpleImmutableEntry<>(key, value);
+    }
+
+    /**
+     * The entity-states and identifier index of one version of a
+     * {@link PersistentViemSystem}. Instances are only created by the system
+     * and passed to {@link PersistentViemSystem#withState(State)}.
+     *
+     * @param <K> identifier key type
+     * @param <V> identifier value type
+     * @param <M> metadata type
+     */
+    public static final class State<K, V, M> {
+
+        // entity-state (equality by identifiers) -> itself with current metadata
+        final Hamt<EntityState<K, V, M>, EntityState<K, V, M>> entityStates;
+
+        // key-value -> owning entity-state
+        final Hamt<Entry<K, V>, EntityState<K, V, M>> index;
+
+        // the same object for every version that descends from one empty
+        // system, as those versions have the same rules
+        final Object rules;
+
+        State(Hamt<EntityState<K, V, M>, EntityState<K, V, M>> entityStates,
+                Hamt<Entry<K, V>, EntityState<K, V, M>> index, Object rules) {
+            this.entityStates = entityStates;
+            this.index = index;
+            this.rules = rules;
+        }
+    }
+
+}
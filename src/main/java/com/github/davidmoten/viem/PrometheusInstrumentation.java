@@ -0,0 +1,247 @@
+package com.github.davidmoten.viem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An {@link Instrumentation} that keeps counters and histograms in memory and
+ * writes them in the Prometheus text exposition format, either on demand via
+ * {@link #write(Writer)} or from a local HTTP endpoint started with
+ * {@link #serve(InetSocketAddress)}.
+ *
+ * <p>
+ * The metrics (with the default prefix {@code viem}) are:
+ *
+ * <ul>
+ * <li>{@code viem_phase_seconds} histogram of phase durations labelled by
+ * {@code phase}</li>
+ * <li>{@code viem_report_matches} histogram of the number of matches per
+ * report</li>
+ * <li>{@code viem_merges_total} counter of reports labelled by
+ * {@code outcome}</li>
+ * <li>{@code viem_mergeable_total} counter of mergeable checks labelled by
+ * {@code result}</li>
+ * <li>{@code viem_entity_state_changes_total} counter of changes to
+ * entity-states labelled by {@code change} (created, updated, merged,
+ * transferred or removed, see {@link MergeEvent.Type})</li>
+ * </ul>
+ *
+ * <p>
+ * Recording is thread-safe and does not block so metrics can be written while
+ * merges are running.
+ */
+public final class PrometheusInstrumentation implements Instrumentation {
+
+    // upper bounds in nanoseconds (1 microsecond to 1 second)
+    private static final long[] NANOS = { 1_000, 10_000, 100_000, 1_000_000, 10_000_000, 100_000_000,
+            1_000_000_000 };
+
+    private static final long[] MATCHES = { 0, 1, 2, 3, 5, 10 };
+
+    private final String prefix;
+    private final Histogram[] phases = new Histogram[Phase.values().length];
+    private final Histogram matches = new Histogram(MATCHES, 1);
+    private final LongAdder[] outcomes = new LongAdder[Outcome.values().length];
+    private final LongAdder mergeable = new LongAdder();
+    private final LongAdder notMergeable = new LongAdder();
+    private final LongAdder[] changes = new LongAdder[MergeEvent.Type.values().length];
+
+    public PrometheusInstrumentation() {
+        this("viem");
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param prefix prefix of the metric names
+     */
+    public PrometheusInstrumentation(String prefix) {
+        this.prefix = prefix;
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new Histogram(NANOS, 1e9);
+        }
+        for (int i = 0; i < outcomes.length; i++) {
+            outcomes[i] = new LongAdder();
+        }
+        for (int i = 0; i < changes.length; i++) {
+            changes[i] = new LongAdder();
+        }
+    }
+
+    @Override
+    public void timed(Phase phase, long nanos) {
+        phases[phase.ordinal()].observe(nanos);
+    }
+
+    @Override
+    public void mergeable(boolean result) {
+        if (result) {
+            mergeable.increment();
+        } else {
+            notMergeable.increment();
+        }
+    }
+
+    @Override
+    public void merged(Outcome outcome, int matches, int added) {
+        outcomes[outcome.ordinal()].increment();
+        this.matches.observe(matches);
+    }
+
+    @Override
+    public void changed(MergeEvent.Type type) {
+        changes[type.ordinal()].increment();
+    }
+
+    /**
+     * Writes the current values of the metrics in the Prometheus text format.
+     *
+     * @param w destination
+     * @throws IOException on write error
+     */
+    public void write(Writer w) throws IOException {
+        String name = prefix + "_phase_seconds";
+        header(w, name, "histogram", "Time spent in each phase of a merge.");
+        for (Phase phase : Phase.values()) {
+            phases[phase.ordinal()].write(w, name, "phase=\"" + label(phase) + "\"");
+        }
+        name = prefix + "_report_matches";
+        header(w, name, "histogram", "Number of entity-states matched per report.");
+        matches.write(w, name, null);
+        name = prefix + "_merges_total";
+        header(w, name, "counter", "Reports merged by outcome.");
+        for (Outcome outcome : Outcome.values()) {
+            sample(w, name, "outcome=\"" + label(outcome) + "\"", outcomes[outcome.ordinal()].sum());
+        }
+        name = prefix + "_mergeable_total";
+        header(w, name, "counter", "Mergeable checks by result.");
+        sample(w, name, "result=\"true\"", mergeable.sum());
+        sample(w, name, "result=\"false\"", notMergeable.sum());
+        name = prefix + "_entity_state_changes_total";
+        header(w, name, "counter", "Changes to entity-states made by merges.");
+        for (MergeEvent.Type type : MergeEvent.Type.values()) {
+            sample(w, name, "change=\"" + label(type) + "\"", changes[type.ordinal()].sum());
+        }
+    }
+
+    /**
+     * Returns the current values of the metrics in the Prometheus text format.
+     *
+     * @return metrics in the Prometheus text format
+     */
+    public String scrape() {
+        StringWriter w = new StringWriter();
+        try {
+            write(w);
+        } catch (IOException e) {
+            // StringWriter does not throw
+            throw new UncheckedIOException(e);
+        }
+        return w.toString();
+    }
+
+    /**
+     * Starts an HTTP server on the given address that returns the metrics from
+     * {@code /metrics}. Close the returned object to stop the server.
+     *
+     * @param address address to listen on (for example port 9400 on the
+     *                loopback address)
+     * @return closes the server
+     * @throws IOException if the server cannot be started
+     */
+    public Closeable serve(InetSocketAddress address) throws IOException {
+        HttpServer server = HttpServer.create(address, 0);
+        server.createContext("/metrics", exchange -> {
+            try {
+                byte[] bytes = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        return () -> server.stop(0);
+    }
+
+    private static String label(Enum<?> e) {
+        return e.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    private static void header(Writer w, String name, String type, String help) throws IOException {
+        w.write("# HELP " + name + " " + help + "\n");
+        w.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    private static void sample(Writer w, String name, String labels, Object value) throws IOException {
+        w.write(name);
+        if (labels != null) {
+            w.write("{" + labels + "}");
+        }
+        w.write(" " + value + "\n");
+    }
+
+    // cumulative histogram with fixed upper bounds, values are recorded as longs
+    // and divided by scale when written (for example nanoseconds as seconds)
+    private static final class Histogram {
+
+        private final long[] bounds;
+        private final double scale;
+
+        // count per bound (not cumulative), the last is for +Inf
+        private final LongAdder[] counts;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(long[] bounds, double scale) {
+            this.bounds = bounds;
+            this.scale = scale;
+            this.counts = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void observe(long value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            counts[i].increment();
+            count.increment();
+            sum.add(value);
+        }
+
+        void write(Writer w, String name, String labels) throws IOException {
+            String prefix = labels == null ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += counts[i].sum();
+                sample(w, name + "_bucket", prefix + "le=\"" + format(bounds[i]) + "\"", cumulative);
+            }
+            cumulative += counts[bounds.length].sum();
+            sample(w, name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+            sample(w, name + "_sum", labels, format(sum.sum()));
+            sample(w, name + "_count", labels, count.sum());
+        }
+
+        private String format(long value) {
+            return scale == 1 ? Long.toString(value) : Double.toString(value / scale);
+        }
+    }
+
+}
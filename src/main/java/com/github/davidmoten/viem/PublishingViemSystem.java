@@ -0,0 +1,65 @@
+package com.github.davidmoten.viem;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Wraps a {@link ViemSystem} so that every update (and so every merge)
+ * publishes the {@link MergeEvent}s it causes to subscribers. Events are
+ * derived from the entity-states the update removes and adds so no scan of the
+ * system is needed. For {@link #mergeAll(List)} the events describe the net
+ * change of the batch.
+ *
+ * <p>
+ * Each subscriber has its own bounded {@link MergeEventBuffer} that it pulls
+ * from so a slow subscriber does not block updates (its pending events are
+ * coalesced and, if still over capacity, the oldest are dropped).
+ *
+ * @param <K> identifier key type
+ * @param <V> identifier value type
+ * @param <M> metadata type
+ */
+public final class PublishingViemSystem<K, V, M> extends ForwardingViemSystem<K, V, M> {
+
+    private final List<MergeEventBuffer<K, V, M>> subscribers = new CopyOnWriteArrayList<>();
+
+    public PublishingViemSystem(ViemSystem<K, V, M> delegate) {
+        super(delegate);
+    }
+
+    /**
+     * Returns a new buffer that receives the events of all later updates.
+     *
+     * @param capacity maximum number of pending events
+     * @return buffer of events for the subscriber
+     */
+    public MergeEventBuffer<K, V, M> subscribe(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        MergeEventBuffer<K, V, M> buffer = new MergeEventBuffer<>(this, capacity);
+        subscribers.add(buffer);
+        return buffer;
+    }
+
+    void unsubscribe(MergeEventBuffer<K, V, M> buffer) {
+        subscribers.remove(buffer);
+    }
+
+    @Override
+    public ViemSystem<K, V, M> update(List<EntityState<K, V, M>> matches,
+            Set<EntityState<K, V, M>> newEntityStates) {
+        super.update(matches, newEntityStates);
+        if (!subscribers.isEmpty()) {
+            List<MergeEvent<K, V, M>> events = MergeEvent.derive(this, matches, newEntityStates);
+            if (!events.isEmpty()) {
+                for (MergeEventBuffer<K, V, M> buffer : subscribers) {
+                    buffer.offer(events);
+                }
+            }
+        }
+        return this;
+    }
+
+}
@@ -0,0 +1,251 @@
+package com.github.davidmoten.viem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.ToLongFunction;
+
+/**
+ * An ingestion stage in front of a {@link ViemSystem} that restores the time
+ * order of late reports before they are merged.
+ *
+ * <p>
+ * Reports are held in a priority queue on the timestamp of their metadata. The
+ * watermark is the latest timestamp seen (or passed to {@link #advance(long)})
+ * less the maximum delay. Reports with timestamps at or before the watermark
+ * are released in time order (arrival order for equal timestamps) to the
+ * system in a batch via {@link ViemSystem#mergeAll(List)}. A report that
+ * arrives with a timestamp before the timestamp of a report already
+ * released is too late to be reordered and is dropped. If the buffer exceeds
+ * its capacity the oldest reports are released early.
+ *
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @param <K> identifier key type
+ * @param <V> identifier value type
+ * @param <M> metadata type
+ */
+public final class ReorderBuffer<K, V, M> {
+
+    private final ToLongFunction<? super M> timestamp;
+    private final long maxDelayMillis;
+    private final int capacity;
+    private final PriorityQueue<Pending<K, V, M>> queue;
+
+    private ViemSystem<K, V, M> system;
+    private long sequence;
+    private long latest = Long.MIN_VALUE;
+    private long released = Long.MIN_VALUE;
+
+    // metrics
+    private long received;
+    private long releasedCount;
+    private long dropped;
+    private long forced;
+    private long late;
+    private long totalLatenessMillis;
+    private long maxLatenessMillis;
+
+    /**
+     * Constructor.
+     *
+     * @param system         system to merge released reports into
+     * @param timestamp      returns the time in milliseconds of the metadata
+     * @param maxDelayMillis how far behind the latest timestamp a report can be
+     *                       and still be merged in time order
+     * @param capacity       maximum number of reports held
+     */
+    public ReorderBuffer(ViemSystem<K, V, M> system, ToLongFunction<? super M> timestamp, long maxDelayMillis,
+            int capacity) {
+        if (maxDelayMillis < 0) {
+            throw new IllegalArgumentException("maxDelayMillis cannot be negative");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.system = system;
+        this.timestamp = timestamp;
+        this.maxDelayMillis = maxDelayMillis;
+        this.capacity = capacity;
+        this.queue = new PriorityQueue<>(Math.min(capacity, 1024), (a, b) -> {
+            int c = Long.compare(a.time, b.time);
+            return c != 0 ? c : Long.compare(a.sequence, b.sequence);
+        });
+    }
+
+    /**
+     * Adds a report and merges the reports that the advanced watermark
+     * releases.
+     *
+     * @param report report to add
+     * @return false if the report was dropped because it was too late
+     */
+    public boolean offer(EntityState<K, V, M> report) {
+        received++;
+        long t = timestamp.applyAsLong(report.metadata());
+        if (t < latest) {
+            late++;
+            long lateness = latest - t;
+            totalLatenessMillis += lateness;
+            maxLatenessMillis = Math.max(maxLatenessMillis, lateness);
+        }
+        if (t < released) {
+            dropped++;
+            return false;
+        }
+        queue.add(new Pending<>(report, t, sequence++));
+        List<EntityState<K, V, M>> batch = new ArrayList<>();
+        while (queue.size() > capacity) {
+            forced++;
+            batch.add(release());
+        }
+        if (t > latest) {
+            latest = t;
+        }
+        releaseUpTo(watermark(latest), batch);
+        return true;
+    }
+
+    /**
+     * Advances the watermark to the given time less the maximum delay (for
+     * example from the wall clock when the feed is quiet) and merges the
+     * reports it releases.
+     *
+     * @param now time in milliseconds
+     */
+    public void advance(long now) {
+        if (now > latest) {
+            latest = now;
+        }
+        releaseUpTo(watermark(latest), new ArrayList<>());
+    }
+
+    /**
+     * Merges all held reports in time order.
+     */
+    public void flush() {
+        releaseUpTo(Long.MAX_VALUE, new ArrayList<>());
+    }
+
+    /**
+     * Returns the system after the merges of the released reports.
+     *
+     * @return the system
+     */
+    public ViemSystem<K, V, M> system() {
+        return system;
+    }
+
+    /**
+     * Returns the number of reports held.
+     *
+     * @return the number of reports held
+     */
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of reports offered, including those dropped.
+     *
+     * @return the number of reports offered
+     */
+    public long received() {
+        return received;
+    }
+
+    /**
+     * Returns the number of reports merged into the system, including those
+     * released early because the buffer was full.
+     *
+     * @return the number of released reports
+     */
+    public long released() {
+        return releasedCount;
+    }
+
+    /**
+     * Returns the number of reports dropped because they arrived after a later
+     * report had been released.
+     *
+     * @return the number of dropped reports
+     */
+    public long dropped() {
+        return dropped;
+    }
+
+    /**
+     * Returns the number of reports released before the watermark reached them
+     * because the buffer was full.
+     *
+     * @return the number of reports released early
+     */
+    public long forced() {
+        return forced;
+    }
+
+    /**
+     * Returns the number of reports that arrived after a report with a later
+     * timestamp.
+     *
+     * @return the number of out of order reports
+     */
+    public long late() {
+        return late;
+    }
+
+    /**
+     * Returns the mean of how far behind the latest timestamp seen the out of
+     * order reports were.
+     *
+     * @return the mean lateness of out of order reports in milliseconds
+     */
+    public double meanLatenessMillis() {
+        return late == 0 ? 0 : (double) totalLatenessMillis / late;
+    }
+
+    /**
+     * Returns the most that an out of order report was behind the latest
+     * timestamp seen.
+     *
+     * @return the maximum lateness of out of order reports in milliseconds, zero
+     *         if there were none
+     */
+    public long maxLatenessMillis() {
+        return maxLatenessMillis;
+    }
+
+    private long watermark(long time) {
+        return time == Long.MIN_VALUE ? Long.MIN_VALUE : time - maxDelayMillis;
+    }
+
+    private void releaseUpTo(long watermark, List<EntityState<K, V, M>> batch) {
+        while (!queue.isEmpty() && queue.peek().time <= watermark) {
+            batch.add(release());
+        }
+        if (!batch.isEmpty()) {
+            system = system.mergeAll(batch);
+        }
+    }
+
+    private EntityState<K, V, M> release() {
+        Pending<K, V, M> p = queue.poll();
+        released = Math.max(released, p.time);
+        releasedCount++;
+        return p.report;
+    }
+
+    private static final class Pending<K, V, M> {
+        final EntityState<K, V, M> report;
+        final long time;
+        final long sequence;
+
+        Pending(EntityState<K, V, M> report, long time, long sequence) {
+            this.report = report;
+            this.time = time;
+            this.sequence = sequence;
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.github.davidmoten.viem;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes values to and reads values from a {@link ByteBuffer} for systems that
+ * store entity-states outside the heap.
+ *
+ * @param <T> value type
+ */
+public interface Serializer<T> {
+
+    /**
+     * Writes the value to the buffer starting at its position and advances the
+     * position.
+     *
+     * @param value  value to write
+     * @param buffer buffer to write to
+     * @throws java.nio.BufferOverflowException if the value does not fit in the
+     *                                          remaining bytes of the buffer
+     */
+    void write(T value, ByteBuffer buffer);
+
+    /**
+     * Reads a value written by {@link #write(Object, ByteBuffer)} from the buffer
+     * starting at its position and advances the position.
+     *
+     * @param buffer buffer to read from
+     * @return value read
+     */
+    T read(ByteBuffer buffer);
+
+    static Serializer<Long> longs() {
+        return new Serializer<Long>() {
+
+            @Override
+            public void write(Long value, ByteBuffer buffer) {
+                buffer.putLong(value);
+            }
+
+            @Override
+            public Long read(ByteBuffer buffer) {
+                return buffer.getLong();
+            }
+        };
+    }
+
+    static Serializer<Integer> integers() {
+        return new Serializer<Integer>() {
+
+            @Override
+            public void write(Integer value, ByteBuffer buffer) {
+                buffer.putInt(value);
+            }
+
+            @Override
+            public Integer read(ByteBuffer buffer) {
+                return buffer.getInt();
+            }
+        };
+    }
+
+    /**
+     * Returns a serializer of strings as a length prefixed UTF-8 encoding.
+     *
+     * @return serializer of strings
+     */
+    static Serializer<String> strings() {
+        return new Serializer<String>() {
+
+            @Override
+            public void write(String value, ByteBuffer buffer) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                buffer.putInt(bytes.length);
+                buffer.put(bytes);
+            }
+
+            @Override
+            public String read(ByteBuffer buffer) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.github.davidmoten.viem;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The operations a {@link ShardedViemSystem} performs on its shards, so that
+ * shards can live in this process ({@link LoopbackShardTransport}) or on other
+ * nodes.
+ *
+ * <p>
+ * A shard owns the identifier key-values that
+ * {@link ShardedViemSystem#shard(Object, Object, int)} assigns to it and holds
+ * the owning entity-state of each of them. Every entity-state is listed by
+ * exactly one shard, its home shard, which is the lowest numbered shard owning
+ * one of its key-values.
+ *
+ * <p>
+ * Implementations must be thread-safe. The locks are exclusive per shard and
+ * are always acquired in ascending shard order by the sharded system.
+ *
+ * @param <K> identifier key type
+ * @param <V> identifier value type
+ * @param <M> metadata type
+ */
+public interface ShardTransport<K, V, M> {
+
+    /**
+     * Returns the number of shards.
+     *
+     * @return the number of shards
+     */
+    int shards();
+
+    /**
+     * Returns the owners in the given shard of the given key-values, all of
+     * which are owned by the shard.
+     *
+     * @param shard       shard number
+     * @param identifiers key-values owned by the shard
+     * @return the owners of the key-values
+     */
+    Set<EntityState<K, V, M>> matches(int shard, Map<K, V> identifiers);
+
+    /**
+     * Applies an update to the key-values owned by the shard. Each removed
+     * entity-state releases those of its key-values still owned by it and each
+     * added entity-state claims its key-values.
+     *
+     * @param shard   shard number
+     * @param removed entity-states removed by the update with at least one
+     *                key-value owned by the shard
+     * @param added   entity-states added by the update with at least one
+     *                key-value owned by the shard
+     */
+    void update(int shard, List<EntityState<K, V, M>> removed, Set<EntityState<K, V, M>> added);
+
+    /**
+     * Returns the entity-states whose home is the given shard.
+     *
+     * @param shard shard number
+     * @return the entity-states whose home is the shard
+     */
+    Iterable<EntityState<K, V, M>> entityStates(int shard);
+
+    /**
+     * Blocks until the exclusive lock of the shard is held.
+     *
+     * @param shard shard number
+     */
+    void lock(int shard);
+
+    /**
+     * Releases the lock of the shard.
+     *
+     * @param shard shard number
+     */
+    void unlock(int shard);
+
+}
@@ -0,0 +1,279 @@
+package com.github.davidmoten.viem;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A thread-safe {@link ViemSystem} whose identifier index is hash-partitioned
+ * across shards reached through a {@link ShardTransport}, so that the system
+ * can be spread over several nodes (or several locks in one process using
+ * {@link LoopbackShardTransport}).
+ *
+ * <p>
+ * Each identifier key-value is owned by the shard given by
+ * {@link #shard(Object, Object, int)}. {@link #matches(Map)} asks only the
+ * shards that own the given identifiers. A call to {@link #merge(EntityState)}
+ * locks the shards of the arriving identifiers and of the identifiers of its
+ * matches in ascending order (relocking if the matches bring in more shards),
+ * resolves the merge and applies the result to every affected shard before
+ * unlocking. So as for {@link ConcurrentViemSystem} no key-value can be claimed
+ * by two concurrent merges and the system stays strongly consistent. Merges
+ * that touch disjoint shards run in parallel.
+ *
+ * <p>
+ * Subclasses supply the rules of the system which must be thread-safe.
+ *
+ * @param <K> identifier key type
+ * @param <V> identifier value type
+ * @param <M> metadata type
+ */
+public abstract class ShardedViemSystem<K, V, M> implements ViemSystem<K, V, M> {
+
+    private final ShardTransport<K, V, M> transport;
+
+    private final int shards;
+
+    protected ShardedViemSystem(ShardTransport<K, V, M> transport) {
+        if (transport == null) {
+            throw new NullPointerException("transport cannot be null");
+        }
+        this.transport = transport;
+        this.shards = transport.shards();
+    }
+
+    /**
+     * Returns the shard that owns the given identifier key-value. Shard
+     * transports use this to decide which key-values they hold.
+     *
+     * @param key    identifier key
+     * @param value  identifier value
+     * @param shards number of shards
+     * @return shard number from 0 to shards - 1
+     */
+    public static int shard(Object key, Object value, int shards) {
+        int h = key.hashCode() * 31 + value.hashCode();
+        h *= 0x9E3779B9;
+        return Math.floorMod(h ^ (h >>> 16), shards);
+    }
+
+    /**
+     * Returns the home shard of an entity-state with the given identifiers, the
+     * lowest numbered shard that owns one of the identifiers.
+     *
+     * @param <K>         identifier key type
+     * @param <V>         identifier value type
+     * @param identifiers identifiers of an entity-state
+     * @param shards      number of shards
+     * @return the home shard
+     */
+    public static <K, V> int home(Map<K, V> identifiers, int shards) {
+        int home = Integer.MAX_VALUE;
+        for (Entry<K, V> entry : identifiers.entrySet()) {
+            home = Math.min(home, shard(entry.getKey(), entry.getValue(), shards));
+        }
+        return home;
+    }
+
+    @Override
+    public Iterable<EntityState<K, V, M>> entityStates() {
+        // weakly consistent, each shard is read in turn
+        return () -> new Iterator<EntityState<K, V, M>>() {
+
+            int shard = 0;
+            Iterator<EntityState<K, V, M>> it = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!it.hasNext() && shard < shards) {
+                    it = transport.entityStates(shard++).iterator();
+                }
+                return it.hasNext();
+            }
+
+            @Override
+            public EntityState<K, V, M> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return it.next();
+            }
+        };
+    }
+
+    @Override
+    public Set<EntityState<K, V, M>> matches(Map<K, V> identifiers) {
+        int[] locked = shards(identifiers, Collections.emptySet());
+        lock(locked);
+        try {
+            return lockedMatches(identifiers);
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    @Override
+    public ViemSystem<K, V, M> merge(EntityState<K, V, M> entity) {
+        int[] shards = shards(entity.identifiers(), Collections.emptySet());
+        while (true) {
+            int[] locked = shards;
+            lock(locked);
+            try {
+                // matches are stable while the shards of the entity identifiers are held
+                Set<EntityState<K, V, M>> matches = lockedMatches(entity.identifiers());
+                int[] required = shards(entity.identifiers(), matches);
+                if (Stripes.containsAll(locked, required)) {
+                    MergeResult<K, V, M> r = Algorithm.merge(this, entity, matches);
+                    apply(r.matches, r.newEntityStates);
+                    return this;
+                }
+                // relock in order including the shards of the matches
+                shards = Stripes.union(locked, required);
+            } finally {
+                unlock(locked);
+            }
+        }
+    }
+
+    /**
+     * Merges each of the given entity-states in turn. Unlike the default
+     * implementation the merges are not combined into a single update so that
+     * they interleave safely with concurrent merges.
+     *
+     * @param entityStates entity-states to merge in arrival order
+     * @return this
+     */
+    @Override
+    public ViemSystem<K, V, M> mergeAll(List<EntityState<K, V, M>> entityStates) {
+        for (EntityState<K, V, M> es : entityStates) {
+            merge(es);
+        }
+        return this;
+    }
+
+    @Override
+    public ViemSystem<K, V, M> update(List<EntityState<K, V, M>> matches,
+            Set<EntityState<K, V, M>> newEntityStates) {
+        int[] locked = Stripes.union(shards(null, matches), shards(null, newEntityStates));
+        lock(locked);
+        try {
+            apply(matches, newEntityStates);
+        } finally {
+            unlock(locked);
+        }
+        return this;
+    }
+
+    // the shards of the identifiers must be locked
+    private Set<EntityState<K, V, M>> lockedMatches(Map<K, V> identifiers) {
+        if (shards == 1) {
+            return transport.matches(0, identifiers);
+        }
+        // group the identifiers by owning shard so each shard is asked once
+        int n = identifiers.size();
+        int[] owner = new int[n];
+        int i = 0;
+        boolean single = true;
+        for (Entry<K, V> entry : identifiers.entrySet()) {
+            owner[i] = shard(entry.getKey(), entry.getValue(), shards);
+            single &= owner[i] == owner[0];
+            i++;
+        }
+        if (single) {
+            return transport.matches(owner[0], identifiers);
+        }
+        Set<EntityState<K, V, M>> set = new HashSet<>();
+        for (int shard : Stripes.distinct(owner.clone(), n)) {
+            Map<K, V> part = new HashMap<>();
+            i = 0;
+            for (Entry<K, V> entry : identifiers.entrySet()) {
+                if (owner[i++] == shard) {
+                    part.put(entry.getKey(), entry.getValue());
+                }
+            }
+            set.addAll(transport.matches(shard, part));
+        }
+        return set;
+    }
+
+    // the shards of the identifiers of the matches and new entity-states must be
+    // locked
+    private void apply(Collection<EntityState<K, V, M>> matches, Set<EntityState<K, V, M>> newEntityStates) {
+        if (shards == 1) {
+            transport.update(0, asList(matches), newEntityStates);
+            return;
+        }
+        int[] affected = Stripes.union(shards(null, matches), shards(null, newEntityStates));
+        for (int shard : affected) {
+            List<EntityState<K, V, M>> removed = new ArrayList<>();
+            for (EntityState<K, V, M> es : matches) {
+                if (touches(es, shard)) {
+                    removed.add(es);
+                }
+            }
+            Set<EntityState<K, V, M>> added = new HashSet<>();
+            for (EntityState<K, V, M> es : newEntityStates) {
+                if (touches(es, shard)) {
+                    added.add(es);
+                }
+            }
+            transport.update(shard, removed, added);
+        }
+    }
+
+    private boolean touches(EntityState<K, V, M> es, int shard) {
+        for (Entry<K, V> entry : es.identifiers().entrySet()) {
+            if (shard(entry.getKey(), entry.getValue(), shards) == shard) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static <T> List<T> asList(Collection<T> c) {
+        return c instanceof List ? (List<T>) c : new ArrayList<>(c);
+    }
+
+    // returns the sorted distinct shards of the identifiers and of the
+    // identifiers of the states
+    private int[] shards(Map<K, V> identifiers, Collection<EntityState<K, V, M>> states) {
+        int n = identifiers == null ? 0 : identifiers.size();
+        for (EntityState<K, V, M> es : states) {
+            n += es.identifiers().size();
+        }
+        int[] a = new int[n];
+        int i = 0;
+        if (identifiers != null) {
+            for (Entry<K, V> entry : identifiers.entrySet()) {
+                a[i++] = shard(entry.getKey(), entry.getValue(), shards);
+            }
+        }
+        for (EntityState<K, V, M> es : states) {
+            for (Entry<K, V> entry : es.identifiers().entrySet()) {
+                a[i++] = shard(entry.getKey(), entry.getValue(), shards);
+            }
+        }
+        return Stripes.distinct(a, i);
+    }
+
+    private void lock(int[] shards) {
+        for (int s : shards) {
+            transport.lock(s);
+        }
+    }
+
+    private void unlock(int[] shards) {
+        for (int i = shards.length - 1; i >= 0; i--) {
+            transport.unlock(shards[i]);
+        }
+    }
+
+}
@@ -0,0 +1,230 @@
+package com.github.davidmoten.viem;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Wraps a {@link ViemSystem} whose metadata are timed positions so that
+ * entity-states are indexed on a latitude-longitude grid kept in step with
+ * {@link #update(List, Set)}.
+ *
+ * <p>
+ * The grid answers proximity queries ({@link #near(double, double, double)})
+ * without scanning every entity-state. It also backs a cheap prefilter for
+ * {@link #mergeable(Object, Object)}. Two positions at least the difference of
+ * their latitudes apart (a lower bound on the great-circle distance) cannot be
+ * the same entity if that distance cannot be covered in the time between them
+ * at the maximum speed. They are rejected without calling the mergeable rule
+ * of the wrapped system. Otherwise the wrapped rule decides. For the result to
+ * be unchanged the maximum speed must be no less than the speed used by the
+ * wrapped rule.
+ *
+ * <p>
+ * Distances are in nautical miles and speeds in knots.
+ *
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @param <K> identifier key type
+ * @param <V> identifier value type
+ * @param <M> metadata type
+ */
+public final class SpatialViemSystem<K, V, M> extends ForwardingViemSystem<K, V, M> {
+
+    private static final double EARTH_RADIUS_NM = 3440.065;
+
+    private static final double NM_PER_DEGREE_LATITUDE = 60.0;
+
+    private final ToDoubleFunction<? super M> latitude;
+    private final ToDoubleFunction<? super M> longitude;
+    private final ToLongFunction<? super M> time;
+    private final double maxSpeedKnots;
+    private final double cellDegrees;
+    private final int lonCells;
+
+    // cell -> entity-states positioned in the cell
+    private final Map<Long, Set<EntityState<K, V, M>>> grid = new HashMap<>();
+
+    // entity-state (equality by identifiers) -> its cell
+    private final Map<EntityState<K, V, M>, Long> cells = new HashMap<>();
+
+    private long rejected;
+
+    /**
+     * Constructor. The entity-states already in the delegate are indexed.
+     *
+     * @param delegate      system to wrap
+     * @param latitude      returns the latitude in degrees of the metadata
+     * @param longitude     returns the longitude in degrees of the metadata
+     * @param time          returns the time in milliseconds of the metadata
+     * @param maxSpeedKnots speed above which two positions cannot be the same
+     *                      entity
+     * @param cellDegrees   size of a grid cell in degrees
+     */
+    public SpatialViemSystem(ViemSystem<K, V, M> delegate, ToDoubleFunction<? super M> latitude,
+            ToDoubleFunction<? super M> longitude, ToLongFunction<? super M> time, double maxSpeedKnots,
+            double cellDegrees) {
+        super(delegate);
+        if (maxSpeedKnots <= 0) {
+            throw new IllegalArgumentException("maxSpeedKnots must be positive");
+        }
+        if (cellDegrees <= 0 || cellDegrees > 180) {
+            throw new IllegalArgumentException("cellDegrees must be positive and at most 180");
+        }
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.time = time;
+        this.maxSpeedKnots = maxSpeedKnots;
+        this.cellDegrees = cellDegrees;
+        this.lonCells = (int) Math.ceil(360 / cellDegrees);
+        for (EntityState<K, V, M> es : delegate.entityStates()) {
+            add(es);
+        }
+    }
+
+    @Override
+    public boolean mergeable(M a, M b) {
+        double distanceLowerBound = Math.abs(latitude.applyAsDouble(a) - latitude.applyAsDouble(b))
+                * NM_PER_DEGREE_LATITUDE;
+        double hours = Math.abs(time.applyAsLong(a) - time.applyAsLong(b)) / 3_600_000.0;
+        if (distanceLowerBound > maxSpeedKnots * hours) {
+            rejected++;
+            return false;
+        }
+        return super.mergeable(a, b);
+    }
+
+    @Override
+    public ViemSystem<K, V, M> update(List<EntityState<K, V, M>> matches,
+            Set<EntityState<K, V, M>> newEntityStates) {
+        super.update(matches, newEntityStates);
+        for (EntityState<K, V, M> es : matches) {
+            remove(es);
+        }
+        for (EntityState<K, V, M> es : newEntityStates) {
+            add(es);
+        }
+        return this;
+    }
+
+    /**
+     * Returns the entity-states whose position is within the given distance of
+     * the given position.
+     *
+     * @param lat         latitude in degrees
+     * @param lon         longitude in degrees
+     * @param distanceNm distance in nautical miles
+     * @return the entity-states within the distance
+     */
+    public List<EntityState<K, V, M>> near(double lat, double lon, double distanceNm) {
+        double dLat = distanceNm / NM_PER_DEGREE_LATITUDE;
+        int latFrom = latCell(Math.max(-90, lat - dLat));
+        int latTo = latCell(Math.min(90, lat + dLat));
+        // longitude degrees shrink towards the poles so use the latitude in range
+        // nearest a pole
+        double maxAbsLat = Math.min(90, Math.abs(lat) + dLat);
+        double cos = Math.cos(Math.toRadians(maxAbsLat));
+        int lonFrom;
+        int lonTo;
+        if (cos < 1e-9 || distanceNm / (NM_PER_DEGREE_LATITUDE * cos) >= 180) {
+            lonFrom = 0;
+            lonTo = lonCells - 1;
+        } else {
+            double dLon = distanceNm / (NM_PER_DEGREE_LATITUDE * cos);
+            lonFrom = lonCellUnwrapped(lon - dLon);
+            lonTo = lonCellUnwrapped(lon + dLon);
+            if (lonTo - lonFrom >= lonCells) {
+                lonFrom = 0;
+                lonTo = lonCells - 1;
+            }
+        }
+        List<EntityState<K, V, M>> list = new ArrayList<>();
+        for (int i = latFrom; i <= latTo; i++) {
+            for (int j = lonFrom; j <= lonTo; j++) {
+                Set<EntityState<K, V, M>> set = grid.get(key(i, Math.floorMod(j, lonCells)));
+                if (set != null) {
+                    for (EntityState<K, V, M> es : set) {
+                        M m = es.metadata();
+                        if (distanceNm(lat, lon, latitude.applyAsDouble(m),
+                                longitude.applyAsDouble(m)) <= distanceNm) {
+                            list.add(es);
+                        }
+                    }
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the number of mergeable checks rejected by the prefilter without
+     * calling the mergeable rule of the wrapped system.
+     *
+     * @return the number of mergeable checks rejected by the prefilter
+     */
+    public long rejected() {
+        return rejected;
+    }
+
+    /**
+     * Returns the great-circle distance between two positions.
+     *
+     * @param lat1 latitude of the first position in degrees
+     * @param lon1 longitude of the first position in degrees
+     * @param lat2 latitude of the second position in degrees
+     * @param lon2 longitude of the second position in degrees
+     * @return distance in nautical miles
+     */
+    public static double distanceNm(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double sinDLat = Math.sin((phi2 - phi1) / 2);
+        double sinDLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double h = sinDLat * sinDLat + Math.cos(phi1) * Math.cos(phi2) * sinDLon * sinDLon;
+        return 2 * EARTH_RADIUS_NM * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+    private void add(EntityState<K, V, M> es) {
+        M m = es.metadata();
+        long key = key(latCell(latitude.applyAsDouble(m)),
+                Math.floorMod(lonCellUnwrapped(longitude.applyAsDouble(m)), lonCells));
+        Long previous = cells.put(es, key);
+        if (previous != null) {
+            removeFromGrid(previous, es);
+        }
+        grid.computeIfAbsent(key, k -> new HashSet<>()).add(es);
+    }
+
+    private void remove(EntityState<K, V, M> es) {
+        Long key = cells.remove(es);
+        if (key != null) {
+            removeFromGrid(key, es);
+        }
+    }
+
+    private void removeFromGrid(long key, EntityState<K, V, M> es) {
+        Set<EntityState<K, V, M>> set = grid.get(key);
+        if (set != null && set.remove(es) && set.isEmpty()) {
+            grid.remove(key);
+        }
+    }
+
+    private int latCell(double lat) {
+        return (int) Math.floor((lat + 90) / cellDegrees);
+    }
+
+    private int lonCellUnwrapped(double lon) {
+        return (int) Math.floor((lon + 180) / cellDegrees);
+    }
+
+    private static long key(int latCell, int lonCell) {
+        return ((long) latCell << 32) | (lonCell & 0xFFFFFFFFL);
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.github.davidmoten.viem;
+
+import java.util.Arrays;
+
+/**
+ * Operations on sorted arrays of distinct lock indexes (stripes or shards)
+ * used to acquire locks in ascending order so that concurrent merges cannot
+ * deadlock.
+ */
+final class Stripes {
+
+    private Stripes() {
+        // prevent instantiation
+    }
+
+    // sorts the first length elements of a and removes duplicates, may reuse a
+    static int[] distinct(int[] a, int length) {
+        Arrays.sort(a, 0, length);
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            if (n == 0 || a[n - 1] != a[i]) {
+                a[n++] = a[i];
+            }
+        }
+        return n == a.length ? a : Arrays.copyOf(a, n);
+    }
+
+    // both arrays sorted and distinct
+    static boolean containsAll(int[] a, int[] b) {
+        int i = 0;
+        for (int x : b) {
+            while (i < a.length && a[i] < x) {
+                i++;
+            }
+            if (i == a.length || a[i] != x) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int[] union(int[] a, int[] b) {
+        int[] c = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return distinct(c, c.length);
+    }
+
+}
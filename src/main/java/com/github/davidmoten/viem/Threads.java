@@ -0,0 +1,66 @@
+package com.github.davidmoten.viem;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class Threads {
+
+    // null if the runtime does not support virtual threads
+    private static final Method OF_VIRTUAL = method(Thread.class, "ofVirtual");
+
+    private Threads() {
+        // prevent instantiation
+    }
+
+    /**
+     * Returns a factory of virtual threads if the runtime supports them (Java
+     * 21+), otherwise of daemon platform threads. The threads are named with
+     * the given prefix followed by a sequence number.
+     *
+     * @param prefix thread name prefix
+     * @return thread factory
+     */
+    static ThreadFactory virtualOrPlatform(String prefix) {
+        if (OF_VIRTUAL != null) {
+            try {
+                Object builder = OF_VIRTUAL.invoke(null);
+                Class<?> c = Class.forName("java.lang.Thread$Builder");
+                builder = c.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+                return (ThreadFactory) c.getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // fall through to platform threads
+            }
+        }
+        return platform(prefix);
+    }
+
+    /**
+     * Returns a factory of daemon platform threads named with the given prefix
+     * followed by a sequence number.
+     *
+     * @param prefix thread name prefix
+     * @return thread factory
+     */
+    static ThreadFactory platform(String prefix) {
+        AtomicLong n = new AtomicLong();
+        return r -> {
+            Thread t = new Thread(r, prefix + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    static boolean virtualThreadsSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    private static Method method(Class<?> c, String name) {
+        try {
+            return c.getMethod(name);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,205 @@
+package com.github.davidmoten.viem;
+
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timer wheel. Scheduling and cancelling a timer are O(1) and
+ * advancing the wheel costs O(buckets passed + timers cascaded or expired)
+ * where at most 64 buckets per level are passed however far time advances.
+ *
+ * <p>
+ * Time is divided into ticks of a fixed number of milliseconds. Level L of the
+ * wheel has 64 buckets each spanning 64^L ticks. A timer is placed in the
+ * lowest level whose span covers its remaining ticks and is moved down a level
+ * (cascaded) when time reaches its bucket, so it is expired in the tick of its
+ * deadline. Timers further away than the top level are kept in an overflow
+ * list that is re-examined when time reaches a new top level bucket.
+ *
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @param <T> timer item type
+ */
+final class TimerWheel<T> {
+
+    private static final int BITS = 6;
+    private static final int BUCKETS = 1 << BITS;
+    private static final int LEVELS = 5;
+
+    static final class Node<T> {
+        final T item;
+        long deadline;
+        Node<T> prev;
+        Node<T> next;
+
+        Node(T item) {
+            this.item = item;
+        }
+
+        boolean scheduled() {
+            return next != null;
+        }
+    }
+
+    private final long tickMillis;
+
+    // sentinel of the circular list of each bucket
+    private final Node<T>[][] wheels;
+
+    private final Node<T> overflow = sentinel();
+
+    // every tick before this one has been processed
+    private long currentTick;
+
+    // false until the first advance, timers are held in overflow until then
+    private boolean started;
+
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    TimerWheel(long tickMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive");
+        }
+        this.tickMillis = tickMillis;
+        this.wheels = new Node[LEVELS][BUCKETS];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int i = 0; i < BUCKETS; i++) {
+                wheels[level][i] = sentinel();
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void schedule(Node<T> node, long deadline) {
+        if (node.scheduled()) {
+            cancel(node);
+        }
+        node.deadline = deadline;
+        if (started) {
+            place(node);
+        } else {
+            // placed on the first advance when the current time is known
+            link(overflow, node);
+        }
+        size++;
+    }
+
+    void cancel(Node<T> node) {
+        if (node.scheduled()) {
+            unlink(node);
+            size--;
+        }
+    }
+
+    /**
+     * Expires every timer with deadline at or before now, passing its item to
+     * the consumer.
+     *
+     * @param now     current time in milliseconds
+     * @param expired receives the items of expired timers
+     */
+    void advance(long now, Consumer<? super T> expired) {
+        long target = Math.floorDiv(now, tickMillis);
+        Node<T> collected = sentinel();
+        if (!started) {
+            currentTick = target;
+            started = true;
+            moveAll(overflow, collected);
+            expireOrPlace(collected, now, expired);
+            return;
+        }
+        if (target < currentTick) {
+            return;
+        }
+        long previous = currentTick;
+        currentTick = target;
+        // detach the timers of every bucket that time has reached
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = BITS * level;
+            // the bucket of the previous tick at level 0 may hold timers due later
+            // in that tick
+            long from = level == 0 ? previous : (previous >> shift) + 1;
+            long to = target >> shift;
+            if (to < from) {
+                break;
+            }
+            long n = Math.min(to - from + 1, BUCKETS);
+            for (long b = to - n + 1; b <= to; b++) {
+                moveAll(wheels[level][(int) (b & (BUCKETS - 1))], collected);
+            }
+            if (level == LEVELS - 1) {
+                moveAll(overflow, collected);
+            }
+        }
+        expireOrPlace(collected, now, expired);
+    }
+
+    private void expireOrPlace(Node<T> collected, long now, Consumer<? super T> expired) {
+        Node<T> node = collected.next;
+        while (node != collected) {
+            Node<T> next = node.next;
+            node.prev = null;
+            node.next = null;
+            if (node.deadline <= now) {
+                size--;
+                expired.accept(node.item);
+            } else {
+                place(node);
+            }
+            node = next;
+        }
+    }
+
+    private void place(Node<T> node) {
+        long tick = Math.max(Math.floorDiv(node.deadline, tickMillis), currentTick);
+        long delta = tick - currentTick;
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < 1L << (BITS * (level + 1))) {
+                link(wheels[level][(int) ((tick >> (BITS * level)) & (BUCKETS - 1))], node);
+                return;
+            }
+        }
+        link(overflow, node);
+    }
+
+    private static <T> Node<T> sentinel() {
+        Node<T> s = new Node<T>(null);
+        s.prev = s;
+        s.next = s;
+        return s;
+    }
+
+    private static <T> void link(Node<T> sentinel, Node<T> node) {
+        node.prev = sentinel.prev;
+        node.next = sentinel;
+        sentinel.prev.next = node;
+        sentinel.prev = node;
+    }
+
+    private static <T> void unlink(Node<T> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    // moves the nodes of one list to the end of another
+    private static <T> void moveAll(Node<T> from, Node<T> to) {
+        if (from.next == from) {
+            return;
+        }
+        Node<T> first = from.next;
+        Node<T> last = from.prev;
+        first.prev = to.prev;
+        to.prev.next = first;
+        last.next = to;
+        to.prev = last;
+        from.next = from;
+        from.prev = from;
+    }
+
+}
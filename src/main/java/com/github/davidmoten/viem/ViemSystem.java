@@ -14,6 +14,12 @@ import java.util.Set;
  */
 public interface ViemSystem<K, V, M> {
 
+	/**
+	 * Returned by {@link #keyRank(Object)} when the system does not declare key
+	 * ranks.
+	 */
+	int UNRANKED = Integer.MIN_VALUE;
+
 	/**
 	 * Returns an Iterable of the current entity-states in the system.
 	 * 
@@ -45,6 +51,30 @@ public interface ViemSystem<K, V, M> {
 	 */
 	boolean keyGreaterThan(K a, K b);
 
+	/**
+	 * Returns the rank of the given identifier key where a key with a larger rank
+	 * is more reliable, or {@link #UNRANKED} if the system does not declare ranks.
+	 * Key reliability is a fixed strict order so a system with a known set of keys
+	 * (for example an enum of identifier types) can override this method to avoid
+	 * repeated calls to {@link #keyGreaterThan(Object, Object)} during a merge.
+	 * 
+	 * <p>
+	 * If overridden then a rank must be returned for every key and
+	 * {@code keyRank(a) > keyRank(b)} must hold if and only if
+	 * {@code keyGreaterThan(a, b)}. By default no ranks are declared and the
+	 * algorithm derives ranks from {@link #keyGreaterThan(Object, Object)},
+	 * caching them per thread for the last system merged into. The cache is kept
+	 * across the batches of {@link #mergeAll(List)} and across the versions of a
+	 * {@link PersistentViemSystem} but not across other systems, so a system that
+	 * returns a new instance from each merge should override this method.
+	 * 
+	 * @param key identifier key
+	 * @return rank of the key (larger is more reliable) or {@link #UNRANKED}
+	 */
+	default int keyRank(K key) {
+		return UNRANKED;
+	}
+
 	/**
 	 * Returns true if and only if a is more reliable than b. That is a > b means
 	 * that we would choose the a version of any properties over the b version. When
@@ -109,6 +139,23 @@ public interface ViemSystem<K, V, M> {
 		return update(r.matches, r.newEntityStates);
 	}
 
+	/**
+	 * Merges the given entity-states in order and applies the net change to the
+	 * system with a single call to {@link #update(List, Set)}. The result is the
+	 * same as calling {@link #merge(EntityState)} for each entity-state in turn
+	 * but the system is only updated once per batch (for example so that a
+	 * backing store can be committed once per batch). Entity-states touching the
+	 * same identifiers are resolved against the changes made by earlier
+	 * entity-states in the batch.
+	 * 
+	 * @param entityStates entity-states to merge in arrival order
+	 * @return the system after the merges (may be this)
+	 */
+	default ViemSystem<K, V, M> mergeAll(List<EntityState<K, V, M>> entityStates) {
+		MergeResult<K, V, M> r = Algorithm.mergeAll(this, entityStates);
+		return update(r.matches, r.newEntityStates);
+	}
+
 	default Set<EntityState<K, V, M>> toSet() {
 		Set<EntityState<K, V, M>> set = new HashSet<>();
 		for (EntityState<K, V, M> es : entityStates()) {
@@ -0,0 +1,30 @@
+package com.github.davidmoten.viem;
+
+import java.util.Map;
+
+// Java 17+ version of EntityStateDefault in the multi-release jar. Record
+// fields are trusted as final by the JIT so an entity-state held in a constant
+// can be folded. Equality stays by identifiers only.
+record EntityStateDefault<K, V, M>(Map<K, V> identifiers, M metadata) implements EntityState<K, V, M> {
+
+    EntityStateDefault {
+        if (identifiers == null) {
+            throw new NullPointerException("identifiers cannot be null");
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return EntityState.hashCode(this);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return EntityState.equals(this, obj);
+    }
+
+    @Override
+    public String toString() {
+        return "EntityStateDefault [ids=" + identifiers + ", metadata=" + metadata + "]";
+    }
+}
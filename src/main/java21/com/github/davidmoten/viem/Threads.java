@@ -0,0 +1,31 @@
+package com.github.davidmoten.viem;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Java 21+ version of Threads in the multi-release jar, virtual threads are
+// always available so no reflection is needed
+final class Threads {
+
+    private Threads() {
+        // prevent instantiation
+    }
+
+    static ThreadFactory virtualOrPlatform(String prefix) {
+        return Thread.ofVirtual().name(prefix, 0).factory();
+    }
+
+    static ThreadFactory platform(String prefix) {
+        AtomicLong n = new AtomicLong();
+        return r -> {
+            Thread t = new Thread(r, prefix + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    static boolean virtualThreadsSupported() {
+        return true;
+    }
+
+}
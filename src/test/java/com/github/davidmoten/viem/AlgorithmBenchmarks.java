@@ -0,0 +1,104 @@
+package com.github.davidmoten.viem;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of {@link Algorithm}. Merges use precomputed matches so that the
+ * cost of lookup is excluded. Run with
+ * {@code mvn clean install -P benchmark -Dbenchmark.regex=AlgorithmBenchmarks}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AlgorithmBenchmarks {
+
+    @State(Scope.Benchmark)
+    public static class Matches {
+
+        @Param({ "0", "1", "2", "16" })
+        int matches;
+
+        ViemSystem<Integer, Long, Long> system;
+
+        Set<EntityState<Integer, Long, Long>> set;
+
+        EntityState<Integer, Long, Long> report;
+
+        @Setup
+        public void setup() {
+            system = VesselFeed.system("indexed");
+            // the report has one identifier in common with each match
+            Map<Integer, Long> ids = new HashMap<>();
+            set = new HashSet<>();
+            for (int i = 0; i < matches; i++) {
+                Map<Integer, Long> m = new HashMap<>();
+                m.put(i, 1L);
+                m.put(i + 100, 1L);
+                set.add(EntityState.create(m, (long) i));
+                ids.put(i, 1L);
+            }
+            ids.put(1000, 1L);
+            report = EntityState.create(ids, (long) matches);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Identifiers {
+
+        EntityState<Integer, Long, Long> a;
+
+        EntityState<Integer, Long, Long> b;
+
+        @Setup
+        public void setup() {
+            // 3 common, 2 conflicting and 4 exclusive identifiers
+            Map<Integer, Long> x = new HashMap<>();
+            Map<Integer, Long> y = new HashMap<>();
+            for (int i = 0; i < 7; i++) {
+                x.put(i, (long) i);
+                y.put(i + 2, i < 3 ? i + 2 : -1L);
+            }
+            a = EntityState.create(x, 1L);
+            b = EntityState.create(y, 2L);
+        }
+    }
+
+    @Benchmark
+    public MergeResult<Integer, Long, Long> merge(Matches s) {
+        return Algorithm.merge(s.system, s.report, s.set);
+    }
+
+    @Benchmark
+    public Map<Integer, Long> common(Identifiers s) {
+        return Algorithm.common(s.a, s.b);
+    }
+
+    @Benchmark
+    public Map<Integer, Pair<Long>> conflicting(Identifiers s) {
+        return Algorithm.conflicting(s.a, s.b);
+    }
+
+    @Benchmark
+    public Map<Integer, Long> exclusive(Identifiers s) {
+        return Algorithm.exclusive(s.a, s.b);
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.github.davidmoten.viem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The original straightforward implementation of {@link Algorithm#merge} kept
+ * to check that the optimized implementation produces the same results.
+ */
+final class AlgorithmReference {
+
+	private AlgorithmReference() {
+		// prevent instantiation
+	}
+
+	static <K, V, M> MergeResult<K, V, M> merge(ViemSystem<K, V, M> system, EntityState<K, V, M> e) {
+		Set<EntityState<K, V, M>> set = new HashSet<>();
+		List<EntityState<K, V, M>> matches = new ArrayList<>(system.matches(e.identifiers()));
+		Collections.sort(matches, //
+				(a, b) -> {
+					K x = Collections.max(a.identifiers().keySet(), Algorithm.comparator(system));
+					K y = Collections.max(b.identifiers().keySet(), Algorithm.comparator(system));
+					return Algorithm.compare(system, x, y);
+				});
+		EntityState<K, V, M> p = e;
+		for (EntityState<K, V, M> f : matches) {
+			Map<K, V> i1 = Algorithm.common(p, f);
+			Map<K, Pair<V>> i2 = Algorithm.conflicting(p, f);
+			Map<K, V> i3 = Algorithm.exclusive(p, f);
+			EntityState<K, V, M> min = Algorithm.min(system, p, f);
+			EntityState<K, V, M> max = Algorithm.max(system, p, f);
+			if (Algorithm.greaterThan(system, i1.keySet(), i2.keySet()) && mergeable(system, p, f)) {
+				Map<K, V> ids = new HashMap<>(max.identifiers());
+				ids.putAll(i3);
+				M metadata = system.merge(p.metadata(), f.metadata());
+				EntityState<K, V, M> next = system.createEntityState(ids, metadata);
+				p = next;
+			} else {
+				Map<K, V> ids = new HashMap<>();
+				ids.putAll(min.identifiers());
+				for (K k : i1.keySet()) {
+					ids.remove(k);
+				}
+				if (!ids.isEmpty()) {
+					EntityState<K, V, M> next = system.createEntityState(ids, min.metadata());
+					set.add(next);
+				}
+				p = max;
+			}
+		}
+		set.add(p);
+		return new MergeResult<K, V, M>(matches, set);
+	}
+
+	private static <K, V, M> boolean mergeable(ViemSystem<K, V, M> system, EntityState<K, V, M> p,
+			EntityState<K, V, M> f) {
+		system.checkingMetadataMergeability(p, f);
+		return system.mergeable(p.metadata(), f.metadata());
+	}
+
+}
@@ -1,8 +1,15 @@
 package com.github.davidmoten.viem;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
 import java.util.Set;
 
 import org.junit.Test;
@@ -20,4 +27,182 @@ public class AlgorithmTest {
 		assertTrue(Algorithm.greaterThan(new ViemSystem1(new HashSet<>()), a, b));
 	}
 
+	@Test
+	public void testMergeSameAsReferenceImplementation() {
+		Random r = new Random(42);
+		ViemSystem1 system = ViemSystem1.create();
+		system.mergeable = (x, y) -> Math.abs(x - y) < 700;
+		for (int i = 0; i < 20000; i++) {
+			EntityState<String, String, Long> e = IndexedViemSystemTest.randomEntityState(r);
+			MergeResult<String, String, Long> expected = AlgorithmReference.merge(system, e);
+			MergeResult<String, String, Long> actual = Algorithm.merge(system, e);
+			assertEquals(expected.matches, actual.matches);
+			assertEquals(metadataByIdentifiers(expected.newEntityStates),
+					metadataByIdentifiers(actual.newEntityStates));
+			system.update(actual.matches, actual.newEntityStates);
+		}
+	}
+
+	@Test
+	public void testDeclaredKeyRanksSameAsDerivedWithoutCallingKeyGreaterThan() {
+		Random r = new Random(42);
+		ViemSystem1 derived = ViemSystem1.create();
+		ViemSystem1 declared = new ViemSystem1(new HashSet<>()) {
+			@Override
+			public int keyRank(String key) {
+				return -key.charAt(0);
+			}
+
+			@Override
+			public boolean keyGreaterThan(String a, String b) {
+				throw new AssertionError("should use keyRank");
+			}
+		};
+		for (int i = 0; i < 5000; i++) {
+			EntityState<String, String, Long> e = IndexedViemSystemTest.randomEntityState(r);
+			MergeResult<String, String, Long> expected = Algorithm.merge(derived, e);
+			MergeResult<String, String, Long> actual = Algorithm.merge(declared, e);
+			assertEquals(expected.matches, actual.matches);
+			assertEquals(metadataByIdentifiers(expected.newEntityStates),
+					metadataByIdentifiers(actual.newEntityStates));
+			derived.update(expected.matches, expected.newEntityStates);
+			declared.update(actual.matches, actual.newEntityStates);
+		}
+	}
+
+	@Test
+	public void testDerivedKeyRanksFollowSystemChanges() {
+		// same keys ranked in opposite orders by two systems merged into in turn on
+		// the same thread
+		ViemSystem1 forward = ViemSystem1.create(EntityState.create(ids("A", "1", "B", "1"), 1L));
+		ViemSystem1 reverse = new ViemSystem1(new HashSet<>(forward.toSet())) {
+			@Override
+			public boolean keyGreaterThan(String a, String b) {
+				return a.compareTo(b) > 0;
+			}
+		};
+		EntityState<String, String, Long> e = EntityState.create(ids("A", "1", "B", "2"), 2L);
+		// A is stronger than B so the common A dominates and the states merge
+		assertEquals(1, Algorithm.merge(forward, e).newEntityStates.size());
+		// B is stronger than A so the conflicting B dominates and the states split
+		assertEquals(2, Algorithm.merge(reverse, e).newEntityStates.size());
+		assertEquals(1, Algorithm.merge(forward, e).newEntityStates.size());
+	}
+
+	@Test
+	public void testDerivedKeyRanksKeptAcrossBatches() {
+		int[] comparisons = new int[1];
+		IndexedViemSystem1 system = new IndexedViemSystem1() {
+			@Override
+			public boolean keyGreaterThan(String a, String b) {
+				comparisons[0]++;
+				return super.keyGreaterThan(a, b);
+			}
+		};
+		system.mergeAll(Arrays.asList(Reports.es(1, "A1", "B1"), Reports.es(2, "A1", "C1")));
+		int n = comparisons[0];
+		assertTrue(n > 0);
+		// a new batch over the same system reuses the ranks
+		system.mergeAll(Collections.singletonList(Reports.es(3, "A1", "B1")));
+		assertEquals(n, comparisons[0]);
+		assertEquals(3L, (long) system.entityStates().iterator().next().metadata());
+	}
+
+	@Test
+	public void testDerivedKeyRanksKeptAcrossPersistentVersions() {
+		int[] comparisons = new int[1];
+		PersistentViemSystem<String, String, Long> system = new CountingPersistentSystem(comparisons)
+				.merge(Reports.es(1, "A1", "B1")) //
+				.merge(Reports.es(2, "A1", "C1"));
+		int n = comparisons[0];
+		assertTrue(n > 0);
+		// a new version reuses the ranks
+		system = system.merge(Reports.es(3, "A1", "B1"));
+		assertEquals(n, comparisons[0]);
+		assertEquals(3L, (long) system.entityStates().iterator().next().metadata());
+		// another empty system may have other rules so derives its own ranks
+		new CountingPersistentSystem(comparisons).merge(Reports.es(1, "A1", "B1")).merge(Reports.es(2, "A1"));
+		assertTrue(comparisons[0] > n);
+	}
+
+	@Test
+	public void testLineageOfTransferAndMerge() {
+		IndexedViemSystem1 system = new IndexedViemSystem1();
+		EntityState<String, String, Long> f = EntityState.create(ids("A", "1", "B", "1"), 1L);
+		system.update(Collections.emptyList(), Collections.singleton(f));
+		// B1 moves to the newer report, the remainder of f descends from f
+		MergeResult<String, String, Long> r = Algorithm.merge(system,
+				EntityState.create(ids("A", "2", "B", "1"), 2L));
+		EntityState<String, String, Long> remainder = EntityState.create(Collections.singletonMap("A", "1"), 1L);
+		assertEquals(1, r.origins.size());
+		Entry<EntityState<String, String, Long>, EntityState<String, String, Long>> entry = r.origins.entrySet()
+				.iterator().next();
+		assertEquals(remainder, entry.getKey());
+		assertTrue(entry.getValue() == f);
+		// merging adds identifiers to f so the result descends from f
+		r = Algorithm.merge(system, EntityState.create(ids("B", "1", "C", "1"), 2L));
+		assertEquals(1, r.origins.size());
+		assertTrue(r.origins.get(r.newEntityStates.iterator().next()) == f);
+		assertEquals(3, r.newEntityStates.iterator().next().identifiers().size());
+		// no matches so no lineage
+		assertTrue(Algorithm.merge(system, EntityState.create(Collections.singletonMap("D", "1"), 1L)).origins
+				.isEmpty());
+	}
+
+	private static final class CountingPersistentSystem extends PersistentViemSystem<String, String, Long> {
+
+		private final int[] comparisons;
+
+		CountingPersistentSystem(int[] comparisons) {
+			this.comparisons = comparisons;
+		}
+
+		private CountingPersistentSystem(State<String, String, Long> state, int[] comparisons) {
+			super(state);
+			this.comparisons = comparisons;
+		}
+
+		@Override
+		protected CountingPersistentSystem withState(State<String, String, Long> state) {
+			return new CountingPersistentSystem(state, comparisons);
+		}
+
+		@Override
+		public boolean keyGreaterThan(String a, String b) {
+			comparisons[0]++;
+			return a.compareTo(b) < 0;
+		}
+
+		@Override
+		public boolean metadataGreaterThan(Long a, Long b) {
+			return a > b;
+		}
+
+		@Override
+		public boolean mergeable(Long a, Long b) {
+			return true;
+		}
+
+		@Override
+		public Long merge(Long a, Long b) {
+			return Math.max(a, b);
+		}
+	}
+
+	private static Map<String, String> ids(String k1, String v1, String k2, String v2) {
+		Map<String, String> map = new HashMap<>();
+		map.put(k1, v1);
+		map.put(k2, v2);
+		return map;
+	}
+
+	private static Map<Map<String, String>, Long> metadataByIdentifiers(
+			Set<EntityState<String, String, Long>> set) {
+		Map<Map<String, String>, Long> map = new HashMap<>();
+		for (EntityState<String, String, Long> es : set) {
+			map.put(es.identifiers(), es.metadata());
+		}
+		return map;
+	}
+
 }
@@ -0,0 +1,64 @@
+package com.github.davidmoten.viem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cold start of an empty system from an archive of synthetic vessel reports,
+ * merging the reports in metadata order one at a time compared to
+ * {@link BulkLoad}. Run with
+ * {@code mvn clean install -P benchmark -Dbenchmark.regex=BulkLoadBenchmarks}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class BulkLoadBenchmarks {
+
+    @Param({ "1000000" })
+    int reports;
+
+    @Param({ "100000" })
+    int vessels;
+
+    List<EntityState<Integer, Long, Long>> archive;
+
+    @Setup
+    public void setup() {
+        VesselFeed feed = new VesselFeed(1, vessels);
+        archive = new ArrayList<>(reports);
+        for (int i = 0; i < reports; i++) {
+            archive.add(feed.next());
+        }
+    }
+
+    @Benchmark
+    public ViemSystem<Integer, Long, Long> sequential() {
+        ViemSystem<Integer, Long, Long> system = VesselFeed.system("indexed");
+        for (EntityState<Integer, Long, Long> es : archive) {
+            system = system.merge(es);
+        }
+        return system;
+    }
+
+    @Benchmark
+    public ViemSystem<Integer, Long, Long> bulkLoad() {
+        return BulkLoad.load(VesselFeed.system("indexed"), archive);
+    }
+
+}
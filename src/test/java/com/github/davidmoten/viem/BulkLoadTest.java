@@ -0,0 +1,110 @@
+package com.github.davidmoten.viem;
+
+import static com.github.davidmoten.viem.Reports.es;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import com.github.davidmoten.junit.Asserts;
+
+public class BulkLoadTest {
+
+    @Test
+    public void isUtilityClass() {
+        Asserts.assertIsUtilityClass(BulkLoad.class);
+    }
+
+    @Test
+    public void testSortIsStable() {
+        List<EntityState<String, String, Long>> list = Arrays.asList( //
+                es(3, "A1"), //
+                es(1, "B1"), //
+                es(3, "C1"), //
+                es(2, "D1"), //
+                es(1, "E1"));
+        List<EntityState<String, String, Long>> sorted = BulkLoad.sort(new IndexedViemSystem1(), list,
+                ForkJoinPool.commonPool());
+        // equal metadata keep their order
+        assertEquals(Arrays.asList(es(1, "B1"), es(1, "E1"), es(2, "D1"), es(3, "A1"), es(3, "C1")), sorted);
+    }
+
+    @Test
+    public void testSortOfManyIsStable() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Random r = new Random(7);
+            List<EntityState<String, String, Long>> list = new ArrayList<>();
+            for (int i = 0; i < 50000; i++) {
+                list.add(es(r.nextInt(100), "A" + i));
+            }
+            List<EntityState<String, String, Long>> sorted = BulkLoad.sort(new IndexedViemSystem1(), list, pool);
+            List<EntityState<String, String, Long>> expected = new ArrayList<>(list);
+            // List.sort is stable
+            expected.sort((x, y) -> Long.compare(x.metadata(), y.metadata()));
+            assertEquals(expected, sorted);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testColdStartSameAsSequentialMergesInMetadataOrder() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Random r = new Random(11);
+            List<EntityState<String, String, Long>> list = new ArrayList<>();
+            for (int i = 0; i < 20000; i++) {
+                list.add(Reports.craft(r, 2000));
+            }
+            ViemSystem<String, String, Long> a = new IndexedViemSystem1();
+            for (EntityState<String, String, Long> e : BulkLoad.sort(a, list, pool)) {
+                a = a.merge(e);
+            }
+            ViemSystem<String, String, Long> b = BulkLoad.load(new IndexedViemSystem1(), list, pool);
+            assertEquals(Reports.metadataByIdentifiers(a), Reports.metadataByIdentifiers(b));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testLoadIntoNonEmptySystem() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Random r = new Random(13);
+            ViemSystem<String, String, Long> a = new IndexedViemSystem1();
+            ViemSystem<String, String, Long> b = new IndexedViemSystem1();
+            for (int i = 0; i < 1000; i++) {
+                EntityState<String, String, Long> e = Reports.craft(r, 2000);
+                a = a.merge(e);
+                b = b.merge(e);
+            }
+            List<EntityState<String, String, Long>> list = new ArrayList<>();
+            for (int i = 0; i < 5000; i++) {
+                list.add(Reports.craft(r, 2000));
+            }
+            for (EntityState<String, String, Long> e : BulkLoad.sort(a, list, pool)) {
+                a = a.merge(e);
+            }
+            b = BulkLoad.load(b, list, pool);
+            assertEquals(Reports.metadataByIdentifiers(a), Reports.metadataByIdentifiers(b));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testLoadEmpty() {
+        IndexedViemSystem1 s = new IndexedViemSystem1();
+        BulkLoad.load(s, Collections.emptyList());
+        assertEquals(0, s.size());
+    }
+
+}
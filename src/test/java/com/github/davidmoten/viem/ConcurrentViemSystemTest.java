@@ -0,0 +1,107 @@
+package com.github.davidmoten.viem;
+
+import static com.github.davidmoten.viem.Reports.es;
+import static com.github.davidmoten.viem.Reports.ids;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class ConcurrentViemSystemTest {
+
+    @Test
+    public void testIdentifierTransfer() {
+        ConcurrentViemSystem1 s = new ConcurrentViemSystem1(4);
+        s.merge(es(1, "A1", "B1")).merge(es(2, "A2", "B1"));
+        assertEquals(set(es(1, "A1"), es(2, "A2", "B1")), s.toSet());
+        assertEquals(Collections.singleton(es(2, "A2", "B1")), s.matches(ids("B1")));
+    }
+
+    @Test
+    public void testMergeGathersUpMany() {
+        ConcurrentViemSystem1 s = new ConcurrentViemSystem1(2);
+        s.merge(es(3, "A1", "E1")).merge(es(0, "A1", "D1")).merge(es(1, "B1", "E1")).merge(es(2, "C1", "F1"))
+                .merge(es(2, "A1", "B1", "C1"));
+        assertEquals(set(es(3, "A1", "B1", "C1", "D1", "E1", "F1")), s.toSet());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStripesMustBePositive() {
+        new ConcurrentViemSystem1(0);
+    }
+
+    @Test
+    public void testConcurrentMergesKeepIdentifiersUnique() throws Exception {
+        ConcurrentViemSystem1 s = new ConcurrentViemSystem1(16);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                Random r = new Random(t);
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 20000; i++) {
+                        s.merge(Reports.craft(r, 50));
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Set<Entry<String, String>> identifiers = new HashSet<>();
+        for (EntityState<String, String, Long> es : s.entityStates()) {
+            for (Entry<String, String> entry : es.identifiers().entrySet()) {
+                assertTrue(identifiers.add(entry));
+                assertEquals(Collections.singleton(es),
+                        s.matches(Collections.singletonMap(entry.getKey(), entry.getValue())));
+            }
+        }
+    }
+
+    @SafeVarargs
+    private static <T> Set<T> set(T... items) {
+        return new HashSet<T>(Arrays.asList(items));
+    }
+
+    static final class ConcurrentViemSystem1 extends ConcurrentViemSystem<String, String, Long> {
+
+        ConcurrentViemSystem1(int stripes) {
+            super(stripes);
+        }
+
+        @Override
+        public boolean keyGreaterThan(String a, String b) {
+            return a.compareTo(b) < 0; // A > B
+        }
+
+        @Override
+        public boolean metadataGreaterThan(Long a, Long b) {
+            return a > b;
+        }
+
+        @Override
+        public boolean mergeable(Long a, Long b) {
+            return true;
+        }
+
+        @Override
+        public Long merge(Long a, Long b) {
+            return Math.max(a, b);
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.github.davidmoten.viem;
+
+import static com.github.davidmoten.viem.Reports.es;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class DeduplicatingViemSystemTest {
+
+    @Test
+    public void testExactDuplicateSkipsMerge() {
+        CountingSystem delegate = new CountingSystem();
+        DeduplicatingViemSystem<String, String, Long> s = new DeduplicatingViemSystem<>(delegate, 10);
+        s.merge(es(1, "A1", "B1")).merge(es(1, "A1", "B1")).merge(es(1, "A1", "B1"));
+        assertEquals(1, delegate.updates);
+        assertEquals(2, s.hits());
+        assertEquals(1, s.misses());
+        assertEquals(set(es(1, "A1", "B1")), s.toSet());
+    }
+
+    @Test
+    public void testDifferentMetadataIsMerged() {
+        CountingSystem delegate = new CountingSystem();
+        DeduplicatingViemSystem<String, String, Long> s = new DeduplicatingViemSystem<>(delegate, 10);
+        s.merge(es(1, "A1")).merge(es(2, "A1"));
+        assertEquals(2, delegate.updates);
+        assertEquals(0, s.hits());
+        assertEquals(set(es(2, "A1")), s.toSet());
+        // the older report is not stale-skipped by default
+        s.merge(es(1, "A1"));
+        assertEquals(3, delegate.updates);
+    }
+
+    @Test
+    public void testStaleReportSkippedWhenEnabled() {
+        CountingSystem delegate = new CountingSystem();
+        DeduplicatingViemSystem<String, String, Long> s = new DeduplicatingViemSystem<>(delegate, 10, true);
+        s.merge(es(2, "A1")).merge(es(1, "A1"));
+        assertEquals(1, delegate.updates);
+        assertEquals(1, s.hits());
+        s.merge(es(3, "A1"));
+        assertEquals(2, delegate.updates);
+        assertEquals(set(es(3, "A1")), s.toSet());
+    }
+
+    @Test
+    public void testRemovalInvalidatesEntry() {
+        CountingSystem delegate = new CountingSystem();
+        DeduplicatingViemSystem<String, String, Long> s = new DeduplicatingViemSystem<>(delegate, 10);
+        s.merge(es(1, "A1"));
+        // a later report moves A1 into a new entity-state
+        s.merge(es(2, "A1", "B1"));
+        s.merge(es(1, "A1"));
+        assertEquals(0, s.hits());
+        assertEquals(3, delegate.updates);
+        s.update(Collections.singletonList(es(2, "A1", "B1")), Collections.emptySet());
+        s.merge(es(2, "A1", "B1"));
+        assertEquals(0, s.hits());
+        assertEquals(set(es(2, "A1", "B1")), s.toSet());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        CountingSystem delegate = new CountingSystem();
+        DeduplicatingViemSystem<String, String, Long> s = new DeduplicatingViemSystem<>(delegate, 2);
+        s.merge(es(1, "A1")).merge(es(1, "A2")).merge(es(1, "A1")).merge(es(1, "A3"));
+        assertEquals(2, s.size());
+        // A2 was least recently used
+        s.merge(es(1, "A2")).merge(es(1, "A3"));
+        assertEquals(2, s.hits());
+        assertEquals(4, delegate.updates);
+    }
+
+    @Test
+    public void testMatchesAfterDeduplication() {
+        List<EntityState<String, String, Long>> reports = Arrays.asList(es(1, "A1", "B1"), es(1, "A1", "B1"),
+                es(2, "B1", "C1"), es(2, "B1", "C1"), es(3, "A2"), es(1, "A1", "B1"));
+        IndexedViemSystem1 expected = new IndexedViemSystem1();
+        DeduplicatingViemSystem<String, String, Long> s = new DeduplicatingViemSystem<>(new IndexedViemSystem1(),
+                10);
+        for (EntityState<String, String, Long> es : reports) {
+            expected.merge(es);
+            s.merge(es);
+        }
+        assertEquals(2, s.hits());
+        assertEquals(expected.toSet(), s.toSet());
+    }
+
+    private static final class CountingSystem extends IndexedViemSystem1 {
+
+        int updates;
+
+        @Override
+        protected void updated(List<EntityState<String, String, Long>> matches,
+                Set<EntityState<String, String, Long>> newEntityStates) {
+            updates++;
+        }
+    }
+
+    @SafeVarargs
+    private static Set<EntityState<String, String, Long>> set(EntityState<String, String, Long>... list) {
+        return new HashSet<>(Arrays.asList(list));
+    }
+
+}
@@ -0,0 +1,186 @@
+package com.github.davidmoten.viem;
+
+import static com.github.davidmoten.viem.Reports.es;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DurableViemSystemTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecoverFromLog() throws IOException {
+        File dir = folder.newFolder();
+        Map<Map<Integer, Long>, Long> expected;
+        try (DurableViemSystem<Integer, Long, Long> s = open(dir, 0)) {
+            merge(s, 2000);
+            expected = Reports.metadataByIdentifiers(s);
+        }
+        try (DurableViemSystem<Integer, Long, Long> s = open(dir, 0)) {
+            assertEquals(expected, Reports.metadataByIdentifiers(s));
+        }
+    }
+
+    @Test
+    public void testRecoverFromSnapshotAndLog() throws IOException {
+        File dir = folder.newFolder();
+        Map<Map<Integer, Long>, Long> expected;
+        try (DurableViemSystem<Integer, Long, Long> s = open(dir, 300)) {
+            merge(s, 2000);
+            expected = Reports.metadataByIdentifiers(s);
+        }
+        assertTrue(new File(dir, DurableViemSystem.SNAPSHOT).exists());
+        // log holds only the records since the last snapshot
+        assertTrue(new File(dir, DurableViemSystem.LOG).length() < 300 * 100);
+        try (DurableViemSystem<Integer, Long, Long> s = open(dir, 300)) {
+            assertEquals(expected, Reports.metadataByIdentifiers(s));
+            // keeps going after recovery
+            merge(s, 100);
+            expected = Reports.metadataByIdentifiers(s);
+        }
+        try (DurableViemSystem<Integer, Long, Long> s = open(dir, 300)) {
+            assertEquals(expected, Reports.metadataByIdentifiers(s));
+        }
+    }
+
+    @Test
+    public void testTornLogTailIsDiscarded() throws IOException {
+        File dir = folder.newFolder();
+        Map<Map<Integer, Long>, Long> expected;
+        try (DurableViemSystem<Integer, Long, Long> s = open(dir, 0)) {
+            merge(s, 500);
+            expected = Reports.metadataByIdentifiers(s);
+        }
+        File log = new File(dir, DurableViemSystem.LOG);
+        long length = log.length();
+        try (FileOutputStream out = new FileOutputStream(log, true)) {
+            // a record header claiming more bytes than follow
+            out.write(new byte[] { 0, 0, 1, 0, 1, 2, 3 });
+        }
+        try (DurableViemSystem<Integer, Long, Long> s = open(dir, 0)) {
+            assertEquals(expected, Reports.metadataByIdentifiers(s));
+            assertEquals(length, log.length());
+        }
+    }
+
+    @Test
+    public void testLogRecordsAlreadyInSnapshotAreSkipped() throws IOException {
+        // simulates a crash after the snapshot was written but before the log
+        // was truncated
+        File dir = folder.newFolder();
+        File log = new File(dir, DurableViemSystem.LOG);
+        File copy = folder.newFile();
+        Map<Map<Integer, Long>, Long> expected;
+        try (DurableViemSystem<Integer, Long, Long> s = open(dir, 0)) {
+            merge(s, 500);
+            s.sync();
+            Files.copy(log.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            s.snapshot();
+            expected = Reports.metadataByIdentifiers(s);
+        }
+        Files.copy(copy.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        try (DurableViemSystem<Integer, Long, Long> s = open(dir, 0)) {
+            assertEquals(expected, Reports.metadataByIdentifiers(s));
+        }
+    }
+
+    @Test
+    public void testPeriodicSync() throws IOException {
+        File dir = folder.newFolder();
+        Map<Map<Integer, Long>, Long> expected;
+        try (DurableViemSystem<Integer, Long, Long> s = DurableViemSystem.open(dir, VesselFeed.system("long"),
+                Serializer.integers(), Serializer.longs(), Serializer.longs(), 5, 0)) {
+            merge(s, 2000);
+            expected = Reports.metadataByIdentifiers(s);
+        }
+        try (DurableViemSystem<Integer, Long, Long> s = open(dir, 0)) {
+            assertEquals(expected, Reports.metadataByIdentifiers(s));
+        }
+    }
+
+    @Test
+    public void testConcurrentMergesKeepIdentifiersUnique() throws Exception {
+        File dir = folder.newFolder();
+        CountDownLatch paused = new CountDownLatch(1);
+        CountDownLatch secondMerged = new CountDownLatch(1);
+        AtomicBoolean pause = new AtomicBoolean(true);
+        IndexedViemSystem1 system = new IndexedViemSystem1() {
+            @Override
+            public Set<EntityState<String, String, Long>> matches(Map<String, String> identifiers) {
+                Set<EntityState<String, String, Long>> set = super.matches(identifiers);
+                if (pause.compareAndSet(true, false)) {
+                    // give a concurrent merge the chance to change the system
+                    // before this merge applies its result
+                    paused.countDown();
+                    try {
+                        secondMerged.await(500, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return set;
+            }
+        };
+        Map<Map<String, String>, Long> expected;
+        try (DurableViemSystem<String, String, Long> s = DurableViemSystem.open(dir, system,
+                Serializer.strings(), Serializer.strings(), Serializer.longs(), 0, 0)) {
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                Future<?> first = executor.submit(() -> s.merge(es(1, "A1", "B1")));
+                paused.await();
+                s.merge(es(2, "A1"));
+                secondMerged.countDown();
+                first.get();
+            } finally {
+                executor.shutdown();
+            }
+            Set<Entry<String, String>> identifiers = new HashSet<>();
+            for (EntityState<String, String, Long> es : s.entityStates()) {
+                for (Entry<String, String> entry : es.identifiers().entrySet()) {
+                    assertTrue(identifiers.add(entry));
+                }
+            }
+            expected = Reports.metadataByIdentifiers(s);
+            assertEquals(Collections.singletonMap(es(2, "A1", "B1").identifiers(), 2L), expected);
+        }
+        try (DurableViemSystem<String, String, Long> s = DurableViemSystem.open(dir, new IndexedViemSystem1(),
+                Serializer.strings(), Serializer.strings(), Serializer.longs(), 0, 0)) {
+            assertEquals(expected, Reports.metadataByIdentifiers(s));
+        }
+    }
+
+    private static DurableViemSystem<Integer, Long, Long> open(File dir, int snapshotInterval) {
+        return DurableViemSystem.open(dir, VesselFeed.system("indexed"), Serializer.integers(), Serializer.longs(),
+                Serializer.longs(), 0, snapshotInterval);
+    }
+
+    private static void merge(ViemSystem<Integer, Long, Long> s, int n) {
+        VesselFeed feed = new VesselFeed(s.toSet().size(), 100);
+        for (int i = 0; i < n; i++) {
+            s.merge(feed.next());
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.github.davidmoten.viem;
+
+import static com.github.davidmoten.viem.Reports.es;
+import static com.github.davidmoten.viem.Reports.ids;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+
+import org.junit.Test;
+
+public class EvictingViemSystemTest {
+
+    @Test
+    public void testEvictsStaleEntityStatesAndFreesIdentifiers() {
+        List<EntityState<String, String, Long>> evicted = new ArrayList<>();
+        EvictingViemSystem<String, String, Long> s = system(es -> 100L).addListener(evicted::add);
+        s.merge(es(0, "A1", "B1")).merge(es(50, "A2")).merge(es(60, "A1"));
+        assertEquals(0, s.evict(149));
+        assertEquals(1, s.evict(150));
+        assertEquals(Collections.singletonList(es(50, "A2")), evicted);
+        assertEquals(set(es(60, "A1", "B1")), s.toSet());
+        assertEquals(1, s.evict(1000));
+        assertTrue(s.toSet().isEmpty());
+        assertTrue(s.matches(ids("B1")).isEmpty());
+        assertEquals(2, s.evicted());
+        assertEquals(0, s.tracked());
+    }
+
+    @Test
+    public void testTimeToLivePerType() {
+        // entity-states with an A identifier live longer
+        EvictingViemSystem<String, String, Long> s = system(
+                es -> es.identifiers().containsKey("A") ? 1000L : 10L);
+        s.merge(es(0, "A1")).merge(es(0, "B1"));
+        assertEquals(1, s.evict(10));
+        assertEquals(set(es(0, "A1")), s.toSet());
+        assertEquals(1, s.evict(1000));
+    }
+
+    @Test
+    public void testForeverIsNotTracked() {
+        EvictingViemSystem<String, String, Long> s = system(es -> EvictingViemSystem.FOREVER);
+        s.merge(es(0, "A1"));
+        assertEquals(0, s.tracked());
+        assertEquals(0, s.evict(Long.MAX_VALUE));
+        assertEquals(1, s.toSet().size());
+    }
+
+    @Test
+    public void testTracksExistingEntityStates() {
+        IndexedViemSystem1 delegate = new IndexedViemSystem1();
+        delegate.merge(es(0, "A1"));
+        EvictingViemSystem<String, String, Long> s = new EvictingViemSystem<>(delegate, m -> m, es -> 5L, 1);
+        assertEquals(1, s.tracked());
+        assertEquals(1, s.evict(5));
+        assertEquals(0, delegate.size());
+    }
+
+    private static EvictingViemSystem<String, String, Long> system(
+            ToLongFunction<EntityState<String, String, Long>> ttl) {
+        return new EvictingViemSystem<>(new IndexedViemSystem1(), m -> m, ttl, 1);
+    }
+
+    @SafeVarargs
+    private static <T> Set<T> set(T... items) {
+        return new HashSet<T>(Arrays.asList(items));
+    }
+
+}
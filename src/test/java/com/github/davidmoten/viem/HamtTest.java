@@ -0,0 +1,116 @@
+package com.github.davidmoten.viem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HamtTest {
+
+    @Test
+    public void testSameAsHashMapForRandomOperations() {
+        Random r = new Random(123);
+        Hamt<Integer, String> a = Hamt.empty();
+        Map<Integer, String> b = new HashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            int key = r.nextInt(3000);
+            if (r.nextInt(3) == 0) {
+                a = a.remove(key);
+                b.remove(key);
+            } else {
+                String value = String.valueOf(r.nextInt(3));
+                a = a.put(key, value);
+                b.put(key, value);
+            }
+            assertEquals(b.get(key), a.get(key));
+            assertEquals(b.size(), a.size());
+        }
+        for (int key = 0; key < 3000; key++) {
+            assertEquals(b.get(key), a.get(key));
+        }
+        assertEquals(sorted(b.values()), sorted(a));
+    }
+
+    @Test
+    public void testSameAsHashMapWhenHashesCollide() {
+        Random r = new Random(123);
+        Hamt<Collider, Integer> a = Hamt.empty();
+        Map<Collider, Integer> b = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            Collider key = new Collider(r.nextInt(200));
+            if (r.nextInt(3) == 0) {
+                a = a.remove(key);
+                b.remove(key);
+            } else {
+                a = a.put(key, i);
+                b.put(key, i);
+            }
+            assertEquals(b.get(key), a.get(key));
+            assertEquals(b.size(), a.size());
+        }
+        assertEquals(sorted(b.values()), sorted(a));
+    }
+
+    @Test
+    public void testEarlierVersionsAreUnchanged() {
+        Hamt<Integer, Integer> a = Hamt.empty();
+        List<Hamt<Integer, Integer>> versions = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            versions.add(a);
+            a = a.put(i, i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            Hamt<Integer, Integer> v = versions.get(i);
+            assertEquals(i, v.size());
+            assertNull(v.get(i));
+            if (i > 0) {
+                assertEquals(i - 1, (int) v.get(i - 1));
+            }
+        }
+        Hamt<Integer, Integer> removed = a.remove(500);
+        assertNull(removed.get(500));
+        assertEquals(500, (int) a.get(500));
+    }
+
+    @Test
+    public void testUnchangedReturnsSameInstance() {
+        String value = "a";
+        Hamt<Integer, String> a = Hamt.<Integer, String>empty().put(1, value);
+        assertSame(a, a.put(1, value));
+        assertSame(a, a.remove(2));
+    }
+
+    private static <T extends Comparable<T>> List<T> sorted(Iterable<T> values) {
+        List<T> list = new ArrayList<>();
+        values.forEach(list::add);
+        list.sort(null);
+        return list;
+    }
+
+    // only a few distinct hash codes
+    private static final class Collider {
+        final int n;
+
+        Collider(int n) {
+            this.n = n;
+        }
+
+        @Override
+        public int hashCode() {
+            return n % 7;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Collider && ((Collider) obj).n == n;
+        }
+    }
+
+}
@@ -0,0 +1,28 @@
+package com.github.davidmoten.viem;
+
+/**
+ * An {@link IndexedViemSystem} with the same rules as {@link ViemSystem1}.
+ */
+class IndexedViemSystem1 extends IndexedViemSystem<String, String, Long> {
+
+    @Override
+    public boolean keyGreaterThan(String a, String b) {
+        return a.compareTo(b) < 0; // A > B
+    }
+
+    @Override
+    public boolean metadataGreaterThan(Long a, Long b) {
+        return a > b;
+    }
+
+    @Override
+    public boolean mergeable(Long a, Long b) {
+        return true;
+    }
+
+    @Override
+    public Long merge(Long a, Long b) {
+        return Math.max(a, b);
+    }
+
+}
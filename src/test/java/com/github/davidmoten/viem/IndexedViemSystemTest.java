@@ -0,0 +1,191 @@
+package com.github.davidmoten.viem;
+
+import static com.github.davidmoten.viem.Reports.es;
+import static com.github.davidmoten.viem.Reports.ids;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class IndexedViemSystemTest {
+
+    @Test
+    public void testMatchesUsesIndex() {
+        IndexedViemSystem1 s = new IndexedViemSystem1();
+        s.merge(es(1, "A1", "B1")).merge(es(2, "C1"));
+        assertEquals(2, s.size());
+        assertEquals(Collections.singleton(es(1, "A1", "B1")), s.matches(ids("B1", "D1")));
+        assertTrue(s.matches(ids("A2")).isEmpty());
+    }
+
+    @Test
+    public void testIdentifierTransferUpdatesIndex() {
+        IndexedViemSystem1 s = new IndexedViemSystem1();
+        s.merge(es(1, "A1", "B1")).merge(es(2, "A2", "B1"));
+        assertEquals(set(es(1, "A1"), es(2, "A2", "B1")), s.toSet());
+        assertEquals(Collections.singleton(es(2, "A2", "B1")), s.matches(ids("B1")));
+        assertEquals(Collections.singleton(es(1, "A1")), s.matches(ids("A1")));
+    }
+
+    @Test
+    public void testMergeGathersUpMany() {
+        IndexedViemSystem1 s = new IndexedViemSystem1();
+        s.merge(es(3, "A1", "E1")).merge(es(0, "A1", "D1")).merge(es(1, "B1", "E1")).merge(es(2, "C1", "F1"))
+                .merge(es(2, "A1", "B1", "C1"));
+        assertEquals(set(es(3, "A1", "B1", "C1", "D1", "E1", "F1")), s.toSet());
+        assertEquals(1, s.matches(ids("F1")).size());
+    }
+
+    @Test
+    public void testMatchesSameAsLinearScanSystem() {
+        Random r = new Random(123);
+        List<EntityState<String, String, Long>> states = disjointEntityStates(r, 500);
+        ViemSystem1 a = ViemSystem1.create();
+        IndexedViemSystem1 b = new IndexedViemSystem1();
+        a.update(Collections.emptyList(), new HashSet<>(states));
+        b.update(Collections.emptyList(), new HashSet<>(states));
+        for (int i = 0; i < 1000; i++) {
+            Map<String, String> ids = randomEntityState(r).identifiers();
+            assertEquals(a.matches(ids), b.matches(ids));
+        }
+    }
+
+    @Test
+    public void testIndexOnlyRefersToCurrentEntityStatesAfterRandomMerges() {
+        Random r = new Random(123);
+        IndexedViemSystem1 s = new IndexedViemSystem1();
+        for (int i = 0; i < 5000; i++) {
+            s.merge(randomEntityState(r));
+        }
+        Set<EntityState<String, String, Long>> all = s.toSet();
+        assertEquals(s.size(), all.size());
+        for (EntityState<String, String, Long> es : all) {
+            for (Entry<String, String> entry : es.identifiers().entrySet()) {
+                for (EntityState<String, String, Long> m : s
+                        .matches(Collections.singletonMap(entry.getKey(), entry.getValue()))) {
+                    assertTrue(all.contains(m));
+                    assertEquals(entry.getValue(), m.identifiers().get(entry.getKey()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMergeUpdatesInPlaceAndCallsUpdated() {
+        int[] updates = new int[1];
+        IndexedViemSystem1 s = new IndexedViemSystem1() {
+            @Override
+            protected void updated(List<EntityState<String, String, Long>> matches,
+                    Set<EntityState<String, String, Long>> newEntityStates) {
+                updates[0]++;
+            }
+        };
+        s.merge(es(1, "A1", "B1")).merge(es(5, "A1", "B1")).merge(es(3, "B1", "A1"));
+        assertEquals(3, updates[0]);
+        assertEquals(1, s.size());
+        EntityState<String, String, Long> es = s.matches(ids("B1")).iterator().next();
+        assertEquals(5L, (long) es.metadata());
+        assertTrue(es == s.matches(ids("A1")).iterator().next());
+        assertTrue(es == s.entityStates().iterator().next());
+        // a subset of the identifiers takes the general algorithm, still in place
+        s.merge(es(6, "A1"));
+        assertEquals(4, updates[0]);
+        assertEquals(6L, (long) s.matches(ids("B1")).iterator().next().metadata());
+    }
+
+    @Test
+    public void testUpdatedSeesEveryChange() {
+        Random r = new Random(5);
+        IndexedViemSystem1 replica = new IndexedViemSystem1();
+        IndexedViemSystem1 s = new IndexedViemSystem1() {
+            @Override
+            protected void updated(List<EntityState<String, String, Long>> matches,
+                    Set<EntityState<String, String, Long>> newEntityStates) {
+                replica.update(matches, newEntityStates);
+            }
+        };
+        for (int i = 0; i < 5000; i++) {
+            if (i % 100 == 0) {
+                s.mergeAll(Arrays.asList(Reports.craft(r, 300), Reports.craft(r, 300)));
+            } else {
+                s.merge(Reports.craft(r, 300));
+            }
+        }
+        assertEquals(Reports.metadataByIdentifiers(s), Reports.metadataByIdentifiers(replica));
+    }
+
+    @Test
+    public void testSameIdentifiersNotMergeableKeepsGreaterMetadata() {
+        IndexedViemSystem1 s = new IndexedViemSystem1() {
+            @Override
+            public boolean mergeable(Long a, Long b) {
+                return false;
+            }
+        };
+        s.merge(es(5, "A1")).merge(es(3, "A1"));
+        assertEquals(5L, (long) s.matches(ids("A1")).iterator().next().metadata());
+        s.merge(es(7, "A1"));
+        assertEquals(7L, (long) s.matches(ids("A1")).iterator().next().metadata());
+        assertEquals(1, s.size());
+    }
+
+    @Test
+    public void testInPlaceMergeSameAsMergeViaUpdate() {
+        Random r = new Random(42);
+        IndexedViemSystem1 a = new IndexedViemSystem1() {
+            @Override
+            public boolean mergeable(Long x, Long y) {
+                return Math.abs(x - y) < 700;
+            }
+        };
+        IndexedViemSystem1 b = new IndexedViemSystem1() {
+            @Override
+            public boolean mergeable(Long x, Long y) {
+                return Math.abs(x - y) < 700;
+            }
+        };
+        // every merge into a goes through update
+        ViemSystem<String, String, Long> viaUpdate = new ForwardingViemSystem<String, String, Long>(a) {
+        };
+        for (int i = 0; i < 5000; i++) {
+            EntityState<String, String, Long> e = randomEntityState(r);
+            viaUpdate.merge(e);
+            b.merge(e);
+        }
+        assertEquals(Reports.metadataByIdentifiers(a), Reports.metadataByIdentifiers(b));
+    }
+
+    static EntityState<String, String, Long> randomEntityState(Random r) {
+        Map<String, String> map = new HashMap<>();
+        int n = 1 + r.nextInt(3);
+        for (int i = 0; i < n; i++) {
+            map.put(String.valueOf((char) ('A' + r.nextInt(4))), String.valueOf(r.nextInt(20)));
+        }
+        return EntityState.create(map, (long) r.nextInt(1000));
+    }
+
+    private static List<EntityState<String, String, Long>> disjointEntityStates(Random r, int n) {
+        Set<String> used = new HashSet<>();
+        return r.ints(n, 0, Integer.MAX_VALUE) //
+                .mapToObj(i -> randomEntityState(r)) //
+                .filter(es -> es.identifiers().entrySet().stream().map(Object::toString).allMatch(used::add)) //
+                .collect(Collectors.toList());
+    }
+
+    @SafeVarargs
+    private static <T> Set<T> set(T... items) {
+        return new HashSet<T>(Arrays.asList(items));
+    }
+
+}
@@ -0,0 +1,281 @@
+package com.github.davidmoten.viem;
+
+import static com.github.davidmoten.viem.Reports.es;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.github.davidmoten.viem.IngestionPipeline.DropPolicy;
+import com.github.davidmoten.viem.IngestionPipeline.Source;
+
+public class IngestionPipelineTest {
+
+    @Test
+    public void testReportsFromAllSourcesAreMerged() {
+        Random r = new Random(123);
+        List<List<EntityState<String, String, Long>>> feeds = new ArrayList<>();
+        List<EntityState<String, String, Long>> all = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            List<EntityState<String, String, Long>> feed = new ArrayList<>();
+            for (int j = 0; j < 2000; j++) {
+                // disjoint crafts per source so arrival order across sources
+                // does not matter
+                EntityState<String, String, Long> e = Reports.craft(r, 50);
+                e = EntityState.create(prefix(i, e), e.metadata());
+                feed.add(e);
+                all.add(e);
+            }
+            feeds.add(feed);
+        }
+        IngestionPipeline<String, String, Long> p = new IngestionPipeline<>(new IndexedViemSystem1(), 100);
+        for (int i = 0; i < feeds.size(); i++) {
+            List<EntityState<String, String, Long>> feed = feeds.get(i);
+            p.addSource("source" + i, 10, DropPolicy.BLOCK, source -> feed.forEach(source::offer));
+        }
+        p.start();
+        awaitMerged(p, all.size());
+        p.close();
+        IndexedViemSystem1 expected = new IndexedViemSystem1();
+        for (List<EntityState<String, String, Long>> feed : feeds) {
+            feed.forEach(expected::merge);
+        }
+        assertEquals(Reports.metadataByIdentifiers(expected), Reports.metadataByIdentifiers(p.system()));
+        for (Source<String, String, Long> source : p.sources()) {
+            assertEquals(2000, source.offered());
+            assertEquals(2000, source.merged());
+            assertEquals(0, source.dropped());
+            assertEquals(0, source.depth());
+            assertTrue(source.maxLatencyNanos() >= source.meanLatencyNanos());
+            assertNull(source.failure());
+        }
+    }
+
+    @Test
+    public void testDropNewestWhenFull() {
+        IngestionPipeline<String, String, Long> p = new IngestionPipeline<>(new IndexedViemSystem1(), 100);
+        Source<String, String, Long> s = p.addSource("s", 2, DropPolicy.DROP_NEWEST);
+        assertTrue(s.offer(es(1, "A1")));
+        assertTrue(s.offer(es(2, "A2")));
+        assertFalse(s.offer(es(3, "A3")));
+        assertEquals(2, s.depth());
+        assertEquals(1, s.dropped());
+        p.start();
+        p.close();
+        assertEquals(set(es(1, "A1"), es(2, "A2")), p.system().toSet());
+        assertEquals(2, s.merged());
+    }
+
+    @Test
+    public void testDropOldestWhenFull() {
+        IngestionPipeline<String, String, Long> p = new IngestionPipeline<>(new IndexedViemSystem1(), 100);
+        Source<String, String, Long> s = p.addSource("s", 2, DropPolicy.DROP_OLDEST);
+        assertTrue(s.offer(es(1, "A1")));
+        assertTrue(s.offer(es(2, "A2")));
+        assertTrue(s.offer(es(3, "A3")));
+        assertEquals(2, s.depth());
+        assertEquals(1, s.dropped());
+        p.start();
+        p.close();
+        assertEquals(set(es(2, "A2"), es(3, "A3")), p.system().toSet());
+    }
+
+    @Test
+    public void testStalledSourceDoesNotStallOthers() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        IngestionPipeline<String, String, Long> p = new IngestionPipeline<>(
+                new PersistentViemSystemTest.PersistentViemSystem1(), 10);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Source<String, String, Long> stalled = p.addSource("stalled", 1, DropPolicy.BLOCK, source -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+        });
+        Source<String, String, Long> fast = p.addSource("fast", 4, DropPolicy.BLOCK, source -> {
+            for (int i = 0; i < 1000; i++) {
+                source.offer(es(i, "A" + i));
+            }
+        });
+        p.start();
+        awaitMerged(p, 1000);
+        assertEquals(1000, p.system().toSet().size());
+        assertEquals(0, stalled.merged());
+        assertEquals(1000, fast.merged());
+        p.close();
+        assertTrue(interrupted.get());
+    }
+
+    @Test
+    public void testBlockingSourceAppliesBackpressure() throws InterruptedException {
+        IngestionPipeline<String, String, Long> p = new IngestionPipeline<>(new IndexedViemSystem1(), 1);
+        Source<String, String, Long> s = p.addSource("s", 1, DropPolicy.BLOCK);
+        assertTrue(s.offer(es(1, "A1")));
+        CountDownLatch offered = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            s.offer(es(2, "A2"));
+            offered.countDown();
+        });
+        t.start();
+        // queue is full and nothing is merging
+        assertFalse(offered.await(100, TimeUnit.MILLISECONDS));
+        p.start();
+        assertTrue(offered.await(10, TimeUnit.SECONDS));
+        p.close();
+        assertEquals(set(es(1, "A1"), es(2, "A2")), p.system().toSet());
+        assertEquals(0, s.dropped());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMergeFailureIsReported() {
+        IndexedViemSystem1 failing = new IndexedViemSystem1() {
+            @Override
+            public ViemSystem<String, String, Long> mergeAll(List<EntityState<String, String, Long>> entityStates) {
+                throw new RuntimeException("boom");
+            }
+        };
+        IngestionPipeline<String, String, Long> p = new IngestionPipeline<>(failing, 10);
+        p.addSource("s", 1, DropPolicy.BLOCK).offer(es(1, "A1"));
+        p.start();
+        p.close();
+    }
+
+    @Test
+    public void testBlockedSourceReleasedWhenMergeFails() throws InterruptedException {
+        AtomicReference<Thread> producer = new AtomicReference<>();
+        AtomicReference<Source<String, String, Long>> source = new AtomicReference<>();
+        IndexedViemSystem1 failing = new IndexedViemSystem1() {
+            @Override
+            public ViemSystem<String, String, Long> mergeAll(List<EntityState<String, String, Long>> entityStates) {
+                // fail only once the producer is blocked on a full queue
+                long deadline = System.currentTimeMillis() + 10000;
+                while (source.get().depth() < 1 || producer.get().getState() == Thread.State.RUNNABLE) {
+                    assertTrue(System.currentTimeMillis() < deadline);
+                    Thread.yield();
+                }
+                throw new RuntimeException("boom");
+            }
+        };
+        IngestionPipeline<String, String, Long> p = new IngestionPipeline<>(failing, 10);
+        Source<String, String, Long> s = p.addSource("s", 1, DropPolicy.BLOCK);
+        source.set(s);
+        s.offer(es(1, "A1"));
+        AtomicReference<RuntimeException> error = new AtomicReference<>();
+        CountDownLatch released = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                for (int i = 2;; i++) {
+                    s.offer(es(i, "A" + i));
+                }
+            } catch (RuntimeException e) {
+                error.set(e);
+            }
+            released.countDown();
+        });
+        producer.set(t);
+        t.start();
+        p.start();
+        assertTrue(released.await(10, TimeUnit.SECONDS));
+        assertTrue(error.get() instanceof IllegalStateException);
+        assertEquals("merge failed", error.get().getMessage());
+    }
+
+    @Test
+    public void testBatchSizeKeptAndSourcesRotatedWhenMoreSourcesThanBatchSize() {
+        List<List<EntityState<String, String, Long>>> batches = new ArrayList<>();
+        IndexedViemSystem1 recording = new IndexedViemSystem1() {
+            @Override
+            public ViemSystem<String, String, Long> mergeAll(List<EntityState<String, String, Long>> entityStates) {
+                batches.add(new ArrayList<>(entityStates));
+                return super.mergeAll(entityStates);
+            }
+        };
+        IngestionPipeline<String, String, Long> p = new IngestionPipeline<>(recording, 2);
+        for (int i = 0; i < 5; i++) {
+            Source<String, String, Long> source = p.addSource("source" + i, 3, DropPolicy.BLOCK);
+            for (int j = 0; j < 3; j++) {
+                source.offer(es(j, String.valueOf((char) ('A' + i)) + j));
+            }
+        }
+        p.start();
+        awaitMerged(p, 15);
+        p.close();
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < batches.size(); i++) {
+            assertTrue(batches.get(i).size() <= 2);
+            if (i < 5) {
+                for (EntityState<String, String, Long> e : batches.get(i)) {
+                    counts.merge(e.identifiers().keySet().iterator().next(), 1, Integer::sum);
+                }
+            }
+        }
+        // every source gets the same share of the first five batches
+        Map<String, Integer> expected = new HashMap<>();
+        for (String key : Arrays.asList("A", "B", "C", "D", "E")) {
+            expected.put(key, 2);
+        }
+        assertEquals(expected, counts);
+    }
+
+    @Test
+    public void testBusySourceFillsTheBatchesLeftByQuietSources() {
+        List<Integer> sizes = new ArrayList<>();
+        IndexedViemSystem1 recording = new IndexedViemSystem1() {
+            @Override
+            public ViemSystem<String, String, Long> mergeAll(List<EntityState<String, String, Long>> entityStates) {
+                sizes.add(entityStates.size());
+                return super.mergeAll(entityStates);
+            }
+        };
+        IngestionPipeline<String, String, Long> p = new IngestionPipeline<>(recording, 100);
+        Source<String, String, Long> busy = p.addSource("busy", 1000, DropPolicy.BLOCK);
+        for (int i = 0; i < 10; i++) {
+            p.addSource("quiet" + i, 10, DropPolicy.BLOCK);
+        }
+        for (int i = 0; i < 1000; i++) {
+            busy.offer(es(i, "A" + i));
+        }
+        p.start();
+        awaitMerged(p, 1000);
+        p.close();
+        // full batches rather than a tenth of the batch size each
+        assertEquals(Collections.nCopies(10, 100), sizes);
+    }
+
+    private static void awaitMerged(IngestionPipeline<String, String, Long> p, long n) {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (p.sources().stream().mapToLong(Source::merged).sum() < n) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.yield();
+        }
+    }
+
+    private static Map<String, String> prefix(int source, EntityState<String, String, Long> e) {
+        Map<String, String> map = new HashMap<>();
+        e.identifiers().forEach((k, v) -> map.put(k, source + "-" + v));
+        return map;
+    }
+
+    @SafeVarargs
+    private static <T> Set<T> set(T... items) {
+        return new HashSet<T>(Arrays.asList(items));
+    }
+
+}
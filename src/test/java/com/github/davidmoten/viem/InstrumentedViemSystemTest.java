@@ -0,0 +1,125 @@
+package com.github.davidmoten.viem;
+
+import static com.github.davidmoten.viem.Reports.es;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.github.davidmoten.viem.Instrumentation.Outcome;
+import com.github.davidmoten.viem.Instrumentation.Phase;
+import com.github.davidmoten.viem.MergeEvent.Type;
+
+public class InstrumentedViemSystemTest {
+
+    @Test
+    public void testOutcomes() {
+        Recorder rec = new Recorder();
+        IndexedViemSystem1 delegate = new IndexedViemSystem1();
+        InstrumentedViemSystem<String, String, Long> s = new InstrumentedViemSystem<>(delegate, rec);
+        s.merge(es(1, "A1")) //
+                .merge(es(2, "B1")) //
+                .merge(es(3, "A1", "B1")) //
+                .merge(es(4, "A1", "C1")) //
+                // conflicts on A so the C1 is transferred from the existing entity
+                .merge(es(5, "A2", "C1"));
+        assertEquals(Arrays.asList(Outcome.CREATED, Outcome.CREATED, Outcome.MERGED, Outcome.UPDATED,
+                Outcome.TRANSFERRED), rec.outcomes);
+        assertEquals(Arrays.asList(0, 0, 2, 1, 1), rec.matches);
+        // the last report takes C1 from the entity-state which lives on as A1
+        assertEquals(Arrays.asList(Type.CREATED, Type.CREATED, Type.MERGED, Type.UPDATED), rec.changes.subList(0, 4));
+        assertEquals(EnumSet.of(Type.TRANSFERRED, Type.UPDATED), EnumSet.copyOf(rec.changes.subList(4, 6)));
+        assertEquals(6, rec.changes.size());
+        assertEquals(delegate.toSet(), s.toSet());
+    }
+
+    @Test
+    public void testPhasesTimed() {
+        Recorder rec = new Recorder();
+        InstrumentedViemSystem<String, String, Long> s = new InstrumentedViemSystem<>(new IndexedViemSystem1(), rec);
+        s.merge(es(1, "A1")).merge(es(2, "A1", "B1"));
+        assertEquals(2, rec.counts.get(Phase.MATCHES).intValue());
+        assertEquals(1, rec.counts.get(Phase.MERGEABLE).intValue());
+        assertEquals(2, rec.counts.get(Phase.ALGORITHM).intValue());
+        assertEquals(2, rec.counts.get(Phase.UPDATE).intValue());
+        assertEquals(1, rec.mergeable);
+        for (long nanos : rec.nanos) {
+            assertTrue(nanos >= 0);
+        }
+    }
+
+    @Test
+    public void testMergeAllReportsEachEntityStateAndUpdatesOnce() {
+        Recorder rec = new Recorder();
+        IndexedViemSystem1 expected = new IndexedViemSystem1();
+        InstrumentedViemSystem<String, String, Long> s = new InstrumentedViemSystem<>(new IndexedViemSystem1(), rec);
+        List<EntityState<String, String, Long>> list = Arrays.asList(es(1, "A1"), es(2, "B1"), es(3, "A1", "B1"));
+        for (EntityState<String, String, Long> es : list) {
+            expected.merge(es);
+        }
+        s.mergeAll(list);
+        assertEquals(Arrays.asList(Outcome.CREATED, Outcome.CREATED, Outcome.MERGED), rec.outcomes);
+        assertEquals(1, rec.counts.get(Phase.UPDATE).intValue());
+        assertEquals(Reports.metadataByIdentifiers(expected), Reports.metadataByIdentifiers(s));
+    }
+
+    @Test
+    public void testOutcomeOfChanges() {
+        EntityState<String, String, Long> a = es(1, "A1");
+        EntityState<String, String, Long> b = es(2, "A1", "B1");
+        assertEquals(Outcome.CREATED, Outcome.of(0, Arrays.asList(new MergeEvent<>(Type.CREATED, a, list()))));
+        assertEquals(Outcome.UPDATED, Outcome.of(1, Collections.emptyList()));
+        assertEquals(Outcome.REMOVED, Outcome.of(2, Arrays.asList(new MergeEvent<>(Type.MERGED, b, list(a, a)),
+                new MergeEvent<>(Type.REMOVED, a, list()))));
+        assertEquals(Outcome.TRANSFERRED, Outcome.of(2, Arrays.asList(new MergeEvent<>(Type.REMOVED, a, list()),
+                new MergeEvent<>(Type.TRANSFERRED, b, list(a)))));
+    }
+
+    @SafeVarargs
+    private static <T> List<T> list(T... items) {
+        return Arrays.asList(items);
+    }
+
+    private static final class Recorder implements Instrumentation {
+
+        final Map<Phase, Integer> counts = new EnumMap<>(Phase.class);
+        final List<Long> nanos = new ArrayList<>();
+        final List<Outcome> outcomes = new ArrayList<>();
+        final List<Integer> matches = new ArrayList<>();
+        final List<Type> changes = new ArrayList<>();
+        int mergeable;
+
+        @Override
+        public void timed(Phase phase, long nanos) {
+            counts.merge(phase, 1, Integer::sum);
+            this.nanos.add(nanos);
+        }
+
+        @Override
+        public void mergeable(boolean mergeable) {
+            if (mergeable) {
+                this.mergeable++;
+            }
+        }
+
+        @Override
+        public void merged(Outcome outcome, int matches, int added) {
+            outcomes.add(outcome);
+            this.matches.add(matches);
+        }
+
+        @Override
+        public void changed(Type type) {
+            changes.add(type);
+        }
+    }
+
+}
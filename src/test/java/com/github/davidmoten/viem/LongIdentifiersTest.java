@@ -0,0 +1,98 @@
+package com.github.davidmoten.viem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongIdentifiersTest {
+
+    @Test
+    public void testBehavesAsMap() {
+        Map<Integer, Long> map = new HashMap<>();
+        map.put(5, 500L);
+        map.put(0, -1L);
+        map.put(63, Long.MAX_VALUE);
+        LongIdentifiers ids = LongIdentifiers.from(map);
+        assertEquals(3, ids.size());
+        assertEquals(map, ids);
+        assertEquals(ids, map);
+        assertEquals(map.hashCode(), ids.hashCode());
+        assertEquals(map.toString(), ids.toString());
+        assertEquals(Long.valueOf(500), ids.get(5));
+        assertNull(ids.get(6));
+        assertNull(ids.get("5"));
+        assertTrue(ids.containsKey(63));
+        assertFalse(ids.containsKey(64));
+        assertEquals(Arrays.asList(0, 5, 63), new ArrayList<>(ids.keySet()));
+        assertEquals(Long.MAX_VALUE, ids.value(63));
+        assertEquals((1L << 0) | (1L << 5) | (1L << 63), ids.mask());
+    }
+
+    @Test
+    public void testFromReturnsSameInstance() {
+        LongIdentifiers ids = LongIdentifiers.of(1, 2);
+        assertSame(ids, LongIdentifiers.from(ids));
+    }
+
+    @Test
+    public void testWith() {
+        LongIdentifiers ids = LongIdentifiers.of(3, 30).with(1, 10).with(3, 31);
+        Map<Integer, Long> map = new HashMap<>();
+        map.put(1, 10L);
+        map.put(3, 31L);
+        assertEquals(map, ids);
+        assertTrue(LongIdentifiers.empty().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeyTooLarge() {
+        LongIdentifiers.of(64, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeyNegative() {
+        LongIdentifiers.from(Collections.singletonMap(-1, 1L));
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testValueOfMissingKey() {
+        LongIdentifiers.of(1, 2).value(2);
+    }
+
+    @Test
+    public void testUnionAndWithoutCommonSameAsMaps() {
+        Random r = new Random(123);
+        for (int i = 0; i < 1000; i++) {
+            Map<Integer, Long> a = random(r);
+            Map<Integer, Long> b = random(r);
+            Map<Integer, Long> union = new HashMap<>(b);
+            union.putAll(a);
+            assertEquals(union, LongIdentifiers.union(LongIdentifiers.from(a), LongIdentifiers.from(b)));
+            Map<Integer, Long> without = new HashMap<>(a);
+            without.entrySet().removeIf(entry -> entry.getValue().equals(b.get(entry.getKey())));
+            assertEquals(without, LongIdentifiers.withoutCommon(LongIdentifiers.from(a), LongIdentifiers.from(b)));
+        }
+    }
+
+    private static Map<Integer, Long> random(Random r) {
+        Map<Integer, Long> map = new HashMap<>();
+        int n = r.nextInt(5);
+        for (int i = 0; i < n; i++) {
+            map.put(r.nextInt(6), (long) r.nextInt(3));
+        }
+        return map;
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.github.davidmoten.viem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongIndexedViemSystemTest {
+
+    @Test
+    public void testMergeSameAsIndexedSystem() {
+        VesselFeed feed = new VesselFeed(123, 1000);
+        ViemSystem<Integer, Long, Long> a = VesselFeed.system("indexed");
+        ViemSystem<Integer, Long, Long> b = VesselFeed.system("long");
+        for (int i = 0; i < 20000; i++) {
+            EntityState<Integer, Long, Long> es = feed.next();
+            a.merge(es);
+            b.merge(es);
+        }
+        assertEquals(Reports.metadataByIdentifiers(a), Reports.metadataByIdentifiers(b));
+        for (EntityState<Integer, Long, Long> es : b.entityStates()) {
+            assertTrue(es instanceof LongEntityState);
+        }
+    }
+
+    @Test
+    public void testEqualsEntityStateOfOtherImplementation() {
+        EntityState<Integer, Long, Long> a = VesselFeed.vessel(1, 10);
+        EntityState<Integer, Long, Long> b = LongEntityState.create(a.identifiers(), 11L);
+        assertTrue(a.equals(b));
+        assertTrue(b.equals(a));
+        assertEquals(a.hashCode(), b.hashCode());
+        assertFalse(b.equals(VesselFeed.vessel(2, 10)));
+        assertFalse(b.equals(a.identifiers()));
+    }
+
+    @Test
+    public void testMatchesWithBoxedIdentifiers() {
+        LongIndexedViemSystem<Long> s = new VesselFeed.LongVessels();
+        s.merge(VesselFeed.vessel(1, 10)).merge(VesselFeed.vessel(2, 11));
+        assertEquals(2, s.size());
+        Map<Integer, Long> ids = new HashMap<>();
+        ids.put(VesselFeed.MMSI, 200_000_001L);
+        ids.put(LongIdentifiers.MAX_KEY + 1, 1L);
+        assertEquals(Collections.singleton(VesselFeed.vessel(1, 10)), s.matches(ids));
+        assertTrue(s.matches(Collections.singletonMap(VesselFeed.IMO, 1L)).isEmpty());
+    }
+
+    @Test
+    public void testIndexOnlyRefersToCurrentEntityStatesAfterRandomMerges() {
+        Random r = new Random(123);
+        LongIndexedViemSystem<Long> s = new VesselFeed.LongVessels();
+        for (int i = 0; i < 5000; i++) {
+            Map<Integer, Long> ids = new HashMap<>();
+            for (int key = 0; key < 3; key++) {
+                if (ids.isEmpty() || r.nextBoolean()) {
+                    ids.put(key, (long) r.nextInt(50));
+                }
+            }
+            s.merge(EntityState.create(ids, (long) i));
+        }
+        assertEquals(s.size(), s.toSet().size());
+        for (EntityState<Integer, Long, Long> es : s.entityStates()) {
+            for (Entry<Integer, Long> entry : es.identifiers().entrySet()) {
+                for (EntityState<Integer, Long, Long> m : s
+                        .matches(LongIdentifiers.of(entry.getKey(), entry.getValue()))) {
+                    assertTrue(s.toSet().contains(m));
+                    assertEquals(entry.getValue(), m.identifiers().get(entry.getKey()));
+                }
+            }
+        }
+    }
+
+}
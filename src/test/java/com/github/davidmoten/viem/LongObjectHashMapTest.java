@@ -0,0 +1,52 @@
+package com.github.davidmoten.viem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongObjectHashMapTest {
+
+    @Test
+    public void testSameAsHashMapForRandomOperations() {
+        Random r = new Random(123);
+        LongObjectHashMap<String> a = new LongObjectHashMap<>();
+        Map<Long, String> b = new HashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            long key = r.nextInt(2000) - 1000;
+            String value = String.valueOf(r.nextInt(3));
+            if (r.nextInt(3) == 0) {
+                assertEquals(b.remove(key, value), a.remove(key, value));
+            } else {
+                a.put(key, value);
+                b.put(key, value);
+            }
+            assertEquals(b.get(key), a.get(key));
+            assertEquals(b.size(), a.size());
+        }
+        for (long key = -1000; key < 1000; key++) {
+            assertEquals(b.get(key), a.get(key));
+        }
+    }
+
+    @Test
+    public void testRemoveOnlyIfMappedToValue() {
+        LongObjectHashMap<String> m = new LongObjectHashMap<>();
+        m.put(1, "a");
+        assertFalse(m.remove(1, "b"));
+        assertFalse(m.remove(2, "a"));
+        assertTrue(m.remove(1, "a"));
+        assertEquals(0, m.size());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testPutNull() {
+        new LongObjectHashMap<String>().put(1, null);
+    }
+
+}
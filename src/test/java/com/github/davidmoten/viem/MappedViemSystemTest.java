@@ -0,0 +1,158 @@
+package com.github.davidmoten.viem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.davidmoten.viem.VesselFeed.MappedVessels;
+
+public class MappedViemSystemTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMergeSameAsLongIndexedSystem() throws IOException {
+        VesselFeed feed = new VesselFeed(123, 1000);
+        ViemSystem<Integer, Long, Long> a = VesselFeed.system("long");
+        try (MappedVessels b = new MappedVessels(folder.newFile())) {
+            for (int i = 0; i < 20000; i++) {
+                EntityState<Integer, Long, Long> es = feed.next();
+                a.merge(es);
+                b.merge(es);
+            }
+            assertEquals(Reports.metadataByIdentifiers(a), Reports.metadataByIdentifiers(b));
+            assertEquals(a.toSet().size(), b.size());
+        }
+    }
+
+    @Test
+    public void testReopenRestoresEntityStatesAndIndex() throws IOException {
+        File file = folder.newFile();
+        VesselFeed feed = new VesselFeed(123, 1000);
+        Map<Map<Integer, Long>, Long> expected;
+        try (MappedVessels s = new MappedVessels(file)) {
+            for (int i = 0; i < 5000; i++) {
+                s.merge(feed.next());
+            }
+            expected = Reports.metadataByIdentifiers(s);
+        }
+        try (MappedVessels s = new MappedVessels(file)) {
+            assertEquals(expected, Reports.metadataByIdentifiers(s));
+            assertEquals(expected.size(), s.size());
+            for (Map<Integer, Long> ids : expected.keySet()) {
+                assertEquals(Collections.singleton(ids), identifiers(s, ids));
+            }
+            // freed records are reused after reopening
+            s.merge(VesselFeed.vessel(1, Long.MAX_VALUE));
+            assertEquals(Long.MAX_VALUE, (long) s.matches(VesselFeed.vessel(1, 0).identifiers()).iterator()
+                    .next().metadata());
+        }
+    }
+
+    @Test
+    public void testViewOfRemovedRecordFailsOnMetadata() throws IOException {
+        try (MappedVessels s = new MappedVessels(folder.newFile())) {
+            s.merge(VesselFeed.vessel(1, 10));
+            EntityState<Integer, Long, Long> view = s.entityStates().iterator().next();
+            s.merge(VesselFeed.vessel(1, 11));
+            try {
+                view.metadata();
+                fail();
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testMetadataTooLargeLeavesSystemUnchanged() throws IOException {
+        File file = folder.newFile();
+        try (MappedViemSystem<String> s = new MappedViemSystem<String>(file, 3, 8, Serializer.strings()) {
+
+            @Override
+            public boolean keyGreaterThan(Integer a, Integer b) {
+                return a < b;
+            }
+
+            @Override
+            public boolean metadataGreaterThan(String a, String b) {
+                return a.compareTo(b) > 0;
+            }
+
+            @Override
+            public boolean mergeable(String a, String b) {
+                return true;
+            }
+
+            @Override
+            public String merge(String a, String b) {
+                return metadataGreaterThan(a, b) ? a : b;
+            }
+        }) {
+            s.merge(EntityState.create(LongIdentifiers.of(0, 1), "abc"));
+            try {
+                s.merge(EntityState.create(LongIdentifiers.of(0, 1), "abcdefgh"));
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            assertEquals("abc", s.entityStates().iterator().next().metadata());
+            assertEquals(1, s.size());
+        }
+    }
+
+    @Test
+    public void testReopenWithDifferentLayoutFails() throws IOException {
+        File file = folder.newFile();
+        new MappedVessels(file).close();
+        try {
+            new MappedViemSystem<Long>(file, 4, 8, Serializer.longs()) {
+
+                @Override
+                public boolean keyGreaterThan(Integer a, Integer b) {
+                    return a < b;
+                }
+
+                @Override
+                public boolean metadataGreaterThan(Long a, Long b) {
+                    return a > b;
+                }
+
+                @Override
+                public boolean mergeable(Long a, Long b) {
+                    return true;
+                }
+
+                @Override
+                public Long merge(Long a, Long b) {
+                    return Math.max(a, b);
+                }
+            };
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("keys=3"));
+        }
+    }
+
+    private static Set<Map<Integer, Long>> identifiers(MappedVessels s, Map<Integer, Long> ids) {
+        Set<Map<Integer, Long>> set = new HashSet<>();
+        for (EntityState<Integer, Long, Long> es : s.matches(new HashMap<>(ids))) {
+            set.add(es.identifiers());
+        }
+        return set;
+    }
+
+}
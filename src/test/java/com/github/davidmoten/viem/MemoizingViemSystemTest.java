@@ -0,0 +1,136 @@
+package com.github.davidmoten.viem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MemoizingViemSystemTest {
+
+    @Test
+    public void testMergeableMemoizedSymmetrically() {
+        Counting delegate = new Counting();
+        MemoizingViemSystem<String, String, Time> s = new MemoizingViemSystem<>(delegate, 16);
+        Time a = new Time(1);
+        Time b = new Time(2000);
+        assertFalse(s.mergeable(a, b));
+        assertFalse(s.mergeable(b, a));
+        assertFalse(s.mergeable(a, b));
+        assertEquals(1, delegate.mergeableCalls);
+        assertEquals(2, s.mergeableHits());
+        assertEquals(1, s.mergeableMisses());
+    }
+
+    @Test
+    public void testKeyedOnIdentity() {
+        Counting delegate = new Counting();
+        MemoizingViemSystem<String, String, Time> s = new MemoizingViemSystem<>(delegate, 16);
+        assertTrue(s.mergeable(new Time(1), new Time(2)));
+        assertTrue(s.mergeable(new Time(1), new Time(2)));
+        assertEquals(2, delegate.mergeableCalls);
+        assertEquals(0, s.mergeableHits());
+    }
+
+    @Test
+    public void testMergeMemoized() {
+        Counting delegate = new Counting();
+        MemoizingViemSystem<String, String, Time> s = new MemoizingViemSystem<>(delegate, 16);
+        Time a = new Time(1);
+        Time b = new Time(5);
+        assertTrue(s.merge(a, b) == b);
+        assertTrue(s.merge(b, a) == b);
+        assertEquals(1, delegate.mergeCalls);
+        assertEquals(1, s.mergeHits());
+        assertEquals(1, s.mergeMisses());
+    }
+
+    @Test
+    public void testBounded() {
+        Counting delegate = new Counting();
+        MemoizingViemSystem<String, String, Time> s = new MemoizingViemSystem<>(delegate, 4);
+        List<Time> list = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            list.add(new Time(i));
+        }
+        for (int i = 0; i < 999; i++) {
+            s.mergeable(list.get(i), list.get(i + 1));
+        }
+        for (int i = 0; i < 999; i++) {
+            s.mergeable(list.get(i), list.get(i + 1));
+        }
+        // at most 4 pairs can still be remembered
+        assertTrue(s.mergeableHits() <= 4);
+        assertEquals(1998, s.mergeableHits() + s.mergeableMisses());
+    }
+
+    @Test
+    public void testParallelMergeSameResult() {
+        Random r = new Random(5);
+        List<EntityState<String, String, Time>> list = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            EntityState<String, String, Long> es = Reports.craft(r, 500);
+            list.add(EntityState.create(es.identifiers(), new Time(es.metadata())));
+        }
+        Counting expected = new Counting(Long.MAX_VALUE);
+        expected.mergeAll(list);
+        Counting delegate = new Counting(Long.MAX_VALUE);
+        MemoizingViemSystem<String, String, Time> s = new MemoizingViemSystem<>(delegate, 1024);
+        ParallelMerge.mergeAll(s, list);
+        // merge returns one of its arguments so the same metadata objects end up
+        // in both systems
+        assertEquals(Reports.metadataByIdentifiers(expected), Reports.metadataByIdentifiers(s));
+    }
+
+    // metadata with identity equality
+    private static final class Time {
+
+        final long value;
+
+        Time(long value) {
+            this.value = value;
+        }
+    }
+
+    private static final class Counting extends IndexedViemSystem<String, String, Time> {
+
+        final long maxDifference;
+        int mergeableCalls;
+        int mergeCalls;
+
+        Counting() {
+            this(700);
+        }
+
+        Counting(long maxDifference) {
+            this.maxDifference = maxDifference;
+        }
+
+        @Override
+        public boolean keyGreaterThan(String a, String b) {
+            return a.compareTo(b) < 0;
+        }
+
+        @Override
+        public boolean metadataGreaterThan(Time a, Time b) {
+            return a.value > b.value;
+        }
+
+        @Override
+        public boolean mergeable(Time a, Time b) {
+            mergeableCalls++;
+            return Math.abs(a.value - b.value) < maxDifference;
+        }
+
+        @Override
+        public Time merge(Time a, Time b) {
+            mergeCalls++;
+            return a.value >= b.value ? a : b;
+        }
+    }
+
+}
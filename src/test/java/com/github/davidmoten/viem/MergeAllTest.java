@@ -0,0 +1,86 @@
+package com.github.davidmoten.viem;
+
+import static com.github.davidmoten.viem.Reports.es;
+import static com.github.davidmoten.viem.Reports.ids;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class MergeAllTest {
+
+    @Test
+    public void testEmptyBatch() {
+        CountingSystem s = new CountingSystem();
+        s.mergeAll(Collections.emptyList());
+        assertEquals(1, s.updates);
+        assertEquals(0, s.size());
+    }
+
+    @Test
+    public void testReportsInBatchResolvedAgainstEachOther() {
+        CountingSystem s = new CountingSystem();
+        s.merge(es(1, "A1", "B1"));
+        s.mergeAll(Arrays.asList(es(2, "A2", "B1"), es(3, "A2", "C1"), es(4, "A1")));
+        assertEquals(2, s.updates);
+        assertEquals(set(es(4, "A1"), es(3, "A2", "B1", "C1")), s.toSet());
+        assertEquals(Long.valueOf(4), s.matches(ids("A1")).iterator().next().metadata());
+    }
+
+    @Test
+    public void testMergeWithRejection() {
+        ViemSystem2 s = ViemSystem2.create();
+        List<EntityState<String, String, TimedPoint>> list = Arrays.asList( //
+                es2(1, 0, "A1", "B1"), //
+                es2(2, 2, "C1", "D1"), //
+                es2(3, 100, "E1", "F1"), //
+                es2(1, 1, "A1", "D1", "F1"));
+        assertEquals(set(es2(2, 2, "A1", "B1", "C1", "D1"), es2(3, 6, "E1", "F1")), s.mergeAll(list).toSet());
+    }
+
+    @Test
+    public void testSameAsSequentialMerges() {
+        Random r = new Random(1);
+        ViemSystem<String, String, Long> a = new IndexedViemSystem1();
+        CountingSystem b = new CountingSystem();
+        for (int batch = 0; batch < 100; batch++) {
+            List<EntityState<String, String, Long>> list = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                EntityState<String, String, Long> e = Reports.craft(r, 200);
+                list.add(e);
+                a = a.merge(e);
+            }
+            b.mergeAll(list);
+            assertEquals(Reports.metadataByIdentifiers(a), Reports.metadataByIdentifiers(b));
+        }
+        assertEquals(100, b.updates);
+    }
+
+    private static final class CountingSystem extends IndexedViemSystem1 {
+
+        int updates;
+
+        @Override
+        protected void updated(List<EntityState<String, String, Long>> matches,
+                Set<EntityState<String, String, Long>> newEntityStates) {
+            updates++;
+        }
+    }
+
+    private static EntityState<String, String, TimedPoint> es2(long timestamp, int position, String... strings) {
+        return EntityState.create(ids(strings), new TimedPoint(timestamp, position));
+    }
+
+    @SafeVarargs
+    private static <T> Set<T> set(T... items) {
+        return new HashSet<T>(Arrays.asList(items));
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.github.davidmoten.viem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+
+import org.junit.Test;
+
+/**
+ * Tests the classes compiled into {@code META-INF/versions/17} and
+ * {@code META-INF/versions/21} when built and run with Java 17+ and 21+
+ * respectively (CI builds on both). The test classpath is a directory rather than a multi-release jar
+ * so the versioned classes are loaded ahead of the base classes explicitly.
+ */
+public class MultiReleaseTest {
+
+    private static final File CLASSES = new File("target/classes");
+
+    @Test
+    public void testJava17EntityStateIsRecordWithEqualityByIdentifiers() throws Exception {
+        File versions = new File(CLASSES, "META-INF/versions/17");
+        assumeTrue(versions.exists() && javaVersion() >= 17);
+        try (URLClassLoader loader = new URLClassLoader(
+                new URL[] { versions.toURI().toURL(), CLASSES.toURI().toURL() }, null)) {
+            Class<?> cls = loader.loadClass(EntityStateDefault.class.getName());
+            assertTrue((Boolean) Class.class.getMethod("isRecord").invoke(cls));
+            Method create = loader.loadClass(EntityState.class.getName()).getMethod("create", Map.class,
+                    Object.class);
+            Object a = create.invoke(null, Collections.singletonMap("a", "1"), 1L);
+            Object b = create.invoke(null, Collections.singletonMap("a", "1"), 2L);
+            Object c = create.invoke(null, Collections.singletonMap("a", "2"), 1L);
+            assertSame(cls, a.getClass());
+            assertEquals(a, b);
+            assertEquals(a.hashCode(), b.hashCode());
+            assertNotEquals(a, c);
+            assertEquals("EntityStateDefault [ids={a=1}, metadata=1]", a.toString());
+        }
+    }
+
+    @Test
+    public void testJava21ThreadsCreatesVirtualThreads() throws Exception {
+        File versions = new File(CLASSES, "META-INF/versions/21");
+        assumeTrue(versions.exists() && javaVersion() >= 21);
+        try (URLClassLoader loader = new URLClassLoader(
+                new URL[] { versions.toURI().toURL(), CLASSES.toURI().toURL() }, null)) {
+            Class<?> cls = loader.loadClass(Threads.class.getName());
+            // the Java 21 version has no reflective lookup of Thread.ofVirtual
+            assertEquals(0, cls.getDeclaredFields().length);
+            Method supported = cls.getDeclaredMethod("virtualThreadsSupported");
+            supported.setAccessible(true);
+            assertTrue((Boolean) supported.invoke(null));
+            Method factory = cls.getDeclaredMethod("virtualOrPlatform", String.class);
+            factory.setAccessible(true);
+            Thread t = ((ThreadFactory) factory.invoke(null, "reader-")).newThread(() -> {
+            });
+            assertEquals("reader-0", t.getName());
+            assertTrue((Boolean) Thread.class.getMethod("isVirtual").invoke(t));
+        }
+    }
+
+    private static int javaVersion() {
+        String v = System.getProperty("java.specification.version");
+        return v.startsWith("1.") ? Integer.parseInt(v.substring(2)) : Integer.parseInt(v);
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.github.davidmoten.viem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class OffHeapIndexTest {
+
+    @Test
+    public void testSameAsHashMapForRandomOperations() {
+        Random r = new Random(123);
+        OffHeapIndex a = new OffHeapIndex();
+        Map<Entry<Integer, Long>, Integer> b = new HashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            int key = r.nextInt(3);
+            long value = r.nextInt(2000) - 1000;
+            int record = r.nextInt(3);
+            Entry<Integer, Long> kv = new SimpleImmutableEntry<>(key, value);
+            if (r.nextInt(3) == 0) {
+                assertEquals(b.remove(kv, record), a.remove(key, value, record));
+            } else {
+                a.put(key, value, record);
+                b.put(kv, record);
+            }
+            assertEquals((int) b.getOrDefault(kv, OffHeapIndex.ABSENT), a.get(key, value));
+            assertEquals(b.size(), a.size());
+        }
+    }
+
+    @Test
+    public void testFailedPutWhenFullLeavesIndexUnchanged() {
+        OffHeapIndex a = new OffHeapIndex(0, 1024);
+        for (int i = 0; i < 768; i++) {
+            a.put(1, i, i);
+        }
+        try {
+            a.put(1, 768, 768);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(768, a.size());
+        assertEquals(OffHeapIndex.ABSENT, a.get(1, 768));
+        for (int i = 0; i < 768; i++) {
+            assertEquals(i, a.get(1, i));
+        }
+        // existing key-values can still be updated and room made by removal
+        a.put(1, 5, 55);
+        assertEquals(55, a.get(1, 5));
+        assertTrue(a.remove(1, 5, 55));
+        a.put(1, 768, 768);
+        assertEquals(768, a.get(1, 768));
+        assertEquals(768, a.size());
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.github.davidmoten.viem;
+
+import static com.github.davidmoten.viem.Reports.es;
+import static com.github.davidmoten.viem.Reports.ids;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class OptimisticViemSystemTest {
+
+    @Test
+    public void testIdentifierTransfer() {
+        OptimisticViemSystem1 s = new OptimisticViemSystem1();
+        s.merge(es(1, "A1", "B1")).merge(es(2, "A2", "B1"));
+        assertEquals(set(es(1, "A1"), es(2, "A2", "B1")), s.toSet());
+        assertEquals(Collections.singleton(es(2, "A2", "B1")), s.matches(ids("B1")));
+        assertEquals(Collections.singleton(es(1, "A1")), s.matches(ids("A1")));
+        assertEquals(2, s.commits());
+        assertEquals(0, s.retries());
+    }
+
+    @Test
+    public void testMergeGathersUpMany() {
+        OptimisticViemSystem1 s = new OptimisticViemSystem1();
+        s.merge(es(3, "A1", "E1")).merge(es(0, "A1", "D1")).merge(es(1, "B1", "E1")).merge(es(2, "C1", "F1"))
+                .merge(es(2, "A1", "B1", "C1"));
+        assertEquals(set(es(3, "A1", "B1", "C1", "D1", "E1", "F1")), s.toSet());
+        assertEquals(1, s.matches(ids("F1")).size());
+    }
+
+    @Test
+    public void testUpdate() {
+        OptimisticViemSystem1 s = new OptimisticViemSystem1();
+        s.update(Collections.emptyList(), set(es(1, "A1", "B1")));
+        s.update(Collections.singletonList(es(1, "A1", "B1")), set(es(2, "A1")));
+        assertEquals(set(es(2, "A1")), s.toSet());
+        assertTrue(s.matches(ids("B1")).isEmpty());
+    }
+
+    @Test
+    public void testConcurrentMergesKeepIdentifiersUnique() throws Exception {
+        OptimisticViemSystem1 s = new OptimisticViemSystem1();
+        int threads = 8;
+        int merges = 20000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Random r = new Random(t);
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < merges; i++) {
+                        s.merge(Reports.craft(r, 50));
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(threads * merges, s.commits());
+        Set<Entry<String, String>> identifiers = new HashSet<>();
+        for (EntityState<String, String, Long> es : s.entityStates()) {
+            for (Entry<String, String> entry : es.identifiers().entrySet()) {
+                assertTrue(identifiers.add(entry));
+                assertEquals(Collections.singleton(es),
+                        s.matches(Collections.singletonMap(entry.getKey(), entry.getValue())));
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testClaimsReleasedWhenCommitThrows() {
+        OptimisticViemSystem1 s = new OptimisticViemSystem1();
+        s.merge(es(1, "A1"));
+        // no matches so the report is added as is and hashed during the commit
+        Map<String, String> ids = new HashMap<String, String>(ids("C1", "D1")) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public int hashCode() {
+                throw new IllegalStateException("boom");
+            }
+        };
+        try {
+            s.merge(EntityState.create(ids, 2L));
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("boom", e.getMessage());
+        }
+        // the slots claimed by the failed commit were released
+        assertTrue(s.matches(ids("C1", "D1")).isEmpty());
+        s.merge(es(3, "C1", "D1"));
+        assertEquals(set(es(1, "A1"), es(3, "C1", "D1")), s.toSet());
+        assertEquals(2, s.commits());
+    }
+
+    @SafeVarargs
+    private static <T> Set<T> set(T... items) {
+        return new HashSet<T>(Arrays.asList(items));
+    }
+
+    static final class OptimisticViemSystem1 extends OptimisticViemSystem<String, String, Long> {
+
+        @Override
+        public boolean keyGreaterThan(String a, String b) {
+            return a.compareTo(b) < 0; // A > B
+        }
+
+        @Override
+        public boolean metadataGreaterThan(Long a, Long b) {
+            return a > b;
+        }
+
+        @Override
+        public boolean mergeable(Long a, Long b) {
+            return true;
+        }
+
+        @Override
+        public Long merge(Long a, Long b) {
+            return Math.max(a, b);
+        }
+    }
+
+}
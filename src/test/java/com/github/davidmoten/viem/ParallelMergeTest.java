@@ -0,0 +1,63 @@
+package com.github.davidmoten.viem;
+
+import static com.github.davidmoten.viem.Reports.es;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import com.github.davidmoten.junit.Asserts;
+
+public class ParallelMergeTest {
+
+    @Test
+    public void isUtilityClass() {
+        Asserts.assertIsUtilityClass(ParallelMerge.class);
+    }
+
+    @Test
+    public void testComponentsJoinedThroughSystemMatches() {
+        IndexedViemSystem1 s = new IndexedViemSystem1();
+        s.merge(es(1, "A1", "B1"));
+        List<EntityState<String, String, Long>> list = Arrays.asList( //
+                es(2, "A1"), //
+                es(3, "C1"), //
+                es(4, "B1", "D1"), //
+                es(5, "D1", "E1"), //
+                es(6, "C2"));
+        List<List<EntityState<String, String, Long>>> components = ParallelMerge.components(s, list,
+                ForkJoinPool.commonPool());
+        assertEquals(Arrays.asList( //
+                Arrays.asList(es(2, "A1"), es(4, "B1", "D1"), es(5, "D1", "E1")), //
+                Arrays.asList(es(3, "C1")), //
+                Arrays.asList(es(6, "C2"))), components);
+    }
+
+    @Test
+    public void testSameAsSequentialMerges() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Random r = new Random(7);
+            ViemSystem<String, String, Long> a = new IndexedViemSystem1();
+            ViemSystem<String, String, Long> b = new IndexedViemSystem1();
+            for (int batch = 0; batch < 20; batch++) {
+                List<EntityState<String, String, Long>> list = new ArrayList<>();
+                for (int i = 0; i < 1000; i++) {
+                    EntityState<String, String, Long> e = Reports.craft(r, 2000);
+                    list.add(e);
+                    a = a.merge(e);
+                }
+                b = ParallelMerge.mergeAll(b, list, pool);
+                assertEquals(Reports.metadataByIdentifiers(a), Reports.metadataByIdentifiers(b));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+package com.github.davidmoten.viem;
+
+import static com.github.davidmoten.viem.Reports.es;
+import static com.github.davidmoten.viem.Reports.ids;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class PersistentViemSystemTest {
+
+    @Test
+    public void testMergeReturnsNewVersionAndLeavesOldUnchanged() {
+        PersistentViemSystem1 s0 = new PersistentViemSystem1();
+        PersistentViemSystem<String, String, Long> s1 = s0.merge(es(1, "A1", "B1"));
+        PersistentViemSystem<String, String, Long> s2 = s1.merge(es(2, "A2", "B1"));
+        assertEquals(0, s0.size());
+        assertEquals(set(es(1, "A1", "B1")), s1.toSet());
+        assertEquals(set(es(1, "A1"), es(2, "A2", "B1")), s2.toSet());
+        assertEquals(Collections.singleton(es(1, "A1", "B1")), s1.matches(ids("B1")));
+        assertEquals(Collections.singleton(es(2, "A2", "B1")), s2.matches(ids("B1")));
+    }
+
+    @Test
+    public void testSameIdentifiersReplacesMetadata() {
+        PersistentViemSystem<String, String, Long> s1 = new PersistentViemSystem1().merge(es(1, "A1", "B1"));
+        PersistentViemSystem<String, String, Long> s2 = s1.merge(es(5, "A1", "B1"));
+        assertEquals(1, s2.size());
+        assertEquals(5L, (long) s2.matches(ids("B1")).iterator().next().metadata());
+        assertEquals(1L, (long) s1.matches(ids("B1")).iterator().next().metadata());
+        assertNotSame(s1, s2);
+    }
+
+    @Test
+    public void testUpdateWithNoChangeReturnsThis() {
+        PersistentViemSystem1 s = new PersistentViemSystem1();
+        assertSame(s, s.update(Collections.emptyList(), Collections.emptySet()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testWrappingInForwardingSystemFailsRatherThanLosingUpdates() {
+        new MemoizingViemSystem<>(new PersistentViemSystem1(), 16).merge(es(1, "A1"));
+    }
+
+    @Test
+    public void testSameAsIndexedSystemForRandomMerges() {
+        Random r = new Random(123);
+        IndexedViemSystem1 a = new IndexedViemSystem1();
+        PersistentViemSystem<String, String, Long> b = new PersistentViemSystem1();
+        for (int i = 0; i < 5000; i++) {
+            EntityState<String, String, Long> e = Reports.craft(r, 200);
+            a.merge(e);
+            b = b.merge(e);
+            assertEquals(a.size(), b.size());
+        }
+        assertEquals(Reports.metadataByIdentifiers(a), Reports.metadataByIdentifiers(b));
+        for (int i = 0; i < 1000; i++) {
+            Map<String, String> ids = Reports.craft(r, 250).identifiers();
+            assertEquals(a.matches(ids), b.matches(ids));
+        }
+    }
+
+    @Test
+    public void testMergeAllSameAsSequentialMerges() {
+        Random r = new Random(123);
+        List<EntityState<String, String, Long>> list = new ArrayList<>();
+        PersistentViemSystem<String, String, Long> a = new PersistentViemSystem1();
+        for (int i = 0; i < 2000; i++) {
+            EntityState<String, String, Long> e = Reports.craft(r, 50);
+            list.add(e);
+            a = a.merge(e);
+        }
+        PersistentViemSystem<String, String, Long> b = new PersistentViemSystem1().mergeAll(list);
+        assertEquals(Reports.metadataByIdentifiers(a), Reports.metadataByIdentifiers(b));
+    }
+
+    @Test
+    public void testReadersSeeConsistentSnapshotsWhileWriterMerges() throws InterruptedException {
+        AtomicReference<PersistentViemSystem<String, String, Long>> current = new AtomicReference<>(
+                new PersistentViemSystem1());
+        AtomicBoolean finished = new AtomicBoolean();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                while (!finished.get()) {
+                    PersistentViemSystem<String, String, Long> s = current.get();
+                    // every key-value is owned by exactly one entity-state of the
+                    // snapshot
+                    Set<String> kvs = new HashSet<>();
+                    int n = 0;
+                    for (EntityState<String, String, Long> es : s.entityStates()) {
+                        n++;
+                        es.identifiers().forEach((k, v) -> assertTrue(kvs.add(k + v)));
+                        assertEquals(Collections.singleton(es), s.matches(es.identifiers()));
+                    }
+                    assertEquals(s.size(), n);
+                }
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        });
+        reader.start();
+        Random r = new Random(123);
+        for (int i = 0; i < 20000; i++) {
+            current.set(current.get().merge(Reports.craft(r, 100)));
+        }
+        finished.set(true);
+        reader.join();
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+    }
+
+    @SafeVarargs
+    private static <T> Set<T> set(T... items) {
+        return new HashSet<T>(Arrays.asList(items));
+    }
+
+    /**
+     * A {@link PersistentViemSystem} with the same rules as {@link ViemSystem1}.
+     */
+    static final class PersistentViemSystem1 extends PersistentViemSystem<String, String, Long> {
+
+        PersistentViemSystem1() {
+            super();
+        }
+
+        private PersistentViemSystem1(State<String, String, Long> state) {
+            super(state);
+        }
+
+        @Override
+        protected PersistentViemSystem1 withState(State<String, String, Long> state) {
+            return new PersistentViemSystem1(state);
+        }
+
+        @Override
+        public boolean keyGreaterThan(String a, String b) {
+            return a.compareTo(b) < 0; // A > B
+        }
+
+        @Override
+        public boolean metadataGreaterThan(Long a, Long b) {
+            return a > b;
+        }
+
+        @Override
+        public boolean mergeable(Long a, Long b) {
+            return true;
+        }
+
+        @Override
+        public Long merge(Long a, Long b) {
+            return Math.max(a, b);
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.github.davidmoten.viem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.github.davidmoten.viem.Instrumentation.Outcome;
+import com.github.davidmoten.viem.Instrumentation.Phase;
+
+public class PrometheusInstrumentationTest {
+
+    @Test
+    public void testScrape() {
+        PrometheusInstrumentation p = new PrometheusInstrumentation();
+        p.timed(Phase.MATCHES, 500);
+        p.timed(Phase.MATCHES, 5_000_000);
+        p.mergeable(true);
+        p.mergeable(false);
+        p.merged(Outcome.CREATED, 0, 1);
+        p.merged(Outcome.MERGED, 3, 1);
+        p.changed(MergeEvent.Type.CREATED);
+        p.changed(MergeEvent.Type.MERGED);
+        String s = p.scrape();
+        assertTrue(s.contains("# TYPE viem_phase_seconds histogram\n"));
+        assertTrue(s.contains("viem_phase_seconds_bucket{phase=\"matches\",le=\"1.0E-6\"} 1\n"));
+        assertTrue(s.contains("viem_phase_seconds_bucket{phase=\"matches\",le=\"0.01\"} 2\n"));
+        assertTrue(s.contains("viem_phase_seconds_bucket{phase=\"matches\",le=\"+Inf\"} 2\n"));
+        assertTrue(s.contains("viem_phase_seconds_sum{phase=\"matches\"} 0.0050005\n"));
+        assertTrue(s.contains("viem_phase_seconds_count{phase=\"update\"} 0\n"));
+        assertTrue(s.contains("viem_report_matches_bucket{le=\"0\"} 1\n"));
+        assertTrue(s.contains("viem_report_matches_bucket{le=\"2\"} 1\n"));
+        assertTrue(s.contains("viem_report_matches_bucket{le=\"3\"} 2\n"));
+        assertTrue(s.contains("viem_report_matches_sum 3\n"));
+        assertTrue(s.contains("viem_merges_total{outcome=\"merged\"} 1\n"));
+        assertTrue(s.contains("viem_merges_total{outcome=\"transferred\"} 0\n"));
+        assertTrue(s.contains("viem_merges_total{outcome=\"removed\"} 0\n"));
+        assertTrue(s.contains("viem_mergeable_total{result=\"false\"} 1\n"));
+        assertTrue(s.contains("# TYPE viem_entity_state_changes_total counter\n"));
+        assertTrue(s.contains("viem_entity_state_changes_total{change=\"created\"} 1\n"));
+        assertTrue(s.contains("viem_entity_state_changes_total{change=\"merged\"} 1\n"));
+        assertTrue(s.contains("viem_entity_state_changes_total{change=\"removed\"} 0\n"));
+    }
+
+    @Test
+    public void testUnchangedMatchIsNotCountedAsRemoved() {
+        PrometheusInstrumentation p = new PrometheusInstrumentation();
+        InstrumentedViemSystem<String, String, Long> s = new InstrumentedViemSystem<>(new IndexedViemSystem1(), p);
+        EntityState<String, String, Long> es = EntityState.create(Collections.singletonMap("A", "1"), 1L);
+        s.merge(es).merge(es);
+        String text = p.scrape();
+        assertTrue(text.contains("viem_merges_total{outcome=\"created\"} 1\n"));
+        assertTrue(text.contains("viem_merges_total{outcome=\"updated\"} 1\n"));
+        assertTrue(text.contains("viem_entity_state_changes_total{change=\"created\"} 1\n"));
+        assertTrue(text.contains("viem_entity_state_changes_total{change=\"updated\"} 0\n"));
+        assertTrue(text.contains("viem_entity_state_changes_total{change=\"removed\"} 0\n"));
+    }
+
+    @Test
+    public void testServe() throws IOException {
+        PrometheusInstrumentation p = new PrometheusInstrumentation("test");
+        InstrumentedViemSystem<String, String, Long> s = new InstrumentedViemSystem<>(new IndexedViemSystem1(), p);
+        s.merge(EntityState.create(Collections.singletonMap("A", "1"), 1L));
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        try (Closeable server = p.serve(new InetSocketAddress(InetAddress.getLoopbackAddress(), port))) {
+            HttpURLConnection c = (HttpURLConnection) new URL(
+                    "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + port + "/metrics")
+                            .openConnection();
+            assertEquals(200, c.getResponseCode());
+            assertTrue(c.getContentType().startsWith("text/plain; version=0.0.4"));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (InputStream in = c.getInputStream()) {
+                byte[] b = new byte[8192];
+                int n;
+                while ((n = in.read(b)) != -1) {
+                    bytes.write(b, 0, n);
+                }
+            }
+            String body = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+            assertTrue(body.contains("test_merges_total{outcome=\"created\"} 1\n"));
+        }
+    }
+
+}
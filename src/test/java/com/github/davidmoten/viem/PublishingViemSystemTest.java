@@ -0,0 +1,153 @@
+package com.github.davidmoten.viem;
+
+import static com.github.davidmoten.viem.Reports.es;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.github.davidmoten.viem.MergeEvent.Type;
+
+public class PublishingViemSystemTest {
+
+    @Test
+    public void testCreated() {
+        PublishingViemSystem<String, String, Long> s = system();
+        MergeEventBuffer<String, String, Long> events = s.subscribe(10);
+        s.merge(es(1, "A1"));
+        MergeEvent<String, String, Long> e = events.poll();
+        assertEquals(Type.CREATED, e.type());
+        assertEquals(es(1, "A1"), e.entityState());
+        assertEquals(Collections.emptyList(), e.sources());
+        assertNull(events.poll());
+    }
+
+    @Test
+    public void testMetadataUpdated() {
+        PublishingViemSystem<String, String, Long> s = system(es(1, "A1"));
+        MergeEventBuffer<String, String, Long> events = s.subscribe(10);
+        s.merge(es(2, "A1"));
+        MergeEvent<String, String, Long> e = events.poll();
+        assertEquals(Type.UPDATED, e.type());
+        assertEquals(2L, (long) e.entityState().metadata());
+        assertEquals(Collections.singletonList(es(1, "A1")), e.sources());
+    }
+
+    @Test
+    public void testStaleReportHasNoEvent() {
+        PublishingViemSystem<String, String, Long> s = system(es(2, "A1"));
+        MergeEventBuffer<String, String, Long> events = s.subscribe(10);
+        s.merge(es(1, "A1"));
+        assertEquals(0, events.size());
+    }
+
+    @Test
+    public void testIdentifierTransferred() {
+        PublishingViemSystem<String, String, Long> s = system(es(1, "A1", "B1"));
+        MergeEventBuffer<String, String, Long> events = s.subscribe(10);
+        s.merge(es(2, "A2", "B1"));
+        Map<Type, MergeEvent<String, String, Long>> map = byType(events);
+        assertEquals(2, map.size());
+        assertEquals(es(1, "A1"), map.get(Type.UPDATED).entityState());
+        assertEquals(Collections.singletonList(es(1, "A1", "B1")), map.get(Type.UPDATED).sources());
+        assertEquals(es(2, "A2", "B1"), map.get(Type.TRANSFERRED).entityState());
+        assertEquals(Collections.singletonList(es(1, "A1", "B1")), map.get(Type.TRANSFERRED).sources());
+    }
+
+    @Test
+    public void testMerged() {
+        PublishingViemSystem<String, String, Long> s = system(es(1, "A1", "B1"), es(2, "C1", "D1"), es(3, "E1", "F1"));
+        MergeEventBuffer<String, String, Long> events = s.subscribe(10);
+        s.merge(es(1, "A1", "D1", "F1"));
+        MergeEvent<String, String, Long> e = events.poll();
+        assertEquals(Type.MERGED, e.type());
+        assertEquals(es(3, "A1", "B1", "C1", "D1", "E1", "F1"), e.entityState());
+        assertEquals(set(es(1, "A1", "B1"), es(2, "C1", "D1"), es(3, "E1", "F1")), new HashSet<>(e.sources()));
+        assertNull(events.poll());
+    }
+
+    @Test
+    public void testRemoved() {
+        PublishingViemSystem<String, String, Long> s = system(es(1, "A1"));
+        MergeEventBuffer<String, String, Long> events = s.subscribe(10);
+        s.update(Collections.singletonList(es(1, "A1")), Collections.emptySet());
+        MergeEvent<String, String, Long> e = events.poll();
+        assertEquals(Type.REMOVED, e.type());
+        assertEquals(es(1, "A1"), e.entityState());
+    }
+
+    @Test
+    public void testUpdatesCoalescedPerEntity() {
+        PublishingViemSystem<String, String, Long> s = system();
+        MergeEventBuffer<String, String, Long> events = s.subscribe(10);
+        s.merge(es(1, "A1")).merge(es(1, "B1")).merge(es(2, "A1")).merge(es(3, "A1")).merge(es(4, "A1", "C1"));
+        assertEquals(2, events.size());
+        assertEquals(3, events.coalesced());
+        MergeEvent<String, String, Long> e = events.poll();
+        assertEquals(Type.CREATED, e.type());
+        assertEquals(es(4, "A1", "C1"), e.entityState());
+        assertEquals(4L, (long) e.entityState().metadata());
+        assertEquals(Type.CREATED, events.poll().type());
+    }
+
+    @Test
+    public void testUpdateAfterRemovalOfSameIdentifiersIsNotCoalesced() {
+        PublishingViemSystem<String, String, Long> s = system();
+        MergeEventBuffer<String, String, Long> events = s.subscribe(10);
+        s.merge(es(1, "A1"));
+        s.update(Collections.singletonList(es(1, "A1")), Collections.emptySet());
+        s.merge(es(2, "A1")).merge(es(3, "A1"));
+        List<Type> types = new ArrayList<>();
+        events.drain(e -> types.add(e.type()), 10);
+        assertEquals(Arrays.asList(Type.CREATED, Type.REMOVED, Type.CREATED), types);
+    }
+
+    @Test
+    public void testOldestDroppedWhenFull() {
+        PublishingViemSystem<String, String, Long> s = system();
+        MergeEventBuffer<String, String, Long> events = s.subscribe(2);
+        s.merge(es(1, "A1")).merge(es(1, "A2")).merge(es(1, "A3"));
+        assertEquals(2, events.size());
+        assertEquals(1, events.dropped());
+        assertEquals(es(1, "A2"), events.poll().entityState());
+        assertEquals(es(1, "A3"), events.poll().entityState());
+    }
+
+    @Test
+    public void testCancel() throws InterruptedException {
+        PublishingViemSystem<String, String, Long> s = system();
+        MergeEventBuffer<String, String, Long> events = s.subscribe(2);
+        events.cancel();
+        s.merge(es(1, "A1"));
+        assertNull(events.poll(1, TimeUnit.MILLISECONDS));
+    }
+
+    private static Map<Type, MergeEvent<String, String, Long>> byType(MergeEventBuffer<String, String, Long> events) {
+        Map<Type, MergeEvent<String, String, Long>> map = new EnumMap<>(Type.class);
+        events.drain(e -> map.put(e.type(), e), 10);
+        return map;
+    }
+
+    @SafeVarargs
+    private static PublishingViemSystem<String, String, Long> system(EntityState<String, String, Long>... states) {
+        IndexedViemSystem1 s = new IndexedViemSystem1();
+        s.update(Collections.emptyList(), set(states));
+        return new PublishingViemSystem<>(s);
+    }
+
+    @SafeVarargs
+    private static <T> Set<T> set(T... items) {
+        return new HashSet<T>(Arrays.asList(items));
+    }
+
+}
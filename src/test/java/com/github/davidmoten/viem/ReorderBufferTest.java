@@ -0,0 +1,87 @@
+package com.github.davidmoten.viem;
+
+import static com.github.davidmoten.viem.Reports.es;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class ReorderBufferTest {
+
+    @Test
+    public void testReleasesInTimeOrderBehindWatermark() {
+        RecordingSystem s = new RecordingSystem();
+        ReorderBuffer<String, String, Long> b = new ReorderBuffer<>(s, m -> m, 10, 100);
+        b.offer(es(5, "A1"));
+        b.offer(es(3, "B1"));
+        b.offer(es(14, "C1"));
+        // watermark is 4
+        assertEquals(Arrays.asList(Arrays.asList(3L)), s.batches);
+        // at the watermark so released straight away
+        b.offer(es(4, "D1"));
+        assertEquals(Arrays.asList(Arrays.asList(3L), Arrays.asList(4L)), s.batches);
+        b.offer(es(30, "E1"));
+        // watermark is 20
+        assertEquals(Arrays.asList(Arrays.asList(3L), Arrays.asList(4L), Arrays.asList(5L, 14L)), s.batches);
+        assertEquals(1, b.size());
+        b.flush();
+        assertEquals(Arrays.asList(30L), s.batches.get(3));
+        assertEquals(5, b.released());
+        assertEquals(2, b.late());
+        assertEquals(10, b.maxLatenessMillis());
+        assertEquals(6, b.meanLatenessMillis(), 0.0001);
+    }
+
+    @Test
+    public void testTooLateReportIsDropped() {
+        RecordingSystem s = new RecordingSystem();
+        ReorderBuffer<String, String, Long> b = new ReorderBuffer<>(s, m -> m, 10, 100);
+        assertTrue(b.offer(es(5, "A1")));
+        assertTrue(b.offer(es(20, "B1")));
+        assertFalse(b.offer(es(4, "C1")));
+        assertTrue(b.offer(es(5, "D1")));
+        assertEquals(1, b.dropped());
+        assertEquals(4, b.received());
+    }
+
+    @Test
+    public void testCapacityForcesEarlyRelease() {
+        RecordingSystem s = new RecordingSystem();
+        ReorderBuffer<String, String, Long> b = new ReorderBuffer<>(s, m -> m, 1000, 2);
+        b.offer(es(3, "A1"));
+        b.offer(es(1, "B1"));
+        b.offer(es(2, "C1"));
+        assertEquals(Arrays.asList(Arrays.asList(1L)), s.batches);
+        assertEquals(1, b.forced());
+        assertEquals(2, b.size());
+    }
+
+    @Test
+    public void testAdvanceReleasesWhenFeedIsQuiet() {
+        RecordingSystem s = new RecordingSystem();
+        ReorderBuffer<String, String, Long> b = new ReorderBuffer<>(s, m -> m, 10, 100);
+        b.offer(es(5, "A1"));
+        b.advance(15);
+        assertEquals(Arrays.asList(Arrays.asList(5L)), s.batches);
+        assertEquals(1, s.size());
+        assertTrue(b.system() == s);
+    }
+
+    private static final class RecordingSystem extends IndexedViemSystem1 {
+
+        final List<List<Long>> batches = new ArrayList<>();
+
+        @Override
+        public ViemSystem<String, String, Long> mergeAll(List<EntityState<String, String, Long>> entityStates) {
+            batches.add(entityStates.stream().map(EntityState::metadata).collect(Collectors.toList()));
+            return super.mergeAll(entityStates);
+        }
+    }
+
+}
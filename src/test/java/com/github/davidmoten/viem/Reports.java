@@ -0,0 +1,49 @@
+package com.github.davidmoten.viem;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+final class Reports {
+
+    private Reports() {
+        // prevent instantiation
+    }
+
+    // identifiers from strings of a key letter followed by its value, for
+    // example ids("A1", "B12") is {A=1, B=12}
+    static Map<String, String> ids(String... strings) {
+        Map<String, String> map = new HashMap<>();
+        for (String s : strings) {
+            map.put(s.substring(0, 1), s.substring(1));
+        }
+        return map;
+    }
+
+    // entity-state with identifiers as for ids and the timestamp as metadata
+    static EntityState<String, String, Long> es(long timestamp, String... strings) {
+        return EntityState.create(ids(strings), timestamp);
+    }
+
+    // reports consistent with a fixed allocation of identifiers to crafts
+    static EntityState<String, String, Long> craft(Random r, int crafts) {
+        String c = String.valueOf(r.nextInt(crafts));
+        Map<String, String> map = new HashMap<>();
+        for (String key : Arrays.asList("A", "B", "C")) {
+            if (map.isEmpty() || r.nextBoolean()) {
+                map.put(key, c);
+            }
+        }
+        return EntityState.create(map, (long) r.nextInt(1000));
+    }
+
+    static <K, V, M> Map<Map<K, V>, M> metadataByIdentifiers(ViemSystem<K, V, M> system) {
+        Map<Map<K, V>, M> map = new HashMap<>();
+        for (EntityState<K, V, M> es : system.entityStates()) {
+            map.put(es.identifiers(), es.metadata());
+        }
+        return map;
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.github.davidmoten.viem;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link ShardedViemSystem} as the number of shards grows with
+ * several threads merging concurrently from independent vessel feeds. Run with
+ * {@code mvn clean install -P benchmark -Dbenchmark.regex=ShardedBenchmarks}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Threads(8)
+public class ShardedBenchmarks {
+
+    private static final int ENTITIES = 100000;
+
+    @Param({ "1", "2", "4", "8", "16", "64" })
+    int shards;
+
+    ViemSystem<Integer, Long, Long> sys;
+
+    @Setup
+    public void setup() {
+        sys = new VesselFeed.ShardedVessels(shards);
+        Set<EntityState<Integer, Long, Long>> set = new HashSet<>();
+        for (int i = 0; i < ENTITIES; i++) {
+            set.add(VesselFeed.vessel(i, i));
+        }
+        sys.update(Collections.emptyList(), set);
+    }
+
+    @State(Scope.Thread)
+    public static class Feed {
+
+        private static final AtomicInteger SEED = new AtomicInteger();
+
+        VesselFeed feed = new VesselFeed(SEED.incrementAndGet(), ENTITIES);
+    }
+
+    @Benchmark
+    public ViemSystem<Integer, Long, Long> merge(Feed feed) {
+        return sys.merge(feed.feed.next());
+    }
+
+}
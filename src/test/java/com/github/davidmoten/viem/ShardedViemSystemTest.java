@@ -0,0 +1,203 @@
+package com.github.davidmoten.viem;
+
+import static com.github.davidmoten.viem.Reports.es;
+import static com.github.davidmoten.viem.Reports.ids;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class ShardedViemSystemTest {
+
+    @Test
+    public void testIdentifierTransfer() {
+        ShardedViemSystem1 s = new ShardedViemSystem1(new LoopbackShardTransport<>(4));
+        s.merge(es(1, "A1", "B1")).merge(es(2, "A2", "B1"));
+        assertEquals(set(es(1, "A1"), es(2, "A2", "B1")), s.toSet());
+        assertEquals(Collections.singleton(es(2, "A2", "B1")), s.matches(ids("B1")));
+    }
+
+    @Test
+    public void testMergeGathersUpMany() {
+        ShardedViemSystem1 s = new ShardedViemSystem1(new LoopbackShardTransport<>(3));
+        s.merge(es(3, "A1", "E1")).merge(es(0, "A1", "D1")).merge(es(1, "B1", "E1")).merge(es(2, "C1", "F1"))
+                .merge(es(2, "A1", "B1", "C1"));
+        assertEquals(set(es(3, "A1", "B1", "C1", "D1", "E1", "F1")), s.toSet());
+        // listed once only though spread over several shards
+        assertEquals(1, count(s.entityStates()));
+    }
+
+    @Test
+    public void testSameAsIndexedSystem() {
+        for (int shards : new int[] { 1, 2, 7 }) {
+            Random r = new Random(11);
+            IndexedViemSystem1 a = new IndexedViemSystem1();
+            ShardedViemSystem1 b = new ShardedViemSystem1(new LoopbackShardTransport<>(shards));
+            for (int i = 0; i < 5000; i++) {
+                EntityState<String, String, Long> e = Reports.craft(r, 300);
+                a.merge(e);
+                b.merge(e);
+            }
+            assertEquals(Reports.metadataByIdentifiers(a), Reports.metadataByIdentifiers(b));
+            assertEquals(a.size(), count(b.entityStates()));
+        }
+    }
+
+    @Test
+    public void testMatchesAsksOnlyOwningShards() {
+        int shards = 8;
+        Recording transport = new Recording(shards);
+        ShardedViemSystem1 s = new ShardedViemSystem1(transport);
+        s.merge(es(1, "A1", "B1", "C1"));
+        transport.asked.clear();
+        Map<String, String> ids = ids("A1", "D5");
+        s.matches(ids);
+        Set<Integer> expected = new HashSet<>();
+        for (Entry<String, String> entry : ids.entrySet()) {
+            expected.add(ShardedViemSystem.shard(entry.getKey(), entry.getValue(), shards));
+        }
+        assertEquals(expected, new HashSet<>(transport.asked));
+        assertEquals(expected.size(), transport.asked.size());
+    }
+
+    @Test
+    public void testHomeIsLowestOwningShard() {
+        Map<String, String> ids = ids("A1", "B2", "C3");
+        int home = ShardedViemSystem.home(ids, 5);
+        for (Entry<String, String> entry : ids.entrySet()) {
+            assertTrue(home <= ShardedViemSystem.shard(entry.getKey(), entry.getValue(), 5));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShardsMustBePositive() {
+        new LoopbackShardTransport<String, String, Long>(0);
+    }
+
+    @Test
+    public void testConcurrentMergesKeepIdentifiersUnique() throws Exception {
+        ShardedViemSystem1 s = new ShardedViemSystem1(new LoopbackShardTransport<>(4));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                Random r = new Random(t);
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 20000; i++) {
+                        s.merge(Reports.craft(r, 50));
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Set<Entry<String, String>> identifiers = new HashSet<>();
+        for (EntityState<String, String, Long> es : s.entityStates()) {
+            for (Entry<String, String> entry : es.identifiers().entrySet()) {
+                assertTrue(identifiers.add(entry));
+                assertEquals(Collections.singleton(es),
+                        s.matches(Collections.singletonMap(entry.getKey(), entry.getValue())));
+            }
+        }
+    }
+
+    private static int count(Iterable<?> iterable) {
+        int n = 0;
+        for (@SuppressWarnings("unused")
+        Object o : iterable) {
+            n++;
+        }
+        return n;
+    }
+
+    @SafeVarargs
+    private static <T> Set<T> set(T... items) {
+        return new HashSet<T>(Arrays.asList(items));
+    }
+
+    private static final class Recording implements ShardTransport<String, String, Long> {
+
+        final LoopbackShardTransport<String, String, Long> loopback;
+        final List<Integer> asked = new ArrayList<>();
+
+        Recording(int shards) {
+            this.loopback = new LoopbackShardTransport<>(shards);
+        }
+
+        @Override
+        public int shards() {
+            return loopback.shards();
+        }
+
+        @Override
+        public Set<EntityState<String, String, Long>> matches(int shard, Map<String, String> identifiers) {
+            asked.add(shard);
+            return loopback.matches(shard, identifiers);
+        }
+
+        @Override
+        public void update(int shard, List<EntityState<String, String, Long>> removed,
+                Set<EntityState<String, String, Long>> added) {
+            loopback.update(shard, removed, added);
+        }
+
+        @Override
+        public Iterable<EntityState<String, String, Long>> entityStates(int shard) {
+            return loopback.entityStates(shard);
+        }
+
+        @Override
+        public void lock(int shard) {
+            loopback.lock(shard);
+        }
+
+        @Override
+        public void unlock(int shard) {
+            loopback.unlock(shard);
+        }
+    }
+
+    static final class ShardedViemSystem1 extends ShardedViemSystem<String, String, Long> {
+
+        ShardedViemSystem1(ShardTransport<String, String, Long> transport) {
+            super(transport);
+        }
+
+        @Override
+        public boolean keyGreaterThan(String a, String b) {
+            return a.compareTo(b) < 0; // A > B
+        }
+
+        @Override
+        public boolean metadataGreaterThan(Long a, Long b) {
+            return a > b;
+        }
+
+        @Override
+        public boolean mergeable(Long a, Long b) {
+            return true;
+        }
+
+        @Override
+        public Long merge(Long a, Long b) {
+            return Math.max(a, b);
+        }
+    }
+
+}
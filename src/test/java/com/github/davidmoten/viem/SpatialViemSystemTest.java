@@ -0,0 +1,137 @@
+package com.github.davidmoten.viem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class SpatialViemSystemTest {
+
+    private static final double MAX_SPEED_KNOTS = 50;
+
+    private static final long HOUR = 3_600_000;
+
+    @Test
+    public void testPrefilterRejectsWithoutCallingRule() {
+        Positions delegate = new Positions();
+        SpatialViemSystem<String, String, double[]> s = spatial(delegate);
+        s.merge(es(0, -33, 151, "A1"));
+        // 10 degrees of latitude in an hour is far too fast
+        s.merge(es(HOUR, -23, 151, "A1", "B1"));
+        assertEquals(1, s.rejected());
+        assertEquals(0, delegate.checks);
+        // close enough to need the full check
+        s.merge(es(2 * HOUR, -23.5, 151, "B1", "C1"));
+        assertEquals(1, delegate.checks);
+        assertEquals(1, s.toSet().size());
+    }
+
+    @Test
+    public void testSameResultAsWithoutPrefilter() {
+        Random r = new Random(7);
+        Positions a = new Positions();
+        SpatialViemSystem<String, String, double[]> b = spatial(new Positions());
+        for (int i = 0; i < 3000; i++) {
+            EntityState<String, String, double[]> e = es(i * 60_000L, -34 + r.nextDouble() * 4,
+                    150 + r.nextDouble() * 4, "A" + r.nextInt(9), "B" + r.nextInt(9));
+            a.merge(e);
+            b.merge(e);
+        }
+        assertTrue(b.rejected() > 0);
+        assertEquals(times(a), times(b));
+    }
+
+    @Test
+    public void testNear() {
+        SpatialViemSystem<String, String, double[]> s = spatial(new Positions());
+        s.merge(es(0, -33.8, 151.2, "A1")) //
+                .merge(es(0, -33.9, 151.3, "A2")) //
+                .merge(es(0, -37.8, 145.0, "A3")) //
+                .merge(es(0, 0, 179.9, "A4")) //
+                .merge(es(0, 0, -179.9, "A5"));
+        assertEquals(set("A1", "A2"), ids(s.near(-33.85, 151.25, 10)));
+        assertEquals(set("A1"), ids(s.near(-33.8, 151.2, 1)));
+        // across the antimeridian
+        assertEquals(set("A4", "A5"), ids(s.near(0, 180, 10)));
+        assertEquals(set("A1", "A2", "A3", "A4", "A5"), ids(s.near(0, 0, 20000)));
+        // a moved entity-state is found at its new position only
+        s.merge(es(HOUR, -33.5, 151.2, "A1"));
+        assertEquals(set("A2"), ids(s.near(-33.9, 151.3, 5)));
+        assertEquals(set("A1"), ids(s.near(-33.5, 151.2, 5)));
+    }
+
+    @Test
+    public void testIndexesExistingEntityStates() {
+        Positions delegate = new Positions();
+        delegate.merge(es(0, 10, 10, "A1"));
+        SpatialViemSystem<String, String, double[]> s = spatial(delegate);
+        assertEquals(set("A1"), ids(s.near(10, 10, 1)));
+    }
+
+    @Test
+    public void testDistance() {
+        // one degree of latitude is about 60 nautical miles
+        assertEquals(60.04, SpatialViemSystem.distanceNm(0, 0, 1, 0), 0.01);
+        assertEquals(0, SpatialViemSystem.distanceNm(-33, 151, -33, 151), 0.0);
+    }
+
+    private static SpatialViemSystem<String, String, double[]> spatial(ViemSystem<String, String, double[]> delegate) {
+        return new SpatialViemSystem<>(delegate, m -> m[1], m -> m[2], m -> (long) m[0], MAX_SPEED_KNOTS, 1);
+    }
+
+    // metadata is time, lat, lon
+    private static final class Positions extends IndexedViemSystem<String, String, double[]> {
+
+        int checks;
+
+        @Override
+        public boolean keyGreaterThan(String a, String b) {
+            return a.compareTo(b) < 0;
+        }
+
+        @Override
+        public boolean metadataGreaterThan(double[] a, double[] b) {
+            return a[0] > b[0];
+        }
+
+        @Override
+        public boolean mergeable(double[] a, double[] b) {
+            checks++;
+            double hours = Math.abs(a[0] - b[0]) / HOUR;
+            return SpatialViemSystem.distanceNm(a[1], a[2], b[1], b[2]) <= MAX_SPEED_KNOTS * hours;
+        }
+
+        @Override
+        public double[] merge(double[] a, double[] b) {
+            return a[0] > b[0] ? a : b;
+        }
+    }
+
+    private static Map<Map<String, String>, Double> times(ViemSystem<String, String, double[]> s) {
+        return s.toSet().stream().collect(Collectors.toMap(EntityState::identifiers, es -> es.metadata()[0]));
+    }
+
+    private static Set<String> ids(List<EntityState<String, String, double[]>> list) {
+        return list.stream().map(es -> es.identifiers().entrySet().iterator().next())
+                .map(e -> e.getKey() + e.getValue()).collect(Collectors.toSet());
+    }
+
+    private static Set<String> set(String... items) {
+        return new HashSet<>(Arrays.asList(items));
+    }
+
+    private static EntityState<String, String, double[]> es(long time, double lat, double lon, String... ids) {
+        Map<String, String> map = Arrays.stream(ids)
+                .collect(Collectors.toMap(x -> x.substring(0, 1), x -> x.substring(1, 2)));
+        return EntityState.create(map, new double[] { time, lat, lon });
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.github.davidmoten.viem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end merge benchmarks of the {@link ViemSystem} implementations on a
+ * synthetic vessel feed. Run with
+ * {@code mvn clean install -P benchmark -Dbenchmark.regex=SystemBenchmarks}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SystemBenchmarks {
+
+    private static final int BATCH_SIZE = 1000;
+
+    @Param({ "10000", "100000", "1000000" })
+    int entities;
+
+    @Param({ "indexed", "long", "mapped", "concurrent", "optimistic", "sharded", "persistent", "memoizing", "spatial",
+            "durable" })
+    String system;
+
+    ViemSystem<Integer, Long, Long> sys;
+
+    VesselFeed feed;
+
+    @Setup
+    public void setup() {
+        sys = VesselFeed.system(system);
+        Set<EntityState<Integer, Long, Long>> set = new HashSet<>();
+        for (int i = 0; i < entities; i++) {
+            set.add(VesselFeed.vessel(i, i));
+        }
+        sys = sys.update(Collections.emptyList(), set);
+        feed = new VesselFeed(1, entities);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (sys instanceof Closeable) {
+            ((Closeable) sys).close();
+        }
+    }
+
+    @Benchmark
+    public ViemSystem<Integer, Long, Long> merge() {
+        return sys = sys.merge(feed.next());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public ViemSystem<Integer, Long, Long> mergeAll() {
+        return sys = sys.mergeAll(batch());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public ViemSystem<Integer, Long, Long> parallelMerge() {
+        return sys = ParallelMerge.mergeAll(sys, batch());
+    }
+
+    private List<EntityState<Integer, Long, Long>> batch() {
+        List<EntityState<Integer, Long, Long>> list = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            list.add(feed.next());
+        }
+        return list;
+    }
+
+}
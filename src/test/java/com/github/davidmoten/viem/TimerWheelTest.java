@@ -0,0 +1,79 @@
+package com.github.davidmoten.viem;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TimerWheelTest {
+
+    @Test
+    public void testExpiresSameAsBruteForce() {
+        Random r = new Random(123);
+        TimerWheel<Integer> wheel = new TimerWheel<>(10);
+        Map<Integer, TimerWheel.Node<Integer>> nodes = new HashMap<>();
+        Map<Integer, Long> deadlines = new HashMap<>();
+        long now = 1_000_000;
+        for (int i = 0; i < 20000; i++) {
+            int op = r.nextInt(10);
+            if (op < 5) {
+                TimerWheel.Node<Integer> node = new TimerWheel.Node<>(i);
+                // mostly near deadlines, some far, some in the past
+                long deadline = now + (r.nextInt(10) == 0 ? (long) r.nextInt(100_000_000) : r.nextInt(5000) - 100);
+                wheel.schedule(node, deadline);
+                nodes.put(i, node);
+                deadlines.put(i, deadline);
+            } else if (op < 6 && !nodes.isEmpty()) {
+                Integer key = nodes.keySet().iterator().next();
+                wheel.cancel(nodes.remove(key));
+                deadlines.remove(key);
+            } else {
+                // mostly small steps with occasional large jumps
+                now += r.nextInt(20) == 0 ? r.nextInt(10_000_000) : r.nextInt(200);
+                List<Integer> expired = new ArrayList<>();
+                wheel.advance(now, expired::add);
+                Set<Integer> expected = new HashSet<>();
+                for (Entry<Integer, Long> entry : deadlines.entrySet()) {
+                    if (entry.getValue() <= now) {
+                        expected.add(entry.getKey());
+                    }
+                }
+                assertEquals(expected, new HashSet<>(expired));
+                assertEquals(expected.size(), expired.size());
+                for (Integer key : expired) {
+                    nodes.remove(key);
+                    deadlines.remove(key);
+                }
+            }
+            assertEquals(deadlines.size(), wheel.size());
+        }
+    }
+
+    @Test
+    public void testRescheduleMovesTimer() {
+        TimerWheel<String> wheel = new TimerWheel<>(1);
+        TimerWheel.Node<String> node = new TimerWheel.Node<>("a");
+        wheel.schedule(node, 10);
+        wheel.schedule(node, 1000);
+        List<String> expired = new ArrayList<>();
+        wheel.advance(500, expired::add);
+        assertEquals(0, expired.size());
+        wheel.advance(1000, expired::add);
+        assertEquals(1, expired.size());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTickMustBePositive() {
+        new TimerWheel<String>(0);
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.github.davidmoten.viem;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of {@link IndexedViemSystem} merges of entities with many
+ * identifiers, where the cost of updating the index dominates. Run with
+ * {@code mvn clean install -P benchmark -Dbenchmark.regex=TransferBenchmarks}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class TransferBenchmarks {
+
+    private static final int ENTITIES = 10000;
+
+    @Param({ "4", "16", "64" })
+    int identifiers;
+
+    IndexedViemSystem<Integer, Long, Long> system;
+
+    // the identifiers of each entity as loaded
+    Map<Integer, Long>[] entities;
+
+    Random random;
+
+    long time;
+
+    // each iteration starts from the loaded system as transfers change it
+    @SuppressWarnings("unchecked")
+    @Setup(Level.Iteration)
+    public void setup() {
+        system = new VesselFeed.IndexedVessels();
+        entities = new Map[ENTITIES];
+        Set<EntityState<Integer, Long, Long>> set = new HashSet<>();
+        for (int i = 0; i < ENTITIES; i++) {
+            Map<Integer, Long> ids = new HashMap<>();
+            for (int key = 0; key < identifiers; key++) {
+                ids.put(key, (long) i);
+            }
+            entities[i] = ids;
+            set.add(EntityState.create(ids, (long) i));
+        }
+        system.update(Collections.emptyList(), set);
+        random = new Random(1);
+        time = ENTITIES;
+    }
+
+    /**
+     * A newer report with all the identifiers of a known entity.
+     */
+    @Benchmark
+    public ViemSystem<Integer, Long, Long> sameIdentifiers() {
+        return system.merge(EntityState.create(new HashMap<>(entities[random.nextInt(ENTITIES)]), ++time));
+    }
+
+    /**
+     * A report with the most reliable identifier of one entity and the least
+     * reliable identifier of another (for example a reissued MMSI), which moves
+     * from the other entity to the first.
+     */
+    @Benchmark
+    public ViemSystem<Integer, Long, Long> transfer() {
+        Map<Integer, Long> ids = new HashMap<>();
+        ids.put(0, (long) random.nextInt(ENTITIES));
+        ids.put(identifiers - 1, (long) random.nextInt(ENTITIES));
+        return system.merge(EntityState.create(ids, ++time));
+    }
+
+}
@@ -27,6 +27,7 @@ public class UtilTest {
         ViemSystem1 system = ViemSystem1.create();
         assertEquals(-1, Algorithm.compare(system, "A", "B"));
         assertEquals(1, Algorithm.compare(system, "B", "A"));
+        assertEquals(0, Algorithm.compare(system, "A", "A"));
     }
 
 }
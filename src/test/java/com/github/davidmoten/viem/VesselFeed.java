@@ -0,0 +1,214 @@
+package com.github.davidmoten.viem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Synthetic feed of vessel position reports for benchmarks. Identifier keys
+ * are in descending order of confidence (IMO, MMSI, Callsign) and the metadata
+ * is the report time. Most reports are for known vessels with a random subset
+ * of their identifiers, a few are for new vessels and a few carry an MMSI that
+ * has been reissued from another vessel.
+ */
+final class VesselFeed {
+
+    static final int IMO = 0;
+    static final int MMSI = 1;
+    static final int CALLSIGN = 2;
+
+    private final Random random;
+    private final int vessels;
+    private long time;
+    private int newVessels;
+
+    VesselFeed(long seed, int vessels) {
+        this.random = new Random(seed);
+        this.vessels = vessels;
+        this.time = vessels;
+    }
+
+    /**
+     * Returns the entity-state with all the identifiers of the given vessel.
+     *
+     * @param vessel vessel number
+     * @param time   report time
+     * @return entity-state with all identifiers of the vessel
+     */
+    static EntityState<Integer, Long, Long> vessel(int vessel, long time) {
+        Map<Integer, Long> ids = new HashMap<>();
+        ids.put(IMO, 9_000_000L + vessel);
+        ids.put(MMSI, 200_000_000L + vessel);
+        ids.put(CALLSIGN, (long) vessel);
+        return EntityState.create(ids, time);
+    }
+
+    EntityState<Integer, Long, Long> next() {
+        time++;
+        double p = random.nextDouble();
+        if (p < 0.01) {
+            newVessels++;
+            return vessel(vessels + newVessels, time);
+        }
+        int v = random.nextInt(vessels);
+        Map<Integer, Long> ids = new HashMap<>();
+        if (p < 0.011) {
+            // reissued MMSI
+            ids.put(IMO, 9_000_000L + v);
+            ids.put(MMSI, 200_000_000L + random.nextInt(vessels));
+        } else {
+            ids.put(MMSI, 200_000_000L + v);
+            if (random.nextInt(4) == 0) {
+                ids.put(IMO, 9_000_000L + v);
+            }
+            if (random.nextInt(4) == 0) {
+                ids.put(CALLSIGN, (long) v);
+            }
+        }
+        return EntityState.create(ids, time);
+    }
+
+    /**
+     * Returns a new empty system of the given type with the rules of the feed.
+     *
+     * @param type system type
+     * @return new empty system
+     */
+    static ViemSystem<Integer, Long, Long> system(String type) {
+        switch (type) {
+        case "indexed":
+            return new IndexedVessels();
+        case "concurrent":
+            return new ConcurrentVessels();
+        case "optimistic":
+            return new OptimisticVessels();
+        case "long":
+            return new LongVessels();
+        case "mapped":
+            return MappedVessels.createTemporary();
+        case "sharded":
+            return new ShardedVessels(16);
+        case "persistent":
+            return new PersistentVessels();
+        case "memoizing":
+            return new MemoizingViemSystem<>(new IndexedVessels(), 4096);
+        case "spatial":
+            // the maximum speed is high enough that the prefilter rejects nothing
+            // and the results are those of the other systems
+            return new SpatialViemSystem<>(new IndexedVessels(), VesselFeed::latitude, VesselFeed::longitude,
+                    t -> t, Double.MAX_VALUE, 1);
+        case "durable":
+            return durable(new IndexedVessels());
+        default:
+            throw new IllegalArgumentException("unknown system type: " + type);
+        }
+    }
+
+    // a position derived from the report time that spreads the vessels over
+    // the grid cells of a spatial system
+    static double latitude(long time) {
+        return (time % 1000) * 0.17 - 85;
+    }
+
+    static double longitude(long time) {
+        return (time / 1000 % 3600) * 0.1 - 180;
+    }
+
+    // fsyncs the log every 100ms rather than on every update so that the
+    // benchmark measures the logging rather than the disk
+    private static DurableViemSystem<Integer, Long, Long> durable(ViemSystem<Integer, Long, Long> system) {
+        try {
+            File directory = Files.createTempDirectory("vessels").toFile();
+            directory.deleteOnExit();
+            return DurableViemSystem.open(directory, system, Serializer.integers(), Serializer.longs(),
+                    Serializer.longs(), 100, 100_000);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The rules of the feed shared by the system types: lower keys are more
+     * confident, later reports are greater, any two reports are mergeable and
+     * merge to the later time.
+     */
+    interface VesselRules extends ViemSystem<Integer, Long, Long> {
+
+        @Override
+        default boolean keyGreaterThan(Integer a, Integer b) {
+            return a < b;
+        }
+
+        @Override
+        default boolean metadataGreaterThan(Long a, Long b) {
+            return a > b;
+        }
+
+        @Override
+        default boolean mergeable(Long a, Long b) {
+            return true;
+        }
+
+        @Override
+        default Long merge(Long a, Long b) {
+            return Math.max(a, b);
+        }
+    }
+
+    static final class IndexedVessels extends IndexedViemSystem<Integer, Long, Long> implements VesselRules {
+    }
+
+    static final class ConcurrentVessels extends ConcurrentViemSystem<Integer, Long, Long> implements VesselRules {
+    }
+
+    static final class OptimisticVessels extends OptimisticViemSystem<Integer, Long, Long> implements VesselRules {
+    }
+
+    static final class ShardedVessels extends ShardedViemSystem<Integer, Long, Long> implements VesselRules {
+
+        ShardedVessels(int shards) {
+            super(new LoopbackShardTransport<>(shards));
+        }
+    }
+
+    static final class PersistentVessels extends PersistentViemSystem<Integer, Long, Long> implements VesselRules {
+
+        PersistentVessels() {
+            super();
+        }
+
+        private PersistentVessels(State<Integer, Long, Long> state) {
+            super(state);
+        }
+
+        @Override
+        protected PersistentVessels withState(State<Integer, Long, Long> state) {
+            return new PersistentVessels(state);
+        }
+    }
+
+    static final class LongVessels extends LongIndexedViemSystem<Long> implements VesselRules {
+    }
+
+    static final class MappedVessels extends MappedViemSystem<Long> implements VesselRules {
+
+        MappedVessels(File file) {
+            super(file, 3, 8, Serializer.longs());
+        }
+
+        static MappedVessels createTemporary() {
+            try {
+                File file = File.createTempFile("vessels", ".map");
+                file.deleteOnExit();
+                return new MappedVessels(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+}